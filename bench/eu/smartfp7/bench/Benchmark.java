@@ -0,0 +1,130 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.bench;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * A (very) small micro-benchmark harness, in the spirit of JMH.
+ *
+ * A benchmark repeats one operation for a warmup period (so that the JIT
+ * compiles it), then for a measurement period. It reports the throughput
+ * (operations per second), the average time per operation and the number
+ * of bytes allocated per operation by the benchmark thread.
+ * The results of the operations are consumed, so that the JIT cannot
+ * eliminate them.
+ */
+public abstract class Benchmark {
+
+  /** The result of a benchmark. */
+  public static class Result {
+	final String name;
+	final long   operations;
+	final long   nanos;
+	final long   allocated;
+
+	Result(String name, long operations, long nanos, long allocated) {
+	  this.name       = name;
+	  this.operations = operations;
+	  this.nanos      = nanos;
+	  this.allocated  = allocated;
+	}
+
+	public double getThroughput() {
+	  return operations / (nanos / 1e9);
+	}
+
+	public double getMicrosPerOperation() {
+	  return nanos / 1e3 / operations;
+	}
+
+	public double getBytesPerOperation() {
+	  return allocated < 0 ? Double.NaN : allocated / (double) operations;
+	}
+
+	public String toString() {
+	  return String.format("%-60s %14.1f ops/s %14.3f us/op %16.1f B/op",
+		  name, getThroughput(), getMicrosPerOperation(), getBytesPerOperation());
+	}
+  }
+
+  // Consumes the results of the operations.
+  private static volatile int sink;
+
+  private final String name;
+
+  protected Benchmark(String name) {
+	this.name = name;
+  }
+
+  public String getName() {
+	return name;
+  }
+
+  /** Prepares the data of the benchmark (not measured). */
+  protected void setup() throws Exception {
+  }
+
+  /** Cleans the data of the benchmark (not measured). */
+  protected void tearDown() throws Exception {
+  }
+
+  /** The measured operation. */
+  protected abstract Object operation() throws Exception;
+
+  /** Runs the benchmark: warmup first, then measurement. */
+  public Result run(long warmup_ms, long measurement_ms) throws Exception {
+	setup();
+	try {
+	  loop(warmup_ms);
+
+	  long allocated_before = allocatedBytes();
+	  long start = System.nanoTime();
+	  long operations = loop(measurement_ms);
+	  long nanos = System.nanoTime() - start;
+	  long allocated_after = allocatedBytes();
+
+	  return new Result(name, operations, nanos, allocated_before < 0 ? -1 : allocated_after - allocated_before);
+	} finally {
+	  tearDown();
+	}
+  }
+
+  private long loop(long duration_ms) throws Exception {
+	long end = System.nanoTime() + duration_ms * 1000000;
+	long operations = 0;
+	int  hash = 0;
+
+	do {
+	  Object result = operation();
+	  hash += result == null ? 0 : System.identityHashCode(result);
+	  operations++;
+	} while(System.nanoTime() < end);
+
+	sink += hash;
+	return operations;
+  }
+
+  /** Returns the number of bytes allocated so far by the current thread, or -1 if the JVM cannot tell. */
+  private static long allocatedBytes() {
+	try {
+	  com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	  return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	} catch (Throwable t) {
+	  return -1;
+	}
+  }
+}
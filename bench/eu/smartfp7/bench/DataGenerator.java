@@ -0,0 +1,204 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Random;
+
+/**
+ * Generates synthetic data looking like the data of the crawler: `.ts` files
+ * with different lengths and gap patterns, forecast files, and Foursquare
+ * venue JSON objects.
+ * The data only depends on the seed, so that the benchmarks are repeatable.
+ */
+public class DataGenerator {
+
+  /** How the observations are missing in a generated time series. */
+  public enum GapPattern {
+	/** Complete time series. */
+	NONE,
+	/** Isolated missing hours (repaired by linear interpolation). */
+	SINGLE,
+	/** Sequences of several missing hours (repaired with the seasonal naive method). */
+	BURST,
+	/** Both single missing hours and sequences. */
+	MIXED
+  }
+
+  private static final String BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz";
+
+  private final Random random;
+
+  public DataGenerator(long seed) {
+	this.random = new Random(seed);
+  }
+
+  /**
+   * Writes a `.ts` file covering `hours` hours, with a daily attendance
+   * pattern and missing observations according to `pattern`.
+   */
+  public File timeSeriesFile(File file, int hours, GapPattern pattern) throws IOException, ParseException {
+	DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	long time = df.parse("2014-01-06 00:00:00").getTime();
+
+	BufferedWriter out = new BufferedWriter(new FileWriter(file));
+	out.write("Date,here_now,hour_checkins,total_checkins\n");
+
+	int total = 1000 + random.nextInt(50000);
+	for(int h = 0 ; h < hours ; ++h, time += 3600000) {
+	  int hour_of_day = h % 24;
+	  int here_now    = Math.max(0, (int) Math.round(8*Math.sin(Math.PI*hour_of_day/24) + random.nextGaussian()*2));
+	  int checkins    = random.nextInt(here_now+1);
+	  total += checkins;
+
+	  // The first and last observations are never missing.
+	  if(h > 24 && h < hours-1 && isMissing(h, pattern))
+		continue;
+
+	  out.write(df.format(time)+","+here_now+","+checkins+","+total+"\n");
+	}
+	out.close();
+
+	return file;
+  }
+
+  /**
+   * Writes a forecast file (as generated by the batch R process) covering
+   * `hours` hours, with a few missing (NaN) values.
+   */
+  public File forecastFile(File file, int hours) throws IOException, ParseException {
+	DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	long time = df.parse("2014-03-03 00:00:00").getTime();
+
+	BufferedWriter out = new BufferedWriter(new FileWriter(file));
+	for(int h = 0 ; h < hours ; ++h, time += 3600000)
+	  out.write(df.format(time)+","+(random.nextInt(50) == 0 ? "NaN" : String.valueOf(Math.max(0, 8*Math.sin(Math.PI*(h%24)/24) + random.nextGaussian())))+"\n");
+	out.close();
+
+	return file;
+  }
+
+  private int burst_left = 0;
+
+  private boolean isMissing(int hour, GapPattern pattern) {
+	if(burst_left > 0) {
+	  burst_left--;
+	  return true;
+	}
+
+	switch(pattern) {
+	case SINGLE:
+	  return random.nextInt(50) == 0;
+	case BURST:
+	  if(random.nextInt(200) == 0) {
+		burst_left = 2 + random.nextInt(6);
+		return true;
+	  }
+	  return false;
+	case MIXED:
+	  return isMissing(hour, random.nextBoolean() ? GapPattern.SINGLE : GapPattern.BURST);
+	default:
+	  return false;
+	}
+  }
+
+  /** Returns a random Foursquare venue ID. */
+  public String venueId() {
+	StringBuilder id = new StringBuilder();
+	for(int i = 0 ; i < 24 ; ++i)
+	  id.append("0123456789abcdef".charAt(random.nextInt(16)));
+	return id.toString();
+  }
+
+  private String word() {
+	StringBuilder word = new StringBuilder();
+	for(int i = 3 + random.nextInt(8) ; i > 0 ; --i)
+	  word.append(BASE32.charAt(10 + random.nextInt(22)));
+	return word.toString();
+  }
+
+  /**
+   * Returns a venue as returned by the `venues/VENUE_ID` endpoint, with
+   * categories, location, statistics and photos.
+   */
+  public String venueJson(double lat, double lng) {
+	String id = venueId();
+	StringBuilder json = new StringBuilder();
+
+	json.append("{\"id\":\"").append(id).append("\",\"name\":\"").append(word()).append(' ').append(word()).append("\",");
+	json.append("\"contact\":{\"phone\":\"+442033712300\",\"formattedPhone\":\"+44 20 3371 2300\",\"twitter\":\"").append(word()).append("\"},");
+	json.append("\"location\":{\"address\":\"").append(word()).append(" Way\",\"lat\":").append(lat).append(",\"lng\":").append(lng)
+		.append(",\"distance\":").append(random.nextInt(5000)).append(",\"postalCode\":\"W12 7GF\",\"city\":\"London\",\"state\":\"Greater London\",\"country\":\"United Kingdom\",\"cc\":\"GB\"},");
+	json.append("\"canonicalUrl\":\"https://foursquare.com/v/").append(id).append("\",");
+	json.append("\"categories\":[");
+	for(int c = 1 + random.nextInt(3) ; c > 0 ; --c) {
+	  json.append("{\"id\":\"").append(venueId()).append("\",\"name\":\"").append(word()).append("\",\"pluralName\":\"").append(word())
+		  .append("\",\"shortName\":\"").append(word()).append("\",\"icon\":{\"prefix\":\"https://foursquare.com/img/categories_v2/shops/")
+		  .append(word()).append("_\",\"suffix\":\".png\"},\"primary\":true}").append(c > 1 ? "," : "");
+	}
+	json.append("],\"verified\":true,\"restricted\":true,");
+	json.append("\"stats\":{\"checkinsCount\":").append(random.nextInt(100000)).append(",\"usersCount\":").append(random.nextInt(50000))
+		.append(",\"tipCount\":").append(random.nextInt(500)).append("},");
+	json.append("\"url\":\"http://").append(word()).append(".com/\",\"likes\":{\"count\":").append(random.nextInt(1000)).append(",\"groups\":[]},");
+	json.append("\"rating\":").append(random.nextInt(100)/10.0).append(",");
+	int here_now = random.nextInt(30);
+	json.append("\"hereNow\":{\"count\":").append(here_now).append(",\"groups\":[{\"type\":\"others\",\"name\":\"Other people here\",\"count\":")
+		.append(here_now).append(",\"items\":[]}]},");
+	json.append("\"photos\":{\"count\":10,\"groups\":[{\"type\":\"venue\",\"name\":\"Venue photos\",\"count\":10,\"items\":[");
+	for(int p = 5 ; p > 0 ; --p)
+	  json.append("{\"id\":\"").append(venueId()).append("\",\"prefix\":\"https://irs0.4sqi.net/img/general/\",\"suffix\":\"/")
+		  .append(word()).append(".jpg\",\"width\":720,\"height\":960}").append(p > 1 ? "," : "");
+	json.append("]}]},\"venuePage\":{\"id\":\"").append(random.nextInt(100000000)).append("\"}}");
+
+	return json.toString();
+  }
+
+  /** Returns a venue located at a random place around London. */
+  public String venueJson() {
+	return venueJson(51.3 + random.nextDouble()*0.4, -0.5 + random.nextDouble()*0.7);
+  }
+
+  /** Returns a complete API response containing a venue. */
+  public String venueResponse() {
+	return "{\"meta\":{\"code\":200},\"notifications\":[{\"type\":\"notificationTray\",\"item\":{\"unreadCount\":0}}],\"response\":{\"venue\":"+venueJson()+"}}";
+  }
+
+  /** Writes a `venues.json` file (as produced by `GetAllVenues`) with `n` venues. */
+  public File venuesFile(File file, int n) throws IOException {
+	BufferedWriter out = new BufferedWriter(new FileWriter(file));
+	for(int i = 0 ; i < n ; ++i)
+	  out.write(venueJson()+"\n");
+	out.close();
+
+	return file;
+  }
+
+  /** Returns `n` random coordinates, as {lat, lng} couples. */
+  public double[][] coordinates(int n) {
+	double[][] coordinates = new double[n][2];
+	for(int i = 0 ; i < n ; ++i) {
+	  coordinates[i][0] = -90  + random.nextDouble()*180;
+	  coordinates[i][1] = -180 + random.nextDouble()*360;
+	}
+	return coordinates;
+  }
+}
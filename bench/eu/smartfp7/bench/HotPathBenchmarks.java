@@ -0,0 +1,244 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import eu.smartfp7.bench.DataGenerator.GapPattern;
+import eu.smartfp7.foursquare.FilterVenues;
+import eu.smartfp7.foursquare.ForecastMatrix;
+import eu.smartfp7.foursquare.RTimeSeries;
+import eu.smartfp7.foursquare.Venue;
+import eu.smartfp7.foursquare.VenueCatalog;
+import eu.smartfp7.foursquare.VenueStats;
+import eu.smartfp7.geo.GeoUtil;
+
+/**
+ * Benchmarks of the hot paths of the crawler and of the repair of the time
+ * series: parsing of the `.ts` files and detection of their gaps, repair,
+ * parsing of the venues, geohashes, selection of the crawled venues and
+ * probabilities of the forecasts.
+ *
+ * Usage: HotPathBenchmarks [-w warmup_ms] [-m measurement_ms] [regex]
+ * Only the benchmarks whose name matches the regex are run.
+ *
+ * `missingDates` and `generateMissingPoints` modify (or cache in) the time
+ * series, hence their benchmarks parse the file at each operation: the cost
+ * of the parsing alone is given by the `RTimeSeries.<init>` benchmark of the
+ * same file.
+ */
+public class HotPathBenchmarks {
+
+  private static final int[] LENGTHS = {168, 2160, 8760}; // a week, 3 months and a year
+
+  public static void main(String[] args) throws Exception {
+	long   warmup_ms      = 2000;
+	long   measurement_ms = 5000;
+	String filter         = ".*";
+
+	for(int i = 0 ; i < args.length ; ++i) {
+	  if(args[i].equals("-w"))
+		warmup_ms = Long.parseLong(args[++i]);
+	  else if(args[i].equals("-m"))
+		measurement_ms = Long.parseLong(args[++i]);
+	  else
+		filter = args[i];
+	}
+
+	File folder = Files.createTempDirectory("fsbench").toFile();
+	List<Benchmark> benchmarks = createBenchmarks(folder, new DataGenerator(42));
+
+	System.out.println("Warmup: "+warmup_ms+"ms, measurement: "+measurement_ms+"ms");
+	for(Benchmark benchmark: benchmarks)
+	  if(benchmark.getName().matches(filter))
+		System.out.println(benchmark.run(warmup_ms, measurement_ms));
+
+	for(File file: folder.listFiles())
+	  file.delete();
+	folder.delete();
+  }
+
+  private static List<Benchmark> createBenchmarks(File folder, final DataGenerator generator) throws Exception {
+	List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+	// Time series.
+	for(int length: LENGTHS) {
+	  for(GapPattern pattern: GapPattern.values()) {
+		final String file = generator.timeSeriesFile(new File(folder, length+"_"+pattern+".ts"), length, pattern).getAbsolutePath();
+		String suffix = "("+length+"h, "+pattern.toString().toLowerCase()+")";
+
+		benchmarks.add(new Benchmark("RTimeSeries.<init>"+suffix) {
+		  protected Object operation() throws Exception {
+			return new RTimeSeries(file);
+		  }
+		});
+
+		benchmarks.add(new Benchmark("RTimeSeries.missingDates"+suffix) {
+		  protected Object operation() throws Exception {
+			return new RTimeSeries(file).missingDates();
+		  }
+		});
+
+		benchmarks.add(new Benchmark("RTimeSeries.generateMissingPoints"+suffix) {
+		  protected Object operation() throws Exception {
+			RTimeSeries ts = new RTimeSeries(file);
+			ts.generateMissingPoints();
+			return ts;
+		  }
+		});
+
+		benchmarks.add(new Benchmark("RTimeSeries.toString"+suffix) {
+		  private RTimeSeries ts;
+
+		  protected void setup() throws Exception {
+			ts = new RTimeSeries(file);
+			ts.generateMissingPoints();
+		  }
+
+		  protected Object operation() {
+			return ts.toString();
+		  }
+		});
+	  }
+	}
+
+	// Venues.
+	final String[] venues    = new String[1024];
+	final String[] responses = new String[1024];
+	for(int i = 0 ; i < venues.length ; ++i) {
+	  venues[i]    = generator.venueJson();
+	  responses[i] = generator.venueResponse();
+	}
+
+	benchmarks.add(new Benchmark("Venue.<init>") {
+	  private int i = 0;
+
+	  protected Object operation() {
+		return new Venue(venues[i++ & 1023]);
+	  }
+	});
+
+	benchmarks.add(new Benchmark("VenueStats.parse") {
+	  private int i = 0;
+
+	  protected Object operation() throws Exception {
+		return VenueStats.parse(new StringReader(responses[i++ & 1023]));
+	  }
+	});
+
+	// Geohashes.
+	final double[][] coordinates = generator.coordinates(1024);
+	for(final int precision: new int[]{7, 12}) {
+	  benchmarks.add(new Benchmark("GeoUtil.geoHash("+precision+")") {
+		private int i = 0;
+
+		protected Object operation() {
+		  double[] point = coordinates[i++ & 1023];
+		  return GeoUtil.geoHash(point[1], point[0], precision);
+		}
+	  });
+	  benchmarks.add(new Benchmark("GeoUtil.encodeGeoHash("+precision+")") {
+		private int i = 0;
+
+		protected Object operation() {
+		  double[] point = coordinates[i++ & 1023];
+		  return GeoUtil.encodeGeoHash(point[1], point[0], precision);
+		}
+	  });
+	}
+
+	// Selection of the crawled venues.
+	for(final int n: new int[]{10000, 50000}) {
+	  final File file = generator.venuesFile(new File(folder, "venues_"+n+".json"), n);
+
+	  benchmarks.add(new Benchmark("FilterVenues.selectVenues("+n+" venues)") {
+		protected Object operation() throws Exception {
+		  BufferedReader buffer = new BufferedReader(new FileReader(file));
+		  try {
+			return FilterVenues.selectVenues(buffer, 3000, 1950);
+		  } finally {
+			buffer.close();
+		  }
+		}
+	  });
+	}
+
+	// Venue catalog: listing the venues and filtering them on their checkins.
+	final File catalog_file = new File(folder, "venues_50000.catalog");
+	benchmarks.add(new Benchmark("VenueCatalog.venues(50000 venues)") {
+	  private VenueCatalog catalog;
+
+	  protected void setup() throws Exception {
+		catalog = VenueCatalog.open(catalog_file.getPath());
+		for(int i = catalog.size() ; i < 50000 ; ++i) {
+		  String json = generator.venueJson();
+		  VenueStats venue = VenueStats.parseVenue(new StringReader(json));
+		  catalog.put(venue.getId(), venue.getLat(), venue.getLng(), venue.getCheckincount(), json);
+		}
+	  }
+
+	  protected Object operation() throws Exception {
+		int popular = 0;
+		for(Venue venue: catalog.venues())
+		  if(venue.getCheckincount() >= 50000)
+			popular++;
+		return popular;
+	  }
+	});
+
+	// Forecasts: probabilities of all the venues of a city. The forecast files
+	// are only written if one of these benchmarks is run.
+	final File             forecast_folder = folder;
+	final ForecastMatrix[] forecasts       = new ForecastMatrix[1];
+	abstract class ForecastBenchmark extends Benchmark {
+	  ForecastBenchmark(String name) {
+		super(name);
+	  }
+
+	  protected void setup() throws Exception {
+		if(forecasts[0] != null)
+		  return;
+
+		List<File> files = new ArrayList<File>();
+		for(int i = 0 ; i < 5000 ; ++i)
+		  files.add(generator.forecastFile(new File(forecast_folder, "forecast_"+i+".csv"), 168));
+		forecasts[0] = ForecastMatrix.load(files);
+	  }
+	}
+
+	benchmarks.add(new ForecastBenchmark("ForecastMatrix.computeProbs(5000 venues x 168 hours)") {
+	  protected Object operation() {
+		forecasts[0].computeProbs(2.5, 0.01);
+		return forecasts[0].getProb(0, 0);
+	  }
+	});
+	benchmarks.add(new ForecastBenchmark("ForecastMatrix.score(5000 venues)") {
+	  private int i = 0;
+
+	  protected Object operation() {
+		return forecasts[0].score(i++ % 168, 2.5, 0.01);
+	  }
+	});
+
+	return benchmarks;
+  }
+}
@@ -0,0 +1,263 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import eu.smartfp7.foursquare.AttendanceCrawler;
+import eu.smartfp7.foursquare.FoursquareAPIException;
+import eu.smartfp7.foursquare.utils.APIAccount;
+import eu.smartfp7.foursquare.utils.CredentialPool;
+import eu.smartfp7.foursquare.utils.RequestPacer;
+import eu.smartfp7.foursquare.utils.Settings;
+
+/**
+ * Checks the pacing of the API calls against a local stub of the Foursquare
+ * API, which serves the `venues/VENUE_ID` endpoint with `X-RateLimit-Remaining`
+ * and `X-RateLimit-Reset` headers.
+ *
+ * The stub uses short windows (20 seconds by default) instead of hours, and
+ * runs three of them: in the first and the last one, the accounts have plenty
+ * of calls; in the second one, they only have a few (as if another program
+ * used them), and are answered with 429 errors once they are exhausted. The
+ * calls of the crawler go through the same pool of accounts, pacer and
+ * client as the attendance crawler: their rate must be lowered during the
+ * second window, so that the few calls last until its end, then go back to
+ * the maximum rate in the third one.
+ *
+ * The `api_url` property of `etc/settings.json` must point to the stub, e.g.
+ * "http://127.0.0.1:9480/v2", and the accounts of the city are the ones of
+ * the settings (their credentials are not checked).
+ *
+ * Usage: PacingStub [-d window_seconds] [-q constrained_quota] [-n venues] city
+ */
+public class PacingStub {
+
+  private static final int PLENTY = 100000;
+
+  /** The windows of the stub, and the calls left to each account in them. */
+  private static class Stub implements HttpHandler {
+	private final long  start;      // Epoch milliseconds, a whole second.
+	private final long  window_ms;
+	private final int[] quotas;
+
+	// The calls made by each account (client_id) during its last window.
+	private final Map<String,Integer> calls    = new HashMap<String, Integer>();
+	private final Map<String,Long>    windows  = new HashMap<String, Long>();
+	private final AtomicLong          rejected = new AtomicLong();
+
+	Stub(long start, long window_ms, int[] quotas) {
+	  this.start     = start;
+	  this.window_ms = window_ms;
+	  this.quotas    = quotas;
+	}
+
+	int getWindow(long now) {
+	  return (int) Math.min(quotas.length-1, Math.max(0, (now - start) / window_ms));
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+	  long   now       = System.currentTimeMillis();
+	  int    window    = getWindow(now);
+	  long   reset     = start + (window+1) * window_ms;
+	  String client_id = getParameter(exchange.getRequestURI(), "client_id");
+	  String path      = exchange.getRequestURI().getPath();
+	  String venue_id  = path.substring(path.lastIndexOf('/')+1);
+
+	  // Each call takes one unit of the quota of its account for the window.
+	  int     remaining;
+	  boolean accepted;
+	  synchronized(this) {
+		Long previous = windows.put(client_id, (long) window);
+		int  made     = previous == null || previous != window ? 0 : calls.get(client_id);
+		accepted      = made < quotas[window];
+		if(accepted)
+		  made++;
+		calls.put(client_id, made);
+		remaining = quotas[window] - made;
+	  }
+
+	  String body;
+	  if(accepted)
+		body = "{\"meta\":{\"code\":200},\"response\":{\"venue\":{\"id\":\""+venue_id+"\",\"stats\":{\"checkinsCount\":1000},\"hereNow\":{\"count\":3}}}}";
+	  else {
+		body = "{\"meta\":{\"code\":429,\"errorType\":\"quota_exceeded\",\"errorDetail\":\"Quota exceeded\"},\"response\":{}}";
+		rejected.incrementAndGet();
+	  }
+
+	  byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+	  exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+	  exchange.getResponseHeaders().set("X-RateLimit-Limit", Integer.toString(quotas[window]));
+	  exchange.getResponseHeaders().set("X-RateLimit-Remaining", Integer.toString(remaining));
+	  exchange.getResponseHeaders().set("X-RateLimit-Reset", Long.toString(reset / 1000));
+	  exchange.sendResponseHeaders(accepted ? 200 : 429, bytes.length);
+	  OutputStream out = exchange.getResponseBody();
+	  try {
+		out.write(bytes);
+	  } finally {
+		out.close();
+	  }
+	}
+
+	long getRejected() {
+	  return rejected.get();
+	}
+  }
+
+  private static String getParameter(URI uri, String name) {
+	String query = uri.getRawQuery();
+	if(query != null)
+	  for(String parameter: query.split("&"))
+		if(parameter.startsWith(name+"="))
+		  return parameter.substring(name.length()+1);
+	return "";
+  }
+
+  public static void main(String[] args) throws Exception {
+	long   window_s = 20;
+	int    quota    = 150;
+	int    venues   = 1000;
+	String city     = null;
+
+	for(int i = 0 ; i < args.length ; ++i) {
+	  if(args[i].equals("-d"))
+		window_s = Long.parseLong(args[++i]);
+	  else if(args[i].equals("-q"))
+		quota = Integer.parseInt(args[++i]);
+	  else if(args[i].equals("-n"))
+		venues = Integer.parseInt(args[++i]);
+	  else
+		city = args[i];
+	}
+
+	Settings settings = Settings.getInstance();
+	URI api = new URI(settings.getAPIURL());
+	if(city == null || !"127.0.0.1".equals(api.getHost()) && !"localhost".equals(api.getHost()) || api.getPort() < 0) {
+	  System.err.println("Usage: PacingStub [-d window_seconds] [-q constrained_quota] [-n venues] city");
+	  System.err.println("The api_url of etc/settings.json must point to the local stub, e.g. http://127.0.0.1:9480/v2");
+	  System.exit(1);
+	}
+
+	final int[] quotas    = {PLENTY, quota, PLENTY};
+	final long  window_ms = window_s * 1000;
+	final long  start     = (System.currentTimeMillis()/1000 + 2) * 1000;
+	final long  end       = start + quotas.length * window_ms;
+
+	final Stub stub = new Stub(start, window_ms, quotas);
+	HttpServer server = HttpServer.create(new InetSocketAddress(api.getHost(), api.getPort()), 64);
+	server.createContext(api.getPath() + "/venues/", stub);
+	server.start();
+
+	final CredentialPool pool = new CredentialPool(settings, Arrays.asList(city));
+	final List<String> venue_ids = new ArrayList<String>();
+	for(int v = 0 ; v < venues ; ++v) {
+	  venue_ids.add("venue"+v);
+	  pool.assign(city, "venue"+v);
+	}
+	final RequestPacer pacer = new RequestPacer(pool.getAccounts(), settings.getMaxRequestsPerSecond());
+
+	final AtomicInteger next   = new AtomicInteger();
+	final AtomicLong    made   = new AtomicLong();
+	final AtomicLong    failed = new AtomicLong();
+	final AtomicLong    denied = new AtomicLong();
+
+	System.out.println(pool.getAccounts().size()+" account(s), "+venues+" venues, max "+settings.getMaxRequestsPerSecond()
+					   +" calls/s, windows of "+window_s+"s with "+Arrays.toString(quotas)+" calls per account.");
+
+	while(System.currentTimeMillis() < start)
+	  Thread.sleep(10);
+
+	List<Thread> threads = new ArrayList<Thread>();
+	for(int t = 0 ; t < settings.getCrawlThreads() ; ++t) {
+	  Thread thread = new Thread() {
+		@Override
+		public void run() {
+		  try {
+			while(System.currentTimeMillis() < end) {
+			  pacer.acquire();
+
+			  String     venue_id = venue_ids.get((next.getAndIncrement() & 0x7fffffff) % venue_ids.size());
+			  APIAccount account  = pool.acquire(venue_id, System.currentTimeMillis());
+			  if(account == null) {
+				// No call left: as the crawler, the venue waits.
+				denied.incrementAndGet();
+				Thread.sleep(100);
+				continue;
+			  }
+
+			  try {
+				AttendanceCrawler.getFoursquareVenueStatsById(venue_id, account);
+				made.incrementAndGet();
+			  } catch (FoursquareAPIException e) {
+				failed.incrementAndGet();
+			  } catch (IOException e) {
+				failed.incrementAndGet();
+			  }
+			}
+		  } catch (InterruptedException e) {
+			// Stopped.
+		  }
+		}
+	  };
+	  thread.start();
+	  threads.add(thread);
+	}
+
+	long[] window_calls = new long[quotas.length];
+	long   previous     = 0;
+	for(long second = 1 ; start + second*1000 <= end ; ++second) {
+	  Thread.sleep(Math.max(0, start + second*1000 - System.currentTimeMillis()));
+
+	  long calls = made.get();
+	  int  window = stub.getWindow(start + second*1000 - 1);
+	  window_calls[window] += calls - previous;
+
+	  long remaining = 0;
+	  for(APIAccount account: pool.getAccounts())
+		remaining += account.remaining(System.currentTimeMillis());
+
+	  System.out.println(String.format("%4ds  window %d  %5d calls/s  pacer %6.1f calls/s  %6d calls left  %d errors (%d rejected by the stub)",
+		  second, window+1, calls - previous, pacer.getRate(), remaining, failed.get(), stub.getRejected()));
+	  previous = calls;
+	}
+
+	for(Thread thread: threads)
+	  thread.join();
+	server.stop(0);
+
+	System.out.println();
+	for(int w = 0 ; w < quotas.length ; ++w)
+	  System.out.println(String.format("Window %d (%d calls per account): %.1f calls/s", w+1, quotas[w], window_calls[w] / (double) window_s));
+	System.out.println(made.get()+" calls, "+failed.get()+" errors ("+stub.getRejected()+" rejected by the stub), "
+					   +denied.get()+" calls not made for lack of quota.");
+  }
+}
@@ -0,0 +1,481 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.DecimalFormat;
+import java.text.ParseException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import eu.smartfp7.foursquare.utils.Settings;
+
+/**
+ * A compressed, read-only version of the `.ts` files (`.tsa` extension), to
+ * archive the history of the venues.
+ *
+ * The observations are split in blocks of (at most) 512 consecutive
+ * observations, which are encoded one after the other:
+ *   - the hours by their delta-of-delta (0 when the observations are one hour
+ *     apart, as most of them are),
+ *   - each value by its difference with the value of the previous
+ *     observation, as an integer when both are integers (e.g. total_checkins,
+ *     which only goes up), in tenths when they have one decimal (as the
+ *     repaired values), or else by the XOR of their bits.
+ * Every number is written as a zig-zag varint, so that the small ones take a
+ * single byte, and each block is then deflated.
+ *
+ * The file starts with "FSTA", a version and the number of blocks, followed
+ * by the index of the blocks (first and last hours, offset and length in the
+ * file, length once inflated and number of observations), then the blocks.
+ * A range of hours is read by a `Cursor`, which only reads and inflates the
+ * blocks that overlap it, one at a time.
+ *
+ * Like in `BinaryTimeSeries`, the hours are epoch-hours of the local dates of
+ * the `.ts` files.
+ */
+public class ArchivedTimeSeries implements Closeable {
+
+  public static final String EXTENSION = ".tsa";
+
+  static final int MAGIC      = 0x46535441; // "FSTA"
+  static final int VERSION    = 1;
+  static final int BLOCK_SIZE = 512;
+
+  private static final int HEADER_SIZE = 12;
+  private static final int ENTRY_SIZE  = 8 + 8 + 8 + 4 + 4 + 4;
+
+  // The encodings of a value (the two lowest bits of its varint).
+  private static final int INTEGER = 0;
+  private static final int TENTHS  = 1;
+  private static final int BITS    = 2;
+
+  private final String      file;
+  private final FileChannel channel;
+
+  // The index of the blocks.
+  private final long[] first_hours;
+  private final long[] last_hours;
+  private final long[] offsets;
+  private final int[]  lengths;
+  private final int[]  raw_lengths;
+  private final int[]  counts;
+  private final int    size;
+
+  /** Opens a `.tsa` file and reads the index of its blocks. */
+  public ArchivedTimeSeries(String file) throws IOException {
+	this.file    = file;
+	this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+
+	try {
+	  ByteBuffer header = read(0, HEADER_SIZE);
+	  if(header.getInt(0) != MAGIC)
+		throw new IOException(file+" is not an archived time series file.");
+	  if(header.getInt(4) != VERSION)
+		throw new IOException("Unsupported archived time series version "+header.getInt(4)+" in "+file+".");
+
+	  int blocks = header.getInt(8);
+	  if(blocks < 0 || HEADER_SIZE + (long) blocks * ENTRY_SIZE > channel.size())
+		throw new IOException(file+" is truncated.");
+
+	  first_hours = new long[blocks];
+	  last_hours  = new long[blocks];
+	  offsets     = new long[blocks];
+	  lengths     = new int[blocks];
+	  raw_lengths = new int[blocks];
+	  counts      = new int[blocks];
+
+	  ByteBuffer index = read(HEADER_SIZE, blocks * ENTRY_SIZE);
+	  int total = 0;
+	  for(int b = 0 ; b < blocks ; ++b) {
+		first_hours[b] = index.getLong();
+		last_hours[b]  = index.getLong();
+		offsets[b]     = index.getLong();
+		lengths[b]     = index.getInt();
+		raw_lengths[b] = index.getInt();
+		counts[b]      = index.getInt();
+		total += counts[b];
+	  }
+	  size = total;
+	} catch (IOException e) {
+	  channel.close();
+	  throw e;
+	}
+  }
+
+  private ByteBuffer read(long position, int length) throws IOException {
+	ByteBuffer bytes = ByteBuffer.allocate(length);
+	while(bytes.hasRemaining())
+	  if(channel.read(bytes, position + bytes.position()) < 0)
+		throw new IOException(file+" is truncated.");
+	bytes.flip();
+	return bytes;
+  }
+
+  /** Returns the number of observations. */
+  public int size() {
+	return size;
+  }
+
+  public int getBlockCount() {
+	return counts.length;
+  }
+
+  /** Returns the epoch-hour of the first observation (meaningless if there is none). */
+  public long getFirstHour() {
+	return counts.length == 0 ? 0 : first_hours[0];
+  }
+
+  /** Returns the epoch-hour of the last observation (meaningless if there is none). */
+  public long getLastHour() {
+	return counts.length == 0 ? -1 : last_hours[counts.length-1];
+  }
+
+  /** Returns a cursor over the observations of the hours in [from_hour, to_hour[. */
+  public Cursor cursor(long from_hour, long to_hour) {
+	// The first block that ends after from_hour.
+	int low = 0, high = counts.length;
+	while(low < high) {
+	  int middle = (low + high) >>> 1;
+	  if(last_hours[middle] < from_hour)
+		low = middle + 1;
+	  else
+		high = middle;
+	}
+	return new Cursor(low, from_hour, to_hour);
+  }
+
+  /** Returns the observations of the hours in [from_hour, to_hour[. */
+  public CompactTimeSeries read(long from_hour, long to_hour) throws IOException {
+	CompactTimeSeries.Builder builder = new CompactTimeSeries.Builder();
+	for(Cursor cursor = cursor(from_hour, to_hour) ; cursor.next() ; )
+	  builder.add(cursor.getHour(), cursor.getHereNow(), cursor.getHourCheckins(), cursor.getTotalCheckins());
+	return builder.build();
+  }
+
+  @Override
+  public void close() throws IOException {
+	channel.close();
+  }
+
+  /**
+   * Iterates over the observations of a range of hours. The blocks are read
+   * and inflated when the cursor reaches them.
+   */
+  public class Cursor {
+	private final long from_hour;
+	private final long to_hour;
+
+	private int     next_block;
+	private byte[]  block     = new byte[0];
+	private int     position  = 0;
+	private int     remaining = 0;
+	private boolean first     = false;
+	private boolean over      = false;
+
+	private long   hour;
+	private long   delta;
+	private double here_now;
+	private double hour_checkins;
+	private double total_checkins;
+
+	Cursor(int first_block, long from_hour, long to_hour) {
+	  this.next_block = first_block;
+	  this.from_hour  = from_hour;
+	  this.to_hour    = to_hour;
+	}
+
+	/** Moves to the next observation of the range. Returns false if there is none. */
+	public boolean next() throws IOException {
+	  while(!over) {
+		if(remaining == 0 && !nextBlock())
+		  break;
+
+		decode();
+		if(hour >= to_hour)
+		  break;
+		if(hour >= from_hour)
+		  return true;
+	  }
+
+	  over = true;
+	  return false;
+	}
+
+	private boolean nextBlock() throws IOException {
+	  if(next_block >= counts.length || first_hours[next_block] >= to_hour)
+		return false;
+
+	  int b = next_block++;
+	  ByteBuffer compressed = read(offsets[b], lengths[b]);
+
+	  if(block.length < raw_lengths[b])
+		block = new byte[raw_lengths[b]];
+
+	  Inflater inflater = new Inflater();
+	  try {
+		inflater.setInput(compressed.array(), 0, lengths[b]);
+		if(inflater.inflate(block, 0, raw_lengths[b]) != raw_lengths[b])
+		  throw new IOException("Corrupted block "+b+" in "+file+".");
+	  } catch (DataFormatException e) {
+		throw new IOException("Corrupted block "+b+" in "+file+": "+e.getMessage());
+	  } finally {
+		inflater.end();
+	  }
+
+	  // The first observation of a block is at its first hour, and the
+	  // values of a block do not depend on the previous ones.
+	  position       = 0;
+	  remaining      = counts[b];
+	  hour           = first_hours[b];
+	  delta          = 0;
+	  here_now       = 0;
+	  hour_checkins  = 0;
+	  total_checkins = 0;
+	  first          = true;
+	  return true;
+	}
+
+	private void decode() {
+	  if(first)
+		first = false;
+	  else {
+		delta += unzigzag(readVarint());
+		hour  += delta;
+	  }
+
+	  here_now       = (float) decodeValue(here_now);
+	  hour_checkins  = (float) decodeValue(hour_checkins);
+	  total_checkins = decodeValue(total_checkins);
+	  remaining--;
+	}
+
+	private double decodeValue(double previous) {
+	  long value = readVarint();
+	  switch((int) (value & 3)) {
+	  case INTEGER:
+		return previous + unzigzag(value >>> 2);
+	  case TENTHS:
+		return (Math.rint(previous*10) + unzigzag(value >>> 2)) / 10;
+	  default:
+		return Double.longBitsToDouble(Double.doubleToRawLongBits(previous) ^ readVarint());
+	  }
+	}
+
+	private long readVarint() {
+	  long value = 0;
+	  for(int shift = 0 ; ; shift += 7) {
+		byte b = block[position++];
+		value |= (long) (b & 0x7f) << shift;
+		if(b >= 0)
+		  return value;
+	  }
+	}
+
+	/** Returns the epoch-hour of the current observation. */
+	public long getHour() {
+	  return hour;
+	}
+
+	public float getHereNow() {
+	  return (float) here_now;
+	}
+
+	public float getHourCheckins() {
+	  return (float) hour_checkins;
+	}
+
+	public double getTotalCheckins() {
+	  return total_checkins;
+	}
+  }
+
+  /** Writes a series in a `.tsa` file (through a temporary file, which then replaces it atomically). */
+  public static void write(String file, CompactTimeSeries series) throws IOException {
+	int blocks = (series.size() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+	ByteArrayOutputStream index = new ByteArrayOutputStream(blocks * ENTRY_SIZE);
+	ByteArrayOutputStream data  = new ByteArrayOutputStream();
+	DataOutputStream      entry = new DataOutputStream(index);
+
+	ByteArrayOutputStream raw      = new ByteArrayOutputStream();
+	byte[]                buffer   = new byte[4096];
+	Deflater              deflater = new Deflater(Deflater.BEST_COMPRESSION);
+	try {
+	  long offset = HEADER_SIZE + (long) blocks * ENTRY_SIZE;
+
+	  for(int start = 0 ; start < series.size() ; start += BLOCK_SIZE) {
+		int end = Math.min(series.size(), start + BLOCK_SIZE);
+
+		raw.reset();
+		encodeBlock(raw, series, start, end);
+
+		deflater.reset();
+		deflater.setInput(raw.toByteArray());
+		deflater.finish();
+		int length = 0;
+		while(!deflater.finished()) {
+		  int n = deflater.deflate(buffer);
+		  data.write(buffer, 0, n);
+		  length += n;
+		}
+
+		entry.writeLong(series.getHour(start));
+		entry.writeLong(series.getHour(end-1));
+		entry.writeLong(offset);
+		entry.writeInt(length);
+		entry.writeInt(raw.size());
+		entry.writeInt(end - start);
+		offset += length;
+	  }
+	} finally {
+	  deflater.end();
+	}
+
+	File tmp = new File(file + ".tmp");
+	DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+	try {
+	  out.writeInt(MAGIC);
+	  out.writeInt(VERSION);
+	  out.writeInt(blocks);
+	  index.writeTo(out);
+	  data.writeTo(out);
+	} finally {
+	  out.close();
+	}
+
+	Files.move(tmp.toPath(), Paths.get(file), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static void encodeBlock(ByteArrayOutputStream out, CompactTimeSeries series, int start, int end) {
+	long   delta          = 0;
+	double here_now       = 0;
+	double hour_checkins  = 0;
+	double total_checkins = 0;
+
+	for(int i = start ; i < end ; ++i) {
+	  if(i > start) {
+		long current = series.getHour(i) - series.getHour(i-1);
+		writeVarint(out, zigzag(current - delta));
+		delta = current;
+	  }
+
+	  here_now       = encodeValue(out, series.getHereNow(i), here_now, true);
+	  hour_checkins  = encodeValue(out, series.getHourCheckins(i), hour_checkins, true);
+	  total_checkins = encodeValue(out, series.getTotalCheckins(i), total_checkins, false);
+	}
+  }
+
+  /**
+   * Writes a value as its difference with the previous one, and returns it
+   * (as it will be decoded). `single` is true for the values stored as floats.
+   */
+  private static double encodeValue(ByteArrayOutputStream out, double value, double previous, boolean single) {
+	// Integers (the common case): both values must be integers.
+	if(value == Math.rint(value) && previous == Math.rint(previous) && Math.abs(value) < 1e15 && Math.abs(previous) < 1e15) {
+	  writeVarint(out, zigzag((long) value - (long) previous) << 2 | INTEGER);
+	  return value;
+	}
+
+	// One decimal: the value must be decoded exactly.
+	double tenths = Math.rint(value*10);
+	double scaled = Math.rint(previous*10);
+	if(Math.abs(tenths) < 1e15 && Math.abs(scaled) < 1e15) {
+	  double decoded = (scaled + ((long) tenths - (long) scaled)) / 10;
+	  if(single ? (float) decoded == (float) value : decoded == value) {
+		writeVarint(out, zigzag((long) tenths - (long) scaled) << 2 | TENTHS);
+		return single ? (float) decoded : decoded;
+	  }
+	}
+
+	writeVarint(out, BITS);
+	writeVarint(out, Double.doubleToRawLongBits(previous) ^ Double.doubleToRawLongBits(value));
+	return value;
+  }
+
+  private static long zigzag(long value) {
+	return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+	return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static void writeVarint(ByteArrayOutputStream out, long value) {
+	while((value & ~0x7fL) != 0) {
+	  out.write((int) ((value & 0x7f) | 0x80));
+	  value >>>= 7;
+	}
+	out.write((int) value);
+  }
+
+  /** Converts a `.ts` (or `.tsb`) file into a `.tsa` file. */
+  public static void fromCSV(String ts_file, String tsa_file) throws IOException, ParseException {
+	write(tsa_file, CompactTimeSeries.read(ts_file));
+  }
+
+  /** Converts a `.tsa` file into a `.ts` file. */
+  public static void toCSV(String tsa_file, String ts_file) throws IOException {
+	ArchivedTimeSeries series = new ArchivedTimeSeries(tsa_file);
+	DecimalFormat decf = new DecimalFormat("###.#");
+
+	FileWriter out = new FileWriter(ts_file);
+	try {
+	  out.write(ObservationWriter.HEADER);
+	  for(Cursor cursor = series.cursor(Long.MIN_VALUE, Long.MAX_VALUE) ; cursor.next() ; ) {
+		out.write(BinaryTimeSeries.toDate(cursor.getHour())+","+decf.format(cursor.getHereNow())
+			  								 +","+decf.format(cursor.getHourCheckins())
+			  								 +","+decf.format(cursor.getTotalCheckins())+"\n");
+	  }
+	} finally {
+	  out.close();
+	  series.close();
+	}
+  }
+
+  /**
+   * Converts every `.ts` file of a city into a `.tsa` file.
+   *
+   * @param args The name of the city.
+   */
+  public static void main(String[] args) throws Exception {
+	String folder = Settings.getInstance().getFolder();
+
+	long ts_bytes = 0, tsa_bytes = 0;
+	for(File file: VenueUtil.getAllVenueFilesEndingWith(folder, args[0], ".ts")) {
+	  String ts_file  = file.getAbsolutePath();
+	  String tsa_file = ts_file.substring(0, ts_file.length()-3) + EXTENSION;
+	  fromCSV(ts_file, tsa_file);
+
+	  ts_bytes  += file.length();
+	  tsa_bytes += new File(tsa_file).length();
+	}
+	System.out.println(ts_bytes+" bytes of `.ts` files archived in "+tsa_bytes+" bytes.");
+  }
+}
@@ -24,21 +24,26 @@ import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.commons.lang.time.DateUtils;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParser;
 
+import eu.smartfp7.foursquare.utils.APIAccount;
+import eu.smartfp7.foursquare.utils.APIClient;
+import eu.smartfp7.foursquare.utils.APIResponse;
+import eu.smartfp7.foursquare.utils.CredentialPool;
 import eu.smartfp7.foursquare.utils.Settings;
-import eu.smartfp7.foursquare.utils.Utils;
 
 
 /**
@@ -49,6 +54,10 @@ import eu.smartfp7.foursquare.utils.Utils;
 
 public class AttendanceCrawler {
   
+  /** This parameter represents the date of the Foursquare API version that we use. 
+   *  If you want to modify the source code, please see https://developer.foursquare.com/overview/versioning */
+  static final String VERSION_PARAM = "20140801";
+  
   /**
    * This function loads the Foursquare IDs of the venues for a given city.
    * 
@@ -143,7 +152,10 @@ public class AttendanceCrawler {
    * as the hour progresses.
    * Crawling all venues takes thus approximately 40 minutes.
    * 
+   * @deprecated The calls are now paced by the `RequestPacer` of the `CrawlEngine`,
+   * from the quota that is really left to the accounts.
    */
+  @Deprecated
   public static void intelligentWait(int total_venues, long current_time, long avg_time_spent_crawling) {
 	try {
 	  double time = (DateUtils.truncate(new Date(current_time+3600000), Calendar.HOUR).getTime()-current_time)/(double)total_venues;
@@ -159,20 +171,25 @@ public class AttendanceCrawler {
    * Gets the JSON String containing all the information about a venue, given its ID.
    */
   public static String getFoursquareVenueById(String venue_id, String id, String secret) throws IOException, FoursquareAPIException {
-	/** This parameter represents the date of the Foursquare API version that we use. 
-	 *  If you want to modify the source code, please see https://developer.foursquare.com/overview/versioning */
-	String vParam = "20140801";
-	
-	String url = "https://api.foursquare.com/v2/venues/" + venue_id + "?client_id=" + id +
-				 "&client_secret=" + secret + "&v=" + vParam ;
+	return getFoursquareVenueById(venue_id, id, secret, null);
+  }
+  
+  private static String getFoursquareVenueById(String venue_id, String id, String secret, APIAccount account) throws IOException, FoursquareAPIException {
+	String url = Settings.getInstance().getAPIURL() + "/venues/" + venue_id + "?client_id=" + id +
+				 "&client_secret=" + secret + "&v=" + VERSION_PARAM ;
 		
-	String json_response = Utils.makeAPICall(url);
-	
-	JsonElement parsed_line = new JsonParser().parse(json_response);
+	// The response is parsed directly from the connection stream.
+	APIResponse response = APIClient.getInstance().get(url, account);
+	JsonElement parsed_line;
+	try {
+	  parsed_line = new JsonParser().parse(response.getReader());
+	} finally {
+	  response.close();
+	}
 	
 	if(parsed_line.getAsJsonObject().get("response").toString().equals("{}")) {
 	  /** error */
-	  throw new FoursquareAPIException(json_response);
+	  throw new FoursquareAPIException(parsed_line.toString());
 	}  
 	  
 	return parsed_line.getAsJsonObject().get("response").getAsJsonObject().get("venue").toString();
@@ -183,6 +200,33 @@ public class AttendanceCrawler {
 	return getFoursquareVenueById(venue_id, credentials.get("client_id"), credentials.get("client_secret"));
   }
   
+  public static String getFoursquareVenueById(String venue_id, APIAccount account) throws IOException, FoursquareAPIException {
+	return getFoursquareVenueById(venue_id, account.getClientId(), account.getClientSecret(), account);
+  }
+  
+  /**
+   * Gets the hourly statistics of a venue (here now and checkins count), given its ID.
+   * This is the hot path of the crawler: the response is read in a single
+   * streaming pass, without building the complete `Venue`.
+   */
+  public static VenueStats getFoursquareVenueStatsById(String venue_id, APIAccount account) throws IOException, FoursquareAPIException {
+	String url = Settings.getInstance().getAPIURL() + "/venues/" + venue_id + "?client_id=" + account.getClientId() +
+				 "&client_secret=" + account.getClientSecret() + "&v=" + VERSION_PARAM ;
+	
+	APIResponse response = APIClient.getInstance().get(url, account);
+	VenueStats stats;
+	try {
+	  stats = VenueStats.parse(response.getReader());
+	} finally {
+	  response.close();
+	}
+	
+	if(!stats.hasVenue())
+	  throw stats.toException();
+	
+	return stats;
+  }
+  
   
   /**
    * The main takes an undefined number of cities as arguments, then initializes
@@ -203,176 +247,154 @@ public class AttendanceCrawler {
 	Map<String,FileWriter> error_logs = new HashMap<String, FileWriter>();
 	
 	// For each city we monitor, we store the venue IDs that we got from
-	// a previous crawl.
+	// a previous crawl. These collections are shared with the crawl workers,
+	// which remove the venues that have been deleted on Foursquare.
 	Map<String,Collection<String>> city_venues = new HashMap<String, Collection<String>>();
 	
-	// Contains the epoch time when the last API call has been made for each 
-	// venue. Ensures that we get data only once each hour. 
-	Map<String,Long> venue_last_call = new HashMap<String, Long>();
-	
 	// Contains the epoch time when we last checked if time series were broken
 	// for each city.
 	// We do these checks once every day before the batch forecasting begins.
-	Map<String,Long> sanity_checks   = new HashMap<String, Long>();
-	
-	// We also keep in memory the number of checkins for the last hour for
-	// each venue.
-	Map<String,Integer> venue_last_checkin = new HashMap<String, Integer>();
-	
-	Map<Long,Integer> APICallsCount = new HashMap<Long, Integer>();
+	final Map<String,Long> sanity_checks = new ConcurrentHashMap<String, Long>();
 	
 	DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
 	
 	int total_venues = 0 ;
-	long total_calls = 0 ;
-	long time_spent_on_API = 0;
-	
 	
 	for(String c: args) {
 	  settings.checkFileHierarchy(c);
 
-	  city_venues.put(c, loadVenues(c));
+	  city_venues.put(c, Collections.synchronizedCollection(loadVenues(c)));
 	  total_venues += city_venues.get(c).size();
 	  
 	  info_logs.put (c,new FileWriter(folder + c + File.separator + "log" + File.separator + "info.log", true));
 	  error_logs.put(c,new FileWriter(folder + c + File.separator + "log" + File.separator + "error.log",true));
-	  
+	} // for
+	
+	// Each venue is assigned to one of the API accounts of its city, so that
+	// the calls are spread over all the accounts we have.
+	CredentialPool pool = new CredentialPool(settings, Arrays.asList(args));
+	for(String c: args)
+	  for(String venue_id: city_venues.get(c))
+		pool.assign(c, venue_id);
+	
+	if(!pool.getOverloadedAccounts().isEmpty()) {
+	  System.out.println("Too much venues for the available API accounts (max "+pool.getHourlyCapacity()+" for "+pool.getAccounts().size()+" accounts, "+total_venues+" venues loaded).\nPlease create new Foursquare API accounts and add these credentials.\nExiting now.");
+	  return;
+	}
+	
+	final CrawlEngine engine = new CrawlEngine(settings, pool, city_venues, info_logs, error_logs);
+	
+	// Broken time series are repaired in the background, while the crawl
+	// goes on.
+	final RepairService repairs = new RepairService(settings, engine);
+	
+	for(String c: args) {
 	  Calendar cal = Calendar.getInstance();
 	  
 	  info_logs.get(c).write("["+df.format(cal.getTime())+"] Crawler initialization for "+c+". "+city_venues.get(c).size()+" venues loaded.\n");
 	  info_logs.get(c).flush();
 	  
 	  // If we interrupted the program for some reason, we can get back
-	  // the in-memory data.
+	  // the in-memory data. It comes from the checkpoint of the city when
+	  // it is up to date, otherwise from the last line of the venue's file.
 	  // Important: the program must not be interrupted for more than one
 	  // hour, or we will lose time series data.
+	  CrawlCheckpoint checkpoint = CrawlCheckpoint.load(CrawlCheckpoint.getFile(folder, c));
+	  int from_checkpoint = 0;
+	  
 	  for(String venue_id: city_venues.get(c)){
-		String ts_file = folder + c + File.separator + "attendances_crawl" + File.separator + venue_id + ".ts";
+		File ts_file = new File(folder + c + File.separator + "attendances_crawl" + File.separator + venue_id + ".ts");
 		
-		if(new File(ts_file).exists()) {
-		  BufferedReader buffer = new BufferedReader(new FileReader(ts_file));
-		  String mem = null, line = null;
-		  for(;(line = buffer.readLine()) != null; mem = line) ;
-		  buffer.close();
-		  
-		  if(mem == null) continue;
-		  
-		  String[] tmp = mem.split(",");
-		  venue_last_call.put(venue_id,df.parse(tmp[0]).getTime());
-		  venue_last_checkin.put(venue_id, Integer.parseInt(tmp[3]));
-		  		  
-		  VenueUtil.fixBrokenTimeSeriesVenue(new File(ts_file));
-		} // if
+		if(!ts_file.exists())
+		  continue;
+		
+		if(checkpoint != null && checkpoint.isFresh(venue_id, ts_file)) {
+		  engine.restoreVenue(venue_id, checkpoint.getLastCall(venue_id), checkpoint.getLastCheckin(venue_id), checkpoint.getRetries(venue_id));
+		  from_checkpoint++;
+		  continue;
+		}
+		
+		String mem = VenueUtil.readLastLine(ts_file);
+		
+		// Only the header has been written.
+		if(mem == null || mem.startsWith("Date")) continue;
+		
+		String[] tmp = mem.split(",");
+		engine.restoreVenue(venue_id, df.parse(tmp[0]).getTime(), Integer.parseInt(tmp[3]), 0);
 	  } // for
 	  
+	  info_logs.get(c).write("["+df.format(Calendar.getInstance().getTime())+"] "+from_checkpoint+" venues restored from the checkpoint.\n");
+	  info_logs.get(c).flush();
+	  
 	  sanity_checks.put(c, cal.getTimeInMillis());
 	} // for
 	
-	if(total_venues > 5000) {
-	  System.out.println("Too much venues for a single API account (max 5000).\nPlease create a new Foursquare API account and use these credentials.\nExiting now.");
-	  return;
-	}
+	// The broken time series are entirely checked once the crawl has resumed,
+	// i.e. after the first hour of each city, so that the restart does not
+	// cost us an hour of observations.
+	final Collection<String> startup_repairs = Collections.synchronizedSet(new HashSet<String>(Arrays.asList(args)));
 	
-	while(true) {
-	  
-	  for(String c: args) {
-		// We create a FIFO queue and pop venue IDs one at a time.
-		LinkedList<String> city_venues_buffer = new LinkedList<String>(city_venues.get(c));
-		String venue_id = null;
-		
-		// Artificial wait to avoid processors looping at 100% of their capacity
-		// when there is no more venues to crawl for the current hour.
-		Thread.sleep(3000);
-		
-		while((venue_id = city_venues_buffer.pollFirst()) != null) {
-		  // We get the current time according to the city's time zone
-		  Calendar cal = Calendar.getInstance();
-		  cal.add(Calendar.MILLISECOND, 
-			  	  TimeZone.getTimeZone(settings.getCityTimezone(c)).getOffset(cal.getTime().getTime()) -
-			  	  Calendar.getInstance().getTimeZone().getOffset(cal.getTime().getTime()));
-			  	  //TimeZone.getTimeZone("Europe/London").getOffset(cal.getTime().getTime()));
-		  
-		  long current_time = DateUtils.truncate(cal.getTime(), Calendar.HOUR).getTime();
-		  		  
-		  // We query Foursquare only once per hour per venue.
-		  if(venue_last_call.get(venue_id) != null && current_time < venue_last_call.get(venue_id)+3600000)
-			continue;
-		  
-		  intelligentWait(total_venues,cal.getTime().getTime(),(total_calls == 0 ? 0 : Math.round(time_spent_on_API/total_calls)));
-
-		  Venue venue = null;
-		  
-		  try {	
-			long beforeCall = System.currentTimeMillis();
-			venue = new Venue(getFoursquareVenueById(venue_id,c));
-
-			// If there is no last call, this is the beginning of the time series
-			// for this venue. We get the number of people "here now" to initialize
-			// the series.
-			if(venue_last_call.get(venue_id) == null) {
-			  /** TODO: by doing this, we keep a representation of the venue dating from the beginning
-			   * 	   of the specific crawl. we might want to change this and update this file once
-			   *	   in a while.
-			   */
-			  FileWriter info = new FileWriter(folder + c + File.separator + "foursquare_venues" + File.separator + venue_id + ".info");
-			  info.write(venue.getFoursquareJson());
-			  info.close();
-
-			  FileWriter out  = new FileWriter(folder + c + File.separator + "attendances_crawl" + File.separator + venue_id + ".ts");
-			  out.write("Date,here_now,hour_checkins,total_checkins\n");
-			  out.write(df.format(current_time)+","+venue.getHereNow()+","+venue.getHereNow()+","+venue.getCheckincount()+"\n");
-			  out.close();
-			}
-			else {
-			  FileWriter out  = new FileWriter(folder + c + File.separator + "attendances_crawl" + File.separator + venue_id + ".ts", true);
-			  int checks = venue.getCheckincount()-venue_last_checkin.get(venue_id);
-			  out.write(df.format(current_time)+","+venue.getHereNow()+","+Integer.toString(checks)+","+venue.getCheckincount()+"\n");
-			  out.close();
-			}
-			
-			if(APICallsCount.get(current_time) == null)
-			  APICallsCount.put(current_time, 1);
-			else
-			  APICallsCount.put(current_time, APICallsCount.get(current_time)+1);
-			
-			total_calls++;
-
-			venue_last_call.put(venue_id, current_time);
-			venue_last_checkin.put(venue_id,venue.getCheckincount());
-			
-			time_spent_on_API += System.currentTimeMillis()-beforeCall;
-		  } catch(Exception e) {
-			// If something bad happens (crawler not available, IO error, ...), we put the
-			// venue_id in the FIFO queue so that it gets reevaluated later.
-			//e.printStackTrace();
-			error_logs.get(c).write("["+df.format(cal.getTime().getTime())+"] Error with venue "+venue_id+" ("+e.getMessage()+"). "+APICallsCount.get(current_time)+" API calls so far this hour, "+city_venues_buffer.size()+" venues remaining in the buffer.\n");
-			error_logs.get(c).flush();
-
-			System.out.println("["+df.format(cal.getTime().getTime())+"] "+c+" -- "+APICallsCount.get(current_time)+" API calls // "+city_venues_buffer.size()+" venues remaining "+" ("+e.getMessage()+")");
-			
-			if(e instanceof FoursquareAPIException)
-			  if(((FoursquareAPIException) e).getHttp_code().equals("400") && ((FoursquareAPIException) e).getError_detail().equals("Venue "+venue_id+" has been deleted")) {
-				city_venues.get(c).remove(venue_id);
-				removeVenue(venue_id,c);
-			  }
-			else
-			  city_venues_buffer.add(venue_id);
-			
-			continue;
-		  }
-		} // while
+	// The venues are crawled by the worker threads of the scheduler, and the
+	// main thread only waits for them.
+	final CrawlScheduler scheduler = new CrawlScheduler(settings, engine, city_venues, new CrawlScheduler.Listener() {
+	  @Override
+	  public void hourCompleted(String c, long hour) {
+		try {
+		  // A checkpoint is written at the end of every hour.
+		  engine.checkpoint(c);
+		} catch (IOException e) {
+		  e.printStackTrace();
+		}
 		
+		if(startup_repairs.remove(c))
+		  repairs.submit(c, true);
 		
 		// Every day between 0am and 2am, we repair all the broken time series (if there
-		// is something to repair).
+		// is something to repair). Only the hours observed since the previous repair are
+		// verified, in the background.
 		Calendar cal = Calendar.getInstance();
-		if(city_venues_buffer.peekFirst() == null && (cal.getTimeInMillis()-sanity_checks.get(c)) >= 86400000 && cal.get(Calendar.HOUR_OF_DAY) < 2 ) {
-		  VenueUtil.fixBrokenTimeSeriesCity(c, folder);
-		  sanity_checks.put(c,cal.getTimeInMillis());
-		  info_logs.get(c).write("["+df.format(cal.getTime())+"] Sanity check OK.\n");
-		  info_logs.get(c).flush();
+		if((cal.getTimeInMillis()-sanity_checks.get(c)) >= 86400000 && cal.get(Calendar.HOUR_OF_DAY) < 2 ) {
+		  if(repairs.submit(c, false))
+			sanity_checks.put(c,cal.getTimeInMillis());
 		}
-	  } // for
-	} // while
+	  }
+	});
+	
+	// The metrics are exposed over JMX and, for Prometheus, on a local port.
+	final CrawlerMetrics metrics = new CrawlerMetrics(pool, scheduler, repairs, Arrays.asList(args));
+	try {
+	  metrics.start(settings.getMetricsPort());
+	} catch (IOException e) {
+	  System.err.println("Cannot serve the metrics on port "+settings.getMetricsPort()+": "+e.getMessage());
+	}
+	
+	// The time series are served to the local readers, from a cache that the
+	// observations written by the crawler keep up to date.
+	final ReadService reads = new ReadService(engine, city_venues, settings.getReadCacheMB()*1024*1024);
+	try {
+	  reads.start(settings.getReadAPIPort());
+	} catch (IOException e) {
+	  System.err.println("Cannot serve the time series on port "+settings.getReadAPIPort()+": "+e.getMessage());
+	}
+	
+	// When the crawler is stopped, the calls in progress must end before the
+	// observations that are still buffered are written.
+	Runtime.getRuntime().addShutdownHook(new Thread() {
+	  @Override
+	  public void run() {
+		try {
+		  metrics.stop();
+		  reads.stop();
+		  repairs.shutdown();
+		  scheduler.shutdown();
+		  engine.shutdown();
+		} catch (Exception e) {
+		  e.printStackTrace();
+		}
+	  }
+	});
+	
+	scheduler.start();
+	scheduler.awaitTermination();
   } // main
 } // class
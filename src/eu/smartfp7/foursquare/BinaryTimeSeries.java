@@ -0,0 +1,255 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.DateFormat;
+import java.text.DecimalFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import eu.smartfp7.foursquare.utils.Settings;
+
+/**
+ * A fixed-width binary version of the `.ts` files (`.tsb` extension).
+ *
+ * The file starts with a 16 bytes header (magic number, version and the
+ * epoch-hour of the first observation), followed by one 16 bytes record per
+ * hour: here_now (float), hour_checkins (float) and total_checkins (double).
+ * The record of hour `h` is thus at offset 16 + 16*(h - first hour), which
+ * gives an O(1) access to any hour. Hours without observation are stored as
+ * records whose here_now is NaN.
+ *
+ * The dates of the `.ts` files are local times of the city. They are stored
+ * here as if they were UTC times, so that every local hour has exactly one
+ * record whatever the time zone of the JVM.
+ *
+ * Files are memory-mapped for reading and appended for writing.
+ */
+public class BinaryTimeSeries implements Closeable {
+
+  public static final String EXTENSION = ".tsb";
+
+  static final int  MAGIC       = 0x46535453; // "FSTS"
+  static final int  VERSION     = 1;
+  static final int  HEADER_SIZE = 16;
+  static final int  RECORD_SIZE = 16;
+
+  static final private long Milliseconds_in_1_hour = 3600000;
+
+  private static final ThreadLocal<DateFormat> utc_df = new ThreadLocal<DateFormat>() {
+	@Override
+	protected DateFormat initialValue() {
+	  DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	  df.setTimeZone(TimeZone.getTimeZone("UTC"));
+	  return df;
+	}
+  };
+
+  private final FileChannel      channel;
+  private final MappedByteBuffer buffer;
+  private final long             first_hour;
+  private final int              size;
+
+  /** Opens and memory-maps a `.tsb` file for reading. */
+  public BinaryTimeSeries(String file) throws IOException {
+	this.channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+	this.buffer  = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+	if(buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+	  throw new IOException(file+" is not a binary time series file.");
+	if(buffer.getInt(4) != VERSION)
+	  throw new IOException("Unsupported binary time series version "+buffer.getInt(4)+" in "+file+".");
+
+	this.first_hour = buffer.getLong(8);
+	this.size       = (buffer.limit() - HEADER_SIZE) / RECORD_SIZE;
+  }
+
+  /** Returns the epoch-hour of a `.ts` date (e.g. "2014-08-01 13:00:00"). */
+  public static long toEpochHour(String date) throws ParseException {
+	return utc_df.get().parse(date).getTime() / Milliseconds_in_1_hour;
+  }
+
+  /** Returns the `.ts` date of an epoch-hour. */
+  public static String toDate(long epoch_hour) {
+	return utc_df.get().format(epoch_hour * Milliseconds_in_1_hour);
+  }
+
+  /** Returns the epoch-hour of the first record. */
+  public long getFirstHour() {
+	return first_hour;
+  }
+
+  /** Returns the epoch-hour of the last record. */
+  public long getLastHour() {
+	return first_hour + size - 1;
+  }
+
+  /** Returns the number of records, i.e. of hours between the first and the last one. */
+  public int size() {
+	return size;
+  }
+
+  /** Returns the index of the record of an epoch-hour, or -1 if it is out of the series. */
+  public int indexOf(long epoch_hour) {
+	long index = epoch_hour - first_hour;
+	return index < 0 || index >= size ? -1 : (int) index;
+  }
+
+  /** Returns false if there is no observation for the i-th hour. */
+  public boolean isPresent(int i) {
+	return !Float.isNaN(getHereNow(i));
+  }
+
+  public float getHereNow(int i) {
+	return buffer.getFloat(HEADER_SIZE + i * RECORD_SIZE);
+  }
+
+  public float getHourCheckins(int i) {
+	return buffer.getFloat(HEADER_SIZE + i * RECORD_SIZE + 4);
+  }
+
+  public double getTotalCheckins(int i) {
+	return buffer.getDouble(HEADER_SIZE + i * RECORD_SIZE + 8);
+  }
+
+  @Override
+  public void close() throws IOException {
+	channel.close();
+  }
+
+  /**
+   * Writes observations in a `.tsb` file, creating it if needed. Each
+   * observation is an array {epoch_hour, here_now, hour_checkins, total_checkins}.
+   * Observations after the last record are appended (the hours in between are
+   * marked as missing), while observations inside the series overwrite their
+   * record in place.
+   */
+  public static void write(String file, List<double[]> observations) throws IOException {
+	if(observations.isEmpty())
+	  return;
+
+	FileChannel out = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	try {
+	  long first_hour;
+	  if(out.size() < HEADER_SIZE) {
+		first_hour = (long) observations.get(0)[0];
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putLong(first_hour).flip();
+		out.truncate(0);
+		writeFully(out, header, 0);
+	  }
+	  else {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		out.read(header, 0);
+		if(header.getInt(0) != MAGIC)
+		  throw new IOException(file+" is not a binary time series file.");
+		first_hour = header.getLong(8);
+	  }
+
+	  long size = (out.size() - HEADER_SIZE) / RECORD_SIZE;
+	  ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+	  for(double[] observation: observations) {
+		long index = (long) observation[0] - first_hour;
+		if(index < 0)
+		  throw new IOException("Cannot write hour "+toDate((long) observation[0])+" before the beginning of "+file+".");
+
+		// Hours between the end of the file and this observation are missing.
+		for(; size < index; size++)
+		  writeFully(out, record(record, Float.NaN, Float.NaN, Double.NaN), HEADER_SIZE + size * RECORD_SIZE);
+
+		writeFully(out, record(record, (float) observation[1], (float) observation[2], observation[3]), HEADER_SIZE + index * RECORD_SIZE);
+		size = Math.max(size, index + 1);
+	  }
+	} finally {
+	  out.close();
+	}
+  }
+
+  private static ByteBuffer record(ByteBuffer record, float here_now, float hour_checkins, double total_checkins) {
+	record.clear();
+	record.putFloat(here_now).putFloat(hour_checkins).putDouble(total_checkins).flip();
+	return record;
+  }
+
+  private static void writeFully(FileChannel out, ByteBuffer bytes, long position) throws IOException {
+	while(bytes.hasRemaining())
+	  position += out.write(bytes, position);
+  }
+
+  /** Converts a `.ts` file into a `.tsb` file. */
+  public static void fromCSV(String ts_file, String tsb_file) throws IOException, ParseException {
+	List<double[]> observations = new ArrayList<double[]>();
+
+	BufferedReader buffer = new BufferedReader(new FileReader(ts_file));
+	// Ignore the first line since it only contains headers.
+	String tmp = buffer.readLine();
+	while((tmp = buffer.readLine()) != null) {
+	  String[] line = tmp.split(",");
+	  observations.add(new double[]{toEpochHour(line[0]), Double.parseDouble(line[1]), Double.parseDouble(line[2]), Double.parseDouble(line[3])});
+	}
+	buffer.close();
+
+	new File(tsb_file).delete();
+	write(tsb_file, observations);
+  }
+
+  /** Converts a `.tsb` file into a `.ts` file. Missing hours are not written. */
+  public static void toCSV(String tsb_file, String ts_file) throws IOException {
+	BinaryTimeSeries series = new BinaryTimeSeries(tsb_file);
+	DecimalFormat decf = new DecimalFormat("###.#");
+
+	FileWriter out = new FileWriter(ts_file);
+	out.write(ObservationWriter.HEADER);
+	for(int i = 0 ; i < series.size() ; ++i) {
+	  if(!series.isPresent(i))
+		continue;
+	  out.write(toDate(series.getFirstHour()+i)+","+decf.format(series.getHereNow(i))
+		  								  +","+decf.format(series.getHourCheckins(i))
+		  								  +","+decf.format(series.getTotalCheckins(i))+"\n");
+	}
+	out.close();
+	series.close();
+  }
+
+  /**
+   * Converts every `.ts` file of a city into a `.tsb` file.
+   *
+   * @param args The name of the city.
+   */
+  public static void main(String[] args) throws Exception {
+	String folder = Settings.getInstance().getFolder();
+
+	for(File file: VenueUtil.getAllVenueFilesEndingWith(folder, args[0], ".ts")) {
+	  String ts_file = file.getAbsolutePath();
+	  fromCSV(ts_file, ts_file.substring(0, ts_file.length()-3) + EXTENSION);
+	}
+  }
+}
@@ -0,0 +1,341 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.ParseException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A compact, read-only representation of the hourly observations of a venue.
+ *
+ * Observations are stored in parallel primitive columns: the hour of each
+ * observation (an offset from a start epoch-hour, see `BinaryTimeSeries`),
+ * here_now, hour_checkins (floats, since repaired values can be decimal) and
+ * total_checkins (a double, which stays exact for large counts). This takes
+ * 20 bytes per hour, instead of several hundreds with maps of boxed items.
+ *
+ * Hours are sorted, so an observation is found by binary search. A slice of
+ * the series is a view sharing the columns of the original series: no data
+ * is copied.
+ */
+public class CompactTimeSeries {
+
+  private final long     start_hour;
+  private final int[]    hours;
+  private final float[]  here_now;
+  private final float[]  hour_checkins;
+  private final double[] total_checkins;
+
+  // The observations of this series are in [from, to[.
+  private final int      from;
+  private final int      to;
+
+  private CompactTimeSeries(long start_hour, int[] hours, float[] here_now, float[] hour_checkins,
+	  double[] total_checkins, int from, int to) {
+	this.start_hour     = start_hour;
+	this.hours          = hours;
+	this.here_now       = here_now;
+	this.hour_checkins  = hour_checkins;
+	this.total_checkins = total_checkins;
+	this.from           = from;
+	this.to             = to;
+  }
+
+  /**
+   * Collects observations given in any order. If several observations have
+   * the same hour, the last one is kept.
+   */
+  public static class Builder {
+	private long     start_hour = Long.MIN_VALUE;
+	private int      size       = 0;
+	private boolean  sorted     = true;
+	private int[]    hours          = new int[64];
+	private float[]  here_now       = new float[64];
+	private float[]  hour_checkins  = new float[64];
+	private double[] total_checkins = new double[64];
+
+	public Builder add(long epoch_hour, double here_now, double hour_checkins, double total_checkins) {
+	  if(start_hour == Long.MIN_VALUE)
+		start_hour = epoch_hour;
+
+	  long offset = epoch_hour - start_hour;
+	  if(offset < Integer.MIN_VALUE || offset > Integer.MAX_VALUE)
+		throw new IllegalArgumentException("Epoch-hour "+epoch_hour+" is too far from the start of the series.");
+
+	  if(size == hours.length) {
+		int capacity = size * 2;
+		this.hours          = Arrays.copyOf(this.hours, capacity);
+		this.here_now       = Arrays.copyOf(this.here_now, capacity);
+		this.hour_checkins  = Arrays.copyOf(this.hour_checkins, capacity);
+		this.total_checkins = Arrays.copyOf(this.total_checkins, capacity);
+	  }
+
+	  if(size > 0 && offset <= this.hours[size-1])
+		sorted = false;
+
+	  this.hours[size]          = (int) offset;
+	  this.here_now[size]       = (float) here_now;
+	  this.hour_checkins[size]  = (float) hour_checkins;
+	  this.total_checkins[size] = total_checkins;
+	  size++;
+
+	  return this;
+	}
+
+	/** Adds an observation given as a line of a `.ts` file. */
+	public Builder add(String line) throws ParseException {
+	  String[] values = line.split(",");
+	  return add(BinaryTimeSeries.toEpochHour(values[0]), Double.parseDouble(values[1]), Double.parseDouble(values[2]), Double.parseDouble(values[3]));
+	}
+
+	public CompactTimeSeries build() {
+	  if(!sorted)
+		sort();
+
+	  return new CompactTimeSeries(start_hour == Long.MIN_VALUE ? 0 : start_hour, Arrays.copyOf(hours, size),
+		  Arrays.copyOf(here_now, size), Arrays.copyOf(hour_checkins, size), Arrays.copyOf(total_checkins, size), 0, size);
+	}
+
+	/** Sorts the observations by hour (stable, so that the last duplicate stays last) and removes the duplicates. */
+	private void sort() {
+	  Integer[] order = new Integer[size];
+	  for(int i = 0 ; i < size ; ++i)
+		order[i] = i;
+
+	  final int[] keys = hours;
+	  Arrays.sort(order, new Comparator<Integer>() {
+		@Override
+		public int compare(Integer a, Integer b) {
+		  return Integer.compare(keys[a], keys[b]);
+		}
+	  });
+
+	  int[]    sorted_hours = new int[size];
+	  float[]  sorted_here  = new float[size];
+	  float[]  sorted_hour  = new float[size];
+	  double[] sorted_total = new double[size];
+	  int n = 0;
+	  for(int i = 0 ; i < size ; ++i) {
+		int j = order[i];
+		if(n > 0 && sorted_hours[n-1] == keys[j])
+		  n--;
+		sorted_hours[n] = keys[j];
+		sorted_here[n]  = here_now[j];
+		sorted_hour[n]  = hour_checkins[j];
+		sorted_total[n] = total_checkins[j];
+		n++;
+	  }
+
+	  this.hours          = sorted_hours;
+	  this.here_now       = sorted_here;
+	  this.hour_checkins  = sorted_hour;
+	  this.total_checkins = sorted_total;
+	  this.size           = n;
+	  this.sorted         = true;
+	}
+  }
+
+  /**
+   * Reads a series either from a `.ts` (CSV) file, from its binary `.tsb`
+   * version or from its archived `.tsa` version.
+   */
+  public static CompactTimeSeries read(String file) throws IOException, ParseException {
+	Builder builder = new Builder();
+
+	if(file.endsWith(BinaryTimeSeries.EXTENSION)) {
+	  BinaryTimeSeries binary = new BinaryTimeSeries(file);
+	  try {
+		for(int i = 0 ; i < binary.size() ; ++i)
+		  if(binary.isPresent(i))
+			builder.add(binary.getFirstHour()+i, binary.getHereNow(i), binary.getHourCheckins(i), binary.getTotalCheckins(i));
+	  } finally {
+		binary.close();
+	  }
+	}
+	else if(file.endsWith(ArchivedTimeSeries.EXTENSION)) {
+	  ArchivedTimeSeries archive = new ArchivedTimeSeries(file);
+	  try {
+		return archive.read(Long.MIN_VALUE, Long.MAX_VALUE);
+	  } finally {
+		archive.close();
+	  }
+	}
+	else {
+	  BufferedReader buffer = new BufferedReader(new FileReader(file));
+	  try {
+		// Ignore the first line since it only contains headers (used in R).
+		String tmp = buffer.readLine();
+
+		while((tmp = buffer.readLine()) != null)
+		  builder.add(tmp);
+	  } finally {
+		buffer.close();
+	  }
+	}
+
+	return builder.build();
+  }
+
+  /** Appends the observations to `out`, as lines of a `.ts` file. */
+  public StringBuilder appendCSV(StringBuilder out) {
+	DecimalFormat decf = new DecimalFormat("###.#");
+
+	for(int i = from ; i < to ; ++i) {
+	  out.append(BinaryTimeSeries.toDate(start_hour + hours[i]))
+		 .append(",").append(decf.format(here_now[i]))
+		 .append(",").append(decf.format(hour_checkins[i]))
+		 .append(",").append(decf.format(total_checkins[i]))
+		 .append("\n");
+	}
+
+	return out;
+  }
+
+  /** Returns the number of observations. */
+  public int size() {
+	return to - from;
+  }
+
+  public boolean isEmpty() {
+	return to == from;
+  }
+
+  /** Returns the epoch-hour of the i-th observation. */
+  public long getHour(int i) {
+	return start_hour + hours[from+i];
+  }
+
+  public float getHereNow(int i) {
+	return here_now[from+i];
+  }
+
+  public float getHourCheckins(int i) {
+	return hour_checkins[from+i];
+  }
+
+  public double getTotalCheckins(int i) {
+	return total_checkins[from+i];
+  }
+
+  /** Returns the epoch-hour of the first observation. */
+  public long getFirstHour() {
+	return getHour(0);
+  }
+
+  /** Returns the epoch-hour of the last observation. */
+  public long getLastHour() {
+	return getHour(size()-1);
+  }
+
+  /** Returns true if there is an observation for every hour between the first and the last one. */
+  public boolean isComplete() {
+	return isEmpty() || getLastHour() - getFirstHour() + 1 == size();
+  }
+
+  /**
+   * Returns the index of the observation of an epoch-hour or, if there is
+   * none, (-(insertion point) - 1), like `Arrays.binarySearch`.
+   */
+  public int indexOf(long epoch_hour) {
+	int i = Arrays.binarySearch(hours, from, to, offset(epoch_hour));
+	return i >= 0 ? i - from : i + from;
+  }
+
+  public boolean contains(long epoch_hour) {
+	return indexOf(epoch_hour) >= 0;
+  }
+
+  /** Returns the observations of the hours in [from_hour, to_hour[, without copying them. */
+  public CompactTimeSeries slice(long from_hour, long to_hour) {
+	int first = Arrays.binarySearch(hours, from, to, offset(from_hour));
+	int last  = Arrays.binarySearch(hours, from, to, offset(to_hour));
+	first = first < 0 ? -first-1 : first;
+	last  = last  < 0 ? -last-1  : last;
+
+	return new CompactTimeSeries(start_hour, hours, here_now, hour_checkins, total_checkins, first, Math.max(first, last));
+  }
+
+  // Offsets are clamped, so that hours far out of the series (e.g.
+  // Long.MIN_VALUE, whose difference with start_hour would overflow) are
+  // still ordered correctly.
+  private int offset(long epoch_hour) {
+	if(epoch_hour <= start_hour + Integer.MIN_VALUE)
+	  return Integer.MIN_VALUE;
+	if(epoch_hour >= start_hour + Integer.MAX_VALUE)
+	  return Integer.MAX_VALUE;
+	return (int) (epoch_hour - start_hour);
+  }
+
+  /**
+   * Returns a complete series, in which every missing hour has been estimated.
+   * When a single hour is missing, it is linearly interpolated from the
+   * observations that surround it. When several successive hours are missing,
+   * the seasonal naive method is used: each of them gets the value of the day
+   * before at the same hour (or, if there is none, the value of the previous
+   * hour).
+   * The total checkins of an estimated hour are the total of the last
+   * observation before it plus its estimated hour checkins.
+   */
+  public CompactTimeSeries fill() {
+	if(isComplete())
+	  return this;
+
+	long first_hour = getFirstHour();
+	int  length     = (int) (getLastHour() - first_hour + 1);
+
+	int[]    filled_hours = new int[length];
+	float[]  filled_here  = new float[length];
+	float[]  filled_hour  = new float[length];
+	double[] filled_total = new double[length];
+
+	for(int i = 0, h = 0 ; i < size() ; ++i) {
+	  int current = (int) (getHour(i) - first_hour);
+
+	  // Estimating the hours missing between the previous observation and the current one.
+	  for(int previous = h-1 ; h < current ; ++h) {
+		double here, hour;
+
+		if(current - previous == 2) {
+		  here = ((double) getHereNow(i-1) + getHereNow(i)) / 2;
+		  hour = ((double) getHourCheckins(i-1) + getHourCheckins(i)) / 2;
+		}
+		else {
+		  int n = h >= 24 ? h-24 : h-1;
+		  here = filled_here[n];
+		  hour = filled_hour[n];
+		}
+
+		filled_hours[h] = h;
+		filled_here[h]  = (float) here;
+		filled_hour[h]  = (float) hour;
+		filled_total[h] = getTotalCheckins(i-1) + filled_hour[h];
+	  }
+
+	  filled_hours[h] = h;
+	  filled_here[h]  = getHereNow(i);
+	  filled_hour[h]  = getHourCheckins(i);
+	  filled_total[h] = getTotalCheckins(i);
+	  h++;
+	}
+
+	return new CompactTimeSeries(first_hour, filled_hours, filled_here, filled_hour, filled_total, 0, length);
+  }
+}
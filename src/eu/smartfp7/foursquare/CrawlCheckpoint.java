@@ -0,0 +1,157 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact snapshot of the in-memory state of the attendance crawler for
+ * one city: for each venue, the time of its last call, its last number of
+ * checkins and its number of pending retries.
+ *
+ * The checkpoint is written at every hour boundary and when the crawler is
+ * stopped, so that a restart does not need to read every `.ts` file. A venue
+ * whose `.ts` file has been modified after the checkpoint was written is
+ * considered stale, and its state must be read from the file instead.
+ */
+public class CrawlCheckpoint {
+
+  public static final String FILE_NAME = "crawler.checkpoint";
+
+  private static final int MAGIC   = 0x46534350; // "FSCP"
+  private static final int VERSION = 1;
+
+  private final long written_at;
+
+  private final Map<String,Long>    last_calls    = new HashMap<String, Long>();
+  private final Map<String,Integer> last_checkins = new HashMap<String, Integer>();
+  private final Map<String,Integer> retries       = new HashMap<String, Integer>();
+
+  private CrawlCheckpoint(long written_at) {
+	this.written_at = written_at;
+  }
+
+  /** Returns the path of the checkpoint file of a city. */
+  public static String getFile(String folder, String city) {
+	return folder + city + File.separator + FILE_NAME;
+  }
+
+  /**
+   * Writes the state of the given venues. The checkpoint is first written in
+   * a temporary file, which then replaces the previous checkpoint atomically.
+   */
+  public static void save(String file, Collection<String> venues, Map<String,Long> last_calls,
+	  Map<String,Integer> last_checkins, Map<String,Integer> retries) throws IOException {
+	File tmp = new File(file + ".tmp");
+
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	try {
+	  out.writeInt(MAGIC);
+	  out.writeInt(VERSION);
+	  out.writeLong(System.currentTimeMillis());
+
+	  int count = 0;
+	  for(String venue_id: venues)
+		if(last_calls.containsKey(venue_id))
+		  count++;
+	  out.writeInt(count);
+
+	  for(String venue_id: venues) {
+		Long last_call = last_calls.get(venue_id);
+		if(last_call == null)
+		  continue;
+
+		Integer last_checkin = last_checkins.get(venue_id);
+		Integer retry        = retries.get(venue_id);
+
+		out.writeUTF(venue_id);
+		out.writeLong(last_call);
+		out.writeInt(last_checkin == null ? 0 : last_checkin);
+		out.writeInt(retry == null ? 0 : retry);
+	  }
+	} finally {
+	  out.close();
+	}
+
+	Files.move(tmp.toPath(), new File(file).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Reads a checkpoint, or returns null if there is none (or if it cannot be read). */
+  public static CrawlCheckpoint load(String file) {
+	if(!new File(file).exists())
+	  return null;
+
+	try {
+	  DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+	  try {
+		if(in.readInt() != MAGIC || in.readInt() != VERSION)
+		  return null;
+
+		CrawlCheckpoint checkpoint = new CrawlCheckpoint(in.readLong());
+		for(int i = in.readInt() ; i > 0 ; --i) {
+		  String venue_id = in.readUTF();
+		  checkpoint.last_calls.put(venue_id, in.readLong());
+		  checkpoint.last_checkins.put(venue_id, in.readInt());
+		  checkpoint.retries.put(venue_id, in.readInt());
+		}
+
+		return checkpoint;
+	  } finally {
+		in.close();
+	  }
+	} catch (IOException e) {
+	  e.printStackTrace();
+	  return null;
+	}
+  }
+
+  /** Returns the time (epoch milliseconds) at which the checkpoint was written. */
+  public long getWrittenAt() {
+	return written_at;
+  }
+
+  /**
+   * Returns true if the checkpoint contains an up-to-date state for the venue,
+   * i.e. if its `.ts` file has not been modified since the checkpoint was written.
+   */
+  public boolean isFresh(String venue_id, File ts_file) {
+	return last_calls.containsKey(venue_id) && ts_file.lastModified() <= written_at;
+  }
+
+  public long getLastCall(String venue_id) {
+	return last_calls.get(venue_id);
+  }
+
+  public int getLastCheckin(String venue_id) {
+	return last_checkins.get(venue_id);
+  }
+
+  public int getRetries(String venue_id) {
+	return retries.get(venue_id);
+  }
+}
@@ -0,0 +1,338 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang.time.DateUtils;
+
+import eu.smartfp7.foursquare.utils.APIAccount;
+import eu.smartfp7.foursquare.utils.CredentialPool;
+import eu.smartfp7.foursquare.utils.Metrics;
+import eu.smartfp7.foursquare.utils.RequestPacer;
+import eu.smartfp7.foursquare.utils.Settings;
+import eu.smartfp7.geo.SpatialIndex;
+
+/**
+ * The engine that performs the hourly API calls of the attendance crawler.
+ *
+ * The venues are fetched in parallel by the worker threads of the
+ * `CrawlScheduler`. All the workers share a single `RequestPacer`, which paces
+ * the calls made to the API according to the quota left to the accounts: a
+ * slow response only blocks the worker that is waiting for it, not the venues
+ * that come after.
+ *
+ * The per-venue state (time of the last call and last number of checkins) is
+ * kept in concurrent maps. A venue is never handled by two workers at the same
+ * time, so its `.ts` file is only written by one thread at once.
+ *
+ * The engine also keeps the catalog (see `VenueCatalog`) and the spatial
+ * index of the venues of each city up to date: a venue is added to them when
+ * it is crawled for the first time, and removed from them when it has been
+ * deleted.
+ */
+public class CrawlEngine {
+
+  static final private long Milliseconds_in_1_hour = 3600000;
+
+  private static final ThreadLocal<DateFormat> df = new ThreadLocal<DateFormat>() {
+	@Override
+	protected DateFormat initialValue() {
+	  return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	}
+  };
+
+  private final Settings       settings;
+  private final String         folder;
+  private final CredentialPool pool;
+  private final RequestPacer   pacer;
+
+  private final Map<String,Collection<String>> city_venues;
+  private final Map<String,FileWriter>         info_logs;
+  private final Map<String,FileWriter>         error_logs;
+  private final Map<String,ObservationWriter>  observation_writers = new HashMap<String, ObservationWriter>();
+  private final Map<String,VenueCatalog>       catalogs            = new HashMap<String, VenueCatalog>();
+  private final Map<String,SpatialIndex>       spatial_indexes     = new HashMap<String, SpatialIndex>();
+  private final Map<String,Rollups>            rollups             = new HashMap<String, Rollups>();
+
+  // Contains the epoch time when the last API call has been made for each
+  // venue. Ensures that we get data only once each hour.
+  private final ConcurrentMap<String,Long>    venue_last_call    = new ConcurrentHashMap<String, Long>();
+
+  // We also keep in memory the number of checkins for the last hour for
+  // each venue.
+  private final ConcurrentMap<String,Integer> venue_last_checkin = new ConcurrentHashMap<String, Integer>();
+
+  // Number of failed calls since the last successful call of each venue.
+  private final ConcurrentMap<String,Integer> venue_retries      = new ConcurrentHashMap<String, Integer>();
+
+  private final ConcurrentMap<Long,AtomicInteger> api_calls_count = new ConcurrentHashMap<Long, AtomicInteger>();
+
+  public CrawlEngine(Settings settings, CredentialPool pool, Map<String,Collection<String>> city_venues,
+	  Map<String,FileWriter> info_logs, Map<String,FileWriter> error_logs) throws IOException {
+	this.settings    = settings;
+	this.folder      = settings.getFolder();
+	this.pool        = pool;
+	this.city_venues = city_venues;
+	this.info_logs   = info_logs;
+	this.error_logs  = error_logs;
+	this.pacer       = new RequestPacer(pool.getAccounts(), settings.getMaxRequestsPerSecond());
+
+	for(String city: city_venues.keySet())
+	  observation_writers.put(city, new ObservationWriter(folder, city, settings.getObservationOpenFiles(),
+		  settings.getObservationBatchSize(), ObservationWriter.FsyncPolicy.fromString(settings.getFsyncPolicy()),
+		  settings.getBinaryTimeSeries()));
+
+	for(String city: city_venues.keySet()) {
+	  catalogs.put(city, VenueCatalog.open(folder, city));
+
+	  SpatialIndex index = SpatialIndex.load(VenueUtil.getSpatialIndexFile(folder, city));
+	  spatial_indexes.put(city, index != null ? index : VenueUtil.buildSpatialIndex(catalogs.get(city)));
+
+	  // The rollups are updated with every line written.
+	  rollups.put(city, Rollups.open(folder, city));
+	  observation_writers.get(city).addListener(rollups.get(city));
+	}
+  }
+
+  /** Restores the state of a venue from a previous run of the crawler. */
+  public void restoreVenue(String venue_id, long last_call, int last_checkin, int retries) {
+	venue_last_call.put(venue_id, last_call);
+	venue_last_checkin.put(venue_id, last_checkin);
+	if(retries > 0)
+	  venue_retries.put(venue_id, retries);
+  }
+
+  /** Writes the checkpoint of a city (see `CrawlCheckpoint`). */
+  public void checkpoint(String city) throws IOException {
+	Collection<String> venues;
+	synchronized(city_venues.get(city)) {
+	  venues = new ArrayList<String>(city_venues.get(city));
+	}
+
+	// The observations must be on disk before the checkpoint says so.
+	observation_writers.get(city).commit();
+	CrawlCheckpoint.save(CrawlCheckpoint.getFile(folder, city), venues, venue_last_call, venue_last_checkin, venue_retries);
+
+	if(spatial_indexes.get(city).isModified())
+	  spatial_indexes.get(city).save(VenueUtil.getSpatialIndexFile(folder, city));
+
+	rollups.get(city).save();
+  }
+
+  public Map<String,Long> getVenueLastCall() {
+	return venue_last_call;
+  }
+
+  public Map<String,Integer> getVenueLastCheckin() {
+	return venue_last_checkin;
+  }
+
+  /** Returns the writer of the `.ts` files of a city. */
+  public ObservationWriter getObservationWriter(String city) {
+	return observation_writers.get(city);
+  }
+
+  /** Returns the catalog of the venues of a city, to which the venues are added when they are first crawled. */
+  public VenueCatalog getCatalog(String city) {
+	return catalogs.get(city);
+  }
+
+  /** Returns the spatial index of the venues of a city, which is updated as venues are added or deleted. */
+  public SpatialIndex getSpatialIndex(String city) {
+	return spatial_indexes.get(city);
+  }
+
+  /** Returns the daily, weekly and hourly rollups of a city, which are updated as observations are written. */
+  public Rollups getRollups(String city) {
+	return rollups.get(city);
+  }
+
+  /** Returns the current time according to the city's time zone. */
+  public static Calendar getCityCalendar(Settings settings, String city) {
+	Calendar cal = Calendar.getInstance();
+	cal.add(Calendar.MILLISECOND,
+			TimeZone.getTimeZone(settings.getCityTimezone(city)).getOffset(cal.getTime().getTime()) -
+			Calendar.getInstance().getTimeZone().getOffset(cal.getTime().getTime()));
+	return cal;
+  }
+
+  /** Returns the beginning of the current hour according to the city's time zone. */
+  public static long getCityHour(Settings settings, String city) {
+	return DateUtils.truncate(getCityCalendar(settings, city).getTime(), Calendar.HOUR).getTime();
+  }
+
+  /** Returns the number of milliseconds before the beginning of the next hour of a city. */
+  public static long getTimeToNextCityHour(Settings settings, String city) {
+	Calendar cal = getCityCalendar(settings, city);
+	return DateUtils.truncate(cal.getTime(), Calendar.HOUR).getTime() + Milliseconds_in_1_hour - cal.getTimeInMillis();
+  }
+
+  /** Returns the number of failed calls since the last successful call of a venue (restored from the checkpoint at startup). */
+  public int getRetries(String venue_id) {
+	Integer retries = venue_retries.get(venue_id);
+	return retries == null ? 0 : retries;
+  }
+
+  /** Returns true if the venue has not been crawled yet during the given hour. */
+  public boolean isDue(String venue_id, long current_time) {
+	Long last_call = venue_last_call.get(venue_id);
+	return last_call == null || current_time >= last_call + Milliseconds_in_1_hour;
+  }
+
+  /**
+   * Gets the current attendance of a venue and appends it to its time series.
+   * Returns false if the call failed and should be retried later.
+   */
+  boolean crawlVenue(String city, String venue_id, long current_time) throws InterruptedException, IOException {
+	if(!isDue(venue_id, current_time))
+	  return true;
+
+	pacer.acquire();
+
+	// The account of this venue (or any other account of the city) must
+	// have some calls left for the current hour.
+	APIAccount account = pool.acquire(venue_id, System.currentTimeMillis());
+	if(account == null) {
+	  Metrics.getInstance().recordError("no_calls_left");
+	  log(error_logs, city, "No API call left this hour for venue "+venue_id+". "+getAPICallsCount(current_time)+" API calls so far this hour.");
+	  return true;
+	}
+
+	try {
+	  // If there is no last call, this is the beginning of the time series
+	  // for this venue. We get the number of people "here now" to initialize
+	  // the series, and we keep a snapshot of the complete venue.
+	  // Otherwise, we only extract the statistics we need from the response.
+	  VenueStats venue;
+	  if(venue_last_call.get(venue_id) == null) {
+		String venue_json = AttendanceCrawler.getFoursquareVenueById(venue_id, account);
+		venue = VenueStats.parse(new StringReader("{\"response\":{\"venue\":"+venue_json+"}}"));
+
+		FileWriter info = new FileWriter(folder + city + File.separator + "foursquare_venues" + File.separator + venue_id + ".info");
+		info.write(venue_json);
+		info.close();
+
+		observation_writers.get(city).create(venue_id, current_time, venue.getHereNow(), venue.getHereNow(), venue.getCheckincount());
+		catalogs.get(city).put(venue_id, venue.getLat(), venue.getLng(), venue.getCheckincount(), venue_json);
+		if(!Double.isNaN(venue.getLat()) && !Double.isNaN(venue.getLng()))
+		  spatial_indexes.get(city).add(venue_id, venue.getLat(), venue.getLng());
+	  }
+	  else {
+		venue = AttendanceCrawler.getFoursquareVenueStatsById(venue_id, account);
+
+		int checks = venue.getCheckincount()-venue_last_checkin.get(venue_id);
+		observation_writers.get(city).append(venue_id, current_time, venue.getHereNow(), checks, venue.getCheckincount());
+	  }
+
+	  incrementAPICallsCount(current_time);
+	  venue_retries.remove(venue_id);
+
+	  venue_last_checkin.put(venue_id, venue.getCheckincount());
+	  venue_last_call.put(venue_id, current_time);
+
+	  return true;
+	} catch(Exception e) {
+	  // If something bad happens (crawler not available, IO error, ...), the
+	  // venue gets reevaluated later.
+	  Metrics.getInstance().recordError(getErrorType(e));
+	  log(error_logs, city, "Error with venue "+venue_id+" ("+e.getMessage()+"). "+getAPICallsCount(current_time)+" API calls so far this hour.");
+	  System.out.println("["+df.get().format(getCityCalendar(settings, city).getTime())+"] "+city+" -- "+getAPICallsCount(current_time)+" API calls // venue "+venue_id+" ("+e.getMessage()+")");
+
+	  if(e instanceof FoursquareAPIException
+		  && ((FoursquareAPIException) e).getHttp_code().equals("400")
+		  && ((FoursquareAPIException) e).getError_detail().equals("Venue "+venue_id+" has been deleted")) {
+		city_venues.get(city).remove(venue_id);
+		pool.release(venue_id);
+		observation_writers.get(city).release(venue_id);
+		spatial_indexes.get(city).remove(venue_id);
+		catalogs.get(city).remove(venue_id);
+		AttendanceCrawler.removeVenue(venue_id, city);
+		return true;
+	  }
+
+	  Integer retries = venue_retries.get(venue_id);
+	  venue_retries.put(venue_id, retries == null ? 1 : retries+1);
+	  return false;
+	}
+  }
+
+  /** Returns the type of an error, as counted by the metrics. */
+  static String getErrorType(Exception e) {
+	if(e instanceof FoursquareAPIException) {
+	  FoursquareAPIException api_exception = (FoursquareAPIException) e;
+	  return api_exception.getError_type().isEmpty() ? "http_"+api_exception.getHttp_code() : api_exception.getError_type();
+	}
+	return e.getClass().getSimpleName();
+  }
+
+  private void incrementAPICallsCount(long current_time) {
+	AtomicInteger count = api_calls_count.get(current_time);
+	if(count == null) {
+	  AtomicInteger created = new AtomicInteger();
+	  count = api_calls_count.putIfAbsent(current_time, created);
+	  if(count == null)
+		count = created;
+	}
+	count.incrementAndGet();
+  }
+
+  public int getAPICallsCount(long current_time) {
+	AtomicInteger count = api_calls_count.get(current_time);
+	return count == null ? 0 : count.get();
+  }
+
+  /** Writes a message in one of the logs of a city. Logs are shared by all the workers. */
+  public void log(Map<String,FileWriter> logs, String city, String message) throws IOException {
+	FileWriter log = logs.get(city);
+	synchronized(log) {
+	  log.write("["+df.get().format(getCityCalendar(settings, city).getTime())+"] "+message+"\n");
+	  log.flush();
+	}
+  }
+
+  public void logInfo(String city, String message) throws IOException {
+	log(info_logs, city, message);
+  }
+
+  public void logError(String city, String message) throws IOException {
+	log(error_logs, city, message);
+  }
+
+  /** Writes the observations that are still buffered, and the checkpoints. */
+  public void shutdown() throws IOException {
+	for(String city: observation_writers.keySet()) {
+	  checkpoint(city);
+	  observation_writers.get(city).close();
+	  rollups.get(city).save();
+	  catalogs.get(city).close();
+	}
+  }
+}
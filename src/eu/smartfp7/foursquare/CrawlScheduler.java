@@ -0,0 +1,276 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.smartfp7.foursquare.utils.Settings;
+
+/**
+ * Schedules the API calls of the attendance crawler.
+ *
+ * Every venue has a due time, and the venues wait in a queue ordered by due
+ * time (a `DelayQueue`). The worker threads take the venues from the queue as
+ * soon as they are due, and sleep until the next one is due otherwise: no CPU
+ * is used between two hours.
+ * Once a venue has been crawled, it is due again at the beginning of the next
+ * hour of its city. A failed call is retried later in the same hour, after a
+ * delay that doubles with each failure (with some jitter, so that the venues
+ * that failed together are not retried together).
+ *
+ * When all the venues of a city have been crawled for an hour (or have given
+ * up), the observations of the city are written and the listener is called.
+ */
+public class CrawlScheduler {
+
+  static final private long Milliseconds_in_1_hour = 3600000;
+
+  /** Notified when the crawl of a city for an hour is over. */
+  public interface Listener {
+	void hourCompleted(String city, long hour);
+  }
+
+  /** A venue waiting for its next call. */
+  private static class ScheduledVenue implements Delayed {
+	final String city;
+	final String venue_id;
+	final long   hour;     // The hour of the city the call is made for.
+	final int    attempts; // The number of failed calls for this hour.
+	final long   due;      // System.nanoTime() at which the call can be made.
+
+	ScheduledVenue(String city, String venue_id, long hour, int attempts, long delay_ms) {
+	  this.city     = city;
+	  this.venue_id = venue_id;
+	  this.hour     = hour;
+	  this.attempts = attempts;
+	  this.due      = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay_ms));
+	}
+
+	@Override
+	public long getDelay(TimeUnit unit) {
+	  return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+	}
+
+	@Override
+	public int compareTo(Delayed other) {
+	  long diff = due - ((ScheduledVenue) other).due;
+	  return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+	}
+  }
+
+  private final Settings    settings;
+  private final CrawlEngine engine;
+  private final Map<String,Collection<String>> city_venues;
+  private final Listener    listener;
+  private final int         threads;
+  private final long        backoff_base;
+  private final long        backoff_max;
+
+  private final DelayQueue<ScheduledVenue> queue = new DelayQueue<ScheduledVenue>();
+  private final ExecutorService workers;
+
+  // The number of venues of each city that are not done yet for a given hour.
+  private final ConcurrentMap<String,AtomicInteger> remaining = new ConcurrentHashMap<String, AtomicInteger>();
+
+  public CrawlScheduler(Settings settings, CrawlEngine engine, Map<String,Collection<String>> city_venues, Listener listener) {
+	this.settings     = settings;
+	this.engine       = engine;
+	this.city_venues  = city_venues;
+	this.listener     = listener;
+	this.threads      = settings.getCrawlThreads();
+	this.backoff_base = settings.getRetryBackoffBase();
+	this.backoff_max  = settings.getRetryBackoffMax();
+	this.workers      = Executors.newFixedThreadPool(threads);
+  }
+
+  /**
+   * Schedules all the venues (the ones that have not been crawled yet during
+   * the current hour are due immediately, unless their last calls failed:
+   * they are then retried after the backoff they had reached, see
+   * `CrawlEngine.getRetries`) and starts the worker threads.
+   */
+  public void start() {
+	for(String city: city_venues.keySet()) {
+	  long hour = CrawlEngine.getCityHour(settings, city);
+
+	  Collection<String> venues;
+	  synchronized(city_venues.get(city)) {
+		venues = new ArrayList<String>(city_venues.get(city));
+	  }
+
+	  for(String venue_id: venues) {
+		int retries = engine.getRetries(venue_id);
+		if(!engine.isDue(venue_id, hour))
+		  scheduleNextHour(city, venue_id);
+		else if(retries == 0)
+		  schedule(new ScheduledVenue(city, venue_id, hour, 0, 0));
+		else {
+		  // As in `crawl`, the venue waits for the next hour if its backoff
+		  // goes beyond the current one.
+		  long delay = getBackoff(retries);
+		  if(delay < CrawlEngine.getTimeToNextCityHour(settings, city))
+			schedule(new ScheduledVenue(city, venue_id, hour, retries, delay));
+		  else
+			scheduleNextHour(city, venue_id);
+		}
+	  }
+
+	  // Nothing to do this hour: the crawl of the city is already over.
+	  if(!remaining.containsKey(city+"@"+hour))
+		listener.hourCompleted(city, hour);
+	}
+
+	for(int i = 0 ; i < threads ; ++i) {
+	  workers.submit(new Runnable() {
+		@Override
+		public void run() {
+		  work();
+		}
+	  });
+	}
+	workers.shutdown();
+  }
+
+  private void work() {
+	try {
+	  while(!Thread.currentThread().isInterrupted())
+		crawl(queue.take());
+	} catch (InterruptedException e) {
+	  // The crawler is being stopped.
+	}
+  }
+
+  private void crawl(ScheduledVenue venue) throws InterruptedException {
+	// The venue has been removed (e.g. deleted on Foursquare).
+	if(!city_venues.get(venue.city).contains(venue.venue_id)) {
+	  done(venue);
+	  return;
+	}
+
+	boolean success;
+	try {
+	  success = engine.crawlVenue(venue.city, venue.venue_id, CrawlEngine.getCityHour(settings, venue.city));
+	} catch (InterruptedException e) {
+	  throw e;
+	} catch (Exception e) {
+	  e.printStackTrace();
+	  success = false;
+	}
+
+	if(success) {
+	  done(venue);
+	  if(city_venues.get(venue.city).contains(venue.venue_id))
+		scheduleNextHour(venue.city, venue.venue_id);
+	  return;
+	}
+
+	// The call is retried after an exponential backoff, as long as we are
+	// still in the same hour. Otherwise, the venue waits for the next hour.
+	long delay = getBackoff(venue.attempts+1);
+	if(delay < CrawlEngine.getTimeToNextCityHour(settings, venue.city))
+	  queue.add(new ScheduledVenue(venue.city, venue.venue_id, venue.hour, venue.attempts+1, delay));
+	else {
+	  done(venue);
+	  scheduleNextHour(venue.city, venue.venue_id);
+	}
+  }
+
+  /**
+   * Returns the delay (in milliseconds) before the n-th retry: the base delay
+   * is doubled at each attempt (up to a maximum), and a random half of it is
+   * removed.
+   */
+  long getBackoff(int attempts) {
+	long delay = backoff_base << Math.min(attempts-1, 30);
+	if(delay <= 0 || delay > backoff_max)
+	  delay = backoff_max;
+
+	return delay/2 + ThreadLocalRandom.current().nextLong(delay/2 + 1);
+  }
+
+  private void scheduleNextHour(String city, String venue_id) {
+	long next_hour = CrawlEngine.getCityHour(settings, city) + Milliseconds_in_1_hour;
+	schedule(new ScheduledVenue(city, venue_id, next_hour, 0, CrawlEngine.getTimeToNextCityHour(settings, city)));
+  }
+
+  private void schedule(ScheduledVenue venue) {
+	getRemaining(venue.city, venue.hour).incrementAndGet();
+	queue.add(venue);
+  }
+
+  /** A venue is done for its hour: if it was the last one of its city, the hour is completed. */
+  private void done(ScheduledVenue venue) {
+	if(getRemaining(venue.city, venue.hour).decrementAndGet() > 0)
+	  return;
+
+	remaining.remove(venue.city+"@"+venue.hour);
+
+	// All the observations of the hour are written in a single group commit.
+	try {
+	  engine.getObservationWriter(venue.city).commit();
+	} catch (IOException e) {
+	  e.printStackTrace();
+	}
+
+	listener.hourCompleted(venue.city, venue.hour);
+  }
+
+  private AtomicInteger getRemaining(String city, long hour) {
+	String key = city+"@"+hour;
+	AtomicInteger count = remaining.get(key);
+	if(count == null) {
+	  AtomicInteger created = new AtomicInteger();
+	  count = remaining.putIfAbsent(key, created);
+	  if(count == null)
+		count = created;
+	}
+	return count;
+  }
+
+  /** Returns the number of venues of a city that have not been crawled yet during the current hour. */
+  public int getBacklog(String city) {
+	AtomicInteger count = remaining.get(city+"@"+CrawlEngine.getCityHour(settings, city));
+	return count == null ? 0 : count.get();
+  }
+
+  /** Returns the number of venues waiting for their next call. */
+  public int getQueueSize() {
+	return queue.size();
+  }
+
+  /** Blocks until the worker threads have stopped. */
+  public void awaitTermination() throws InterruptedException {
+	while(!workers.awaitTermination(1, TimeUnit.DAYS));
+  }
+
+  /** Stops the worker threads, waiting for the calls in progress. */
+  public void shutdown() throws InterruptedException {
+	workers.shutdownNow();
+	workers.awaitTermination(1, TimeUnit.MINUTES);
+  }
+}
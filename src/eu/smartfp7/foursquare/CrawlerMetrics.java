@@ -0,0 +1,236 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+package eu.smartfp7.foursquare;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import eu.smartfp7.foursquare.utils.APIAccount;
+import eu.smartfp7.foursquare.utils.CredentialPool;
+import eu.smartfp7.foursquare.utils.LatencyHistogram;
+import eu.smartfp7.foursquare.utils.Metrics;
+
+/**
+ * Exposes the metrics of the attendance crawler: API calls per account,
+ * latency percentiles, errors by type, backlog of the scheduler,
+ * observations written and repair durations.
+ *
+ * The metrics are registered as an MXBean (see `CrawlerMetricsMXBean`), and
+ * can also be served in the Prometheus text format on
+ * http://127.0.0.1:<metrics_port>/metrics.
+ * They are only computed when they are read: the crawlers just update the
+ * counters of `Metrics` and of the accounts.
+ */
+public class CrawlerMetrics implements CrawlerMetricsMXBean {
+
+  public static final String OBJECT_NAME = "eu.smartfp7.foursquare:type=Crawler";
+
+  private static final double[] QUANTILES = { 0.5, 0.95, 0.99 };
+
+  private final CredentialPool     pool;
+  private final CrawlScheduler     scheduler;
+  private final RepairService      repairs;
+  private final Collection<String> cities;
+  private final Metrics            metrics = Metrics.getInstance();
+
+  private HttpServer server = null;
+
+  public CrawlerMetrics(CredentialPool pool, CrawlScheduler scheduler, RepairService repairs, Collection<String> cities) {
+	this.pool      = pool;
+	this.scheduler = scheduler;
+	this.repairs   = repairs;
+	this.cities    = cities;
+  }
+
+  /** Registers the MXBean and, if `port` is not 0, starts serving the Prometheus endpoint. */
+  public void start(int port) throws IOException {
+	try {
+	  MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+	  ObjectName name = new ObjectName(OBJECT_NAME);
+	  if(!mbeans.isRegistered(name))
+		mbeans.registerMBean(this, name);
+	} catch (JMException e) {
+	  e.printStackTrace();
+	}
+
+	if(port == 0)
+	  return;
+
+	server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+	server.createContext("/metrics", new HttpHandler() {
+	  @Override
+	  public void handle(HttpExchange exchange) throws IOException {
+		byte[] body = toPrometheus().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+		  out.write(body);
+		} finally {
+		  out.close();
+		}
+	  }
+	});
+	server.start();
+  }
+
+  public void stop() {
+	if(server != null)
+	  server.stop(0);
+  }
+
+  @Override
+  public long getApiCalls() {
+	return metrics.getAPILatency().getCount();
+  }
+
+  @Override
+  public Map<String,Long> getApiCallsByAccount() {
+	Map<String,Long> calls = new TreeMap<String, Long>();
+	for(APIAccount account: pool.getAccounts())
+	  calls.put(account.getClientId(), account.getTotalCalls());
+	return calls;
+  }
+
+  @Override
+  public long getApiLatencyP50() {
+	return metrics.getAPILatency().getPercentile(0.5);
+  }
+
+  @Override
+  public long getApiLatencyP95() {
+	return metrics.getAPILatency().getPercentile(0.95);
+  }
+
+  @Override
+  public long getApiLatencyP99() {
+	return metrics.getAPILatency().getPercentile(0.99);
+  }
+
+  @Override
+  public Map<String,Long> getErrorsByType() {
+	return metrics.getErrors();
+  }
+
+  @Override
+  public Map<String,Integer> getBacklog() {
+	Map<String,Integer> backlog = new TreeMap<String, Integer>();
+	for(String city: cities)
+	  backlog.put(city, scheduler.getBacklog(city));
+	return backlog;
+  }
+
+  @Override
+  public long getObservationsWritten() {
+	return metrics.getObservationsWritten();
+  }
+
+  @Override
+  public Map<String,Long> getRepairDurations() {
+	Map<String,Long> durations = new TreeMap<String, Long>();
+	for(RepairService.Progress progress: repairs.getProgress())
+	  durations.put(progress.getCity(), progress.getDuration());
+	return durations;
+  }
+
+  /** Returns all the metrics in the Prometheus text exposition format. */
+  public String toPrometheus() {
+	StringBuilder out = new StringBuilder();
+	long now = System.currentTimeMillis();
+
+	header(out, "foursquare_api_calls_total", "counter", "API calls made with each account.");
+	for(APIAccount account: pool.getAccounts())
+	  sample(out, "foursquare_api_calls_total", "account", account.getClientId(), account.getTotalCalls());
+
+	header(out, "foursquare_api_calls_remaining", "gauge", "API calls that can still be made with each account during the current hour.");
+	for(APIAccount account: pool.getAccounts())
+	  sample(out, "foursquare_api_calls_remaining", "account", account.getClientId(), account.remaining(now));
+
+	LatencyHistogram latency = metrics.getAPILatency();
+	header(out, "foursquare_api_latency_seconds", "summary", "Latency of the API calls.");
+	for(double quantile: QUANTILES)
+	  sample(out, "foursquare_api_latency_seconds", "quantile", Double.toString(quantile), latency.getPercentile(quantile) / 1000.0);
+	sample(out, "foursquare_api_latency_seconds_count", null, null, latency.getCount());
+	sample(out, "foursquare_api_latency_seconds_sum", null, null, latency.getSum() / 1000.0);
+
+	header(out, "foursquare_api_errors_total", "counter", "Failed API calls by type of error.");
+	for(Map.Entry<String,Long> entry: metrics.getErrors().entrySet())
+	  sample(out, "foursquare_api_errors_total", "type", entry.getKey(), entry.getValue());
+
+	header(out, "crawler_backlog_venues", "gauge", "Venues still to be crawled during the current hour.");
+	for(String city: cities)
+	  sample(out, "crawler_backlog_venues", "city", city, scheduler.getBacklog(city));
+
+	header(out, "crawler_observations_written_total", "counter", "Observations written to the time series.");
+	sample(out, "crawler_observations_written_total", null, null, metrics.getObservationsWritten());
+
+	header(out, "crawler_repair_duration_seconds", "gauge", "Duration of the current or last repair of each city.");
+	for(RepairService.Progress progress: repairs.getProgress())
+	  sample(out, "crawler_repair_duration_seconds", "city", progress.getCity(), progress.getDuration() / 1000.0);
+
+	header(out, "crawler_repair_files_repaired", "gauge", "Time series repaired by the current or last repair of each city.");
+	for(RepairService.Progress progress: repairs.getProgress())
+	  sample(out, "crawler_repair_files_repaired", "city", progress.getCity(), progress.getRepaired());
+
+	header(out, "crawler_repair_files_failed", "gauge", "Time series that could not be repaired by the current or last repair of each city.");
+	for(RepairService.Progress progress: repairs.getProgress())
+	  sample(out, "crawler_repair_files_failed", "city", progress.getCity(), progress.getFailed());
+
+	return out.toString();
+  }
+
+  private static void header(StringBuilder out, String name, String type, String help) {
+	out.append("# HELP ").append(name).append(" ").append(help).append("\n");
+	out.append("# TYPE ").append(name).append(" ").append(type).append("\n");
+  }
+
+  private static void sample(StringBuilder out, String name, String label, String value, double sample) {
+	out.append(name);
+	if(label != null) {
+	  out.append("{").append(label).append("=\"");
+	  // Backslashes, quotes and line feeds must be escaped in label values.
+	  for(char c: value.toCharArray()) {
+		if(c == '\\' || c == '"')
+		  out.append('\\').append(c);
+		else if(c == '\n')
+		  out.append("\\n");
+		else
+		  out.append(c);
+	  }
+	  out.append("\"}");
+	}
+	out.append(" ");
+	if(sample == Math.rint(sample) && !Double.isInfinite(sample))
+	  out.append((long) sample);
+	else
+	  out.append(sample);
+	out.append("\n");
+  }
+}
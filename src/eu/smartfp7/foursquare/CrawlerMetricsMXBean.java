@@ -0,0 +1,48 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+package eu.smartfp7.foursquare;
+
+import java.util.Map;
+
+/**
+ * The metrics of the attendance crawler, as exposed over JMX (under
+ * `eu.smartfp7.foursquare:type=Crawler`). See `CrawlerMetrics`.
+ */
+public interface CrawlerMetricsMXBean {
+
+  /** Returns the number of API calls made since the crawler started. */
+  long getApiCalls();
+
+  /** Returns the number of API calls made with each account (by client id). */
+  Map<String,Long> getApiCallsByAccount();
+
+  /** Returns the median latency of the API calls, in milliseconds. */
+  long getApiLatencyP50();
+
+  long getApiLatencyP95();
+
+  long getApiLatencyP99();
+
+  /** Returns the number of failed calls by type of error (e.g. `rate_limit_exceeded`). */
+  Map<String,Long> getErrorsByType();
+
+  /** Returns the number of venues of each city that are still to be crawled during the current hour. */
+  Map<String,Integer> getBacklog();
+
+  long getObservationsWritten();
+
+  /** Returns the duration (in milliseconds) of the current or last repair of each city. */
+  Map<String,Long> getRepairDurations();
+}
@@ -0,0 +1,241 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+package eu.smartfp7.foursquare;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The state of the discovery of the venues of a city (see `GetAllVenues`),
+ * kept in its `.exhaustive_crawl` folder:
+ * 	- `venues.json`: the venues found so far, one JSON object per line;
+ * 	- `venues.ids`: their ids, one per line;
+ * 	- `sweep.journal`: the boxes of the current sweep that have been searched.
+ *
+ * The ids of the venues are kept in a hash set, so that a venue found again
+ * is detected in constant time and written only once. The journal tells
+ * which boxes have been searched (and which ones have been split): when the
+ * discovery is restarted after a crash, the sweep skips them and goes on
+ * where it stopped. A box is written to the journal after its venues, so
+ * that no venue can be lost.
+ */
+public class DiscoveryIndex {
+
+  public static final String VENUES_FILE  = "venues.json";
+  public static final String IDS_FILE     = "venues.ids";
+  public static final String JOURNAL_FILE = "sweep.journal";
+
+  private final File venues_file;
+  private final File ids_file;
+  private final File journal_file;
+
+  private final Set<String> ids = new HashSet<String>();
+  private final Map<String,VenueSweep.BoxState> boxes = new HashMap<String, VenueSweep.BoxState>();
+
+  private BufferedWriter venues;
+  private BufferedWriter venue_ids;
+  private BufferedWriter journal;
+
+  private DiscoveryIndex(String folder) {
+	this.venues_file  = new File(folder, VENUES_FILE);
+	this.ids_file     = new File(folder, IDS_FILE);
+	this.journal_file = new File(folder, JOURNAL_FILE);
+  }
+
+  /**
+   * Opens the discovery state of a city. The venues file is compacted first,
+   * and the ids of its venues are loaded. If the journal belongs to the same
+   * sweep (i.e. same area, see `VenueSweep.getId`), the boxes it contains
+   * will be skipped.
+   *
+   * @param folder The `.exhaustive_crawl` folder of the city.
+   */
+  public static DiscoveryIndex open(String folder, String sweep) throws IOException {
+	DiscoveryIndex index = new DiscoveryIndex(folder);
+	index.ids.addAll(compact(index.venues_file, index.ids_file).keySet());
+
+	if(index.journal_file.exists()) {
+	  BufferedReader reader = new BufferedReader(new FileReader(index.journal_file));
+	  try {
+		String line = reader.readLine();
+		if(line != null && line.equals("# "+sweep)) {
+		  while((line = reader.readLine()) != null) {
+			// The last line can be incomplete if the crawler was killed while writing it.
+			if(line.startsWith("D "))
+			  index.boxes.put(line.substring(2), VenueSweep.BoxState.DONE);
+			else if(line.startsWith("S "))
+			  index.boxes.put(line.substring(2), VenueSweep.BoxState.SPLIT);
+		  }
+		}
+	  } finally {
+		reader.close();
+	  }
+	}
+
+	index.venues    = new BufferedWriter(new FileWriter(index.venues_file, true));
+	index.venue_ids = new BufferedWriter(new FileWriter(index.ids_file, true));
+	if(index.boxes.isEmpty()) {
+	  index.journal = new BufferedWriter(new FileWriter(index.journal_file));
+	  index.journal.write("# "+sweep+"\n");
+	  index.journal.flush();
+	}
+	else
+	  index.journal = new BufferedWriter(new FileWriter(index.journal_file, true));
+
+	return index;
+  }
+
+  /**
+   * Rewrites the venues file so that each venue appears once, with its latest
+   * record, and writes the ids file accordingly. Lines that cannot be parsed
+   * (e.g. the last line of an interrupted crawl) are removed.
+   * Returns the line of each venue in the compacted file, indexed by id.
+   */
+  public static Map<String,Integer> compact(File venues_file, File ids_file) throws IOException {
+	// First pass: the last record of each venue, in the order of these records.
+	Map<String,Integer> last = new LinkedHashMap<String, Integer>();
+	int lines = 0;
+
+	if(venues_file.exists()) {
+	  BufferedReader reader = new BufferedReader(new FileReader(venues_file));
+	  try {
+		for(String line; (line = reader.readLine()) != null; lines++) {
+		  String id = getId(line);
+		  if(id != null) {
+			last.remove(id);
+			last.put(id, lines);
+		  }
+		}
+	  } finally {
+		reader.close();
+	  }
+	}
+
+	// Second pass, only if there is something to remove.
+	if(last.size() < lines) {
+	  Set<Integer> kept = new HashSet<Integer>(last.values());
+	  File tmp = new File(venues_file.getPath() + ".tmp");
+
+	  BufferedReader reader = new BufferedReader(new FileReader(venues_file));
+	  BufferedWriter writer = new BufferedWriter(new FileWriter(tmp));
+	  try {
+		int i = 0;
+		for(String line; (line = reader.readLine()) != null; i++)
+		  if(kept.contains(i))
+			writer.write(line+"\n");
+	  } finally {
+		reader.close();
+		writer.close();
+	  }
+
+	  Files.move(tmp.toPath(), venues_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	Map<String,Integer> compacted = new LinkedHashMap<String, Integer>();
+	int n = 0;
+	for(String id: last.keySet())
+	  compacted.put(id, n++);
+
+	File tmp = new File(ids_file.getPath() + ".tmp");
+	BufferedWriter writer = new BufferedWriter(new FileWriter(tmp));
+	try {
+	  for(String id: compacted.keySet())
+		writer.write(id+"\n");
+	} finally {
+	  writer.close();
+	}
+	Files.move(tmp.toPath(), ids_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	return compacted;
+  }
+
+  /** Returns the id of a venue given as a JSON object, or null if it cannot be read. */
+  static String getId(String venue) {
+	try {
+	  return VenueStats.parseVenue(new StringReader(venue)).getId();
+	} catch (Exception e) {
+	  return null;
+	}
+  }
+
+  /** Returns true if the venue has already been found. */
+  public synchronized boolean contains(String venue_id) {
+	return ids.contains(venue_id);
+  }
+
+  /** Returns the number of venues found so far. */
+  public synchronized int size() {
+	return ids.size();
+  }
+
+  /** Returns the state of a box in the current sweep. */
+  public synchronized VenueSweep.BoxState getState(String box) {
+	VenueSweep.BoxState state = boxes.get(box);
+	return state == null ? VenueSweep.BoxState.PENDING : state;
+  }
+
+  /**
+   * Writes the new venues of a box, then marks the box as searched.
+   *
+   * @param venues The venues of the box (JSON objects), indexed by id.
+   * @param split  True if the box was full and has been split.
+   */
+  public synchronized void record(String box, Map<String,String> venues, boolean split) throws IOException {
+	boolean written = false;
+	for(Map.Entry<String,String> venue: venues.entrySet()) {
+	  if(!ids.add(venue.getKey()))
+		continue;
+
+	  this.venues.write(venue.getValue()+"\n");
+	  venue_ids.write(venue.getKey()+"\n");
+	  written = true;
+	}
+
+	if(written) {
+	  this.venues.flush();
+	  venue_ids.flush();
+	}
+
+	VenueSweep.BoxState state = split ? VenueSweep.BoxState.SPLIT : VenueSweep.BoxState.DONE;
+	boxes.put(box, state);
+	journal.write((split ? "S " : "D ")+box+"\n");
+	journal.flush();
+  }
+
+  /** Ends the current sweep: the next one will search every box again. */
+  public synchronized void finishSweep() throws IOException {
+	journal.close();
+	journal_file.delete();
+	boxes.clear();
+  }
+
+  public synchronized void close() throws IOException {
+	venues.close();
+	venue_ids.close();
+	journal.close();
+  }
+}
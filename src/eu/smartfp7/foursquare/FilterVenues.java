@@ -20,10 +20,16 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.util.*;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
 
 import eu.smartfp7.foursquare.utils.Settings;
-import eu.smartfp7.foursquare.utils.Utils;
 
 
 /**
@@ -31,7 +37,8 @@ import eu.smartfp7.foursquare.utils.Utils;
  * Since the Foursquare API only allows us to make 5,000 calls per hour, we
  * need to use only a sample of all the venues crawled for a given city.
  * We take the 3,000 venues with the highest number of checkins + a random
- * sample of 1,950 venues from the remaining ones.
+ * sample of 1,950 venues from the remaining ones (these numbers can be
+ * changed with the `filter_top_venues` and `filter_sample_venues` settings).
  * We keep 50 'empty' API calls as a security margin in case something goes 
  * wrong during the hourly crawl.
  * 
@@ -47,61 +54,109 @@ public class FilterVenues {
 	String city = args[0];
 	String folder = Settings.getInstance().getFolder();
 
+	// Get the information from the crawled venues, each of them appearing once.
+	String discovery = folder + city + File.separator + ".exhaustive_crawl" + File.separator;
+	DiscoveryIndex.compact(new File(discovery + DiscoveryIndex.VENUES_FILE), new File(discovery + DiscoveryIndex.IDS_FILE));
+	
+	BufferedReader buffer = new BufferedReader(new FileReader(discovery + DiscoveryIndex.VENUES_FILE));
+	Collection<String> best_venues = selectVenues(buffer, Settings.getInstance().getFilterTopVenues(), Settings.getInstance().getFilterSampleVenues());
+	buffer.close();
+	
 	// We create the output file in the folder specified in the arguments.
 	FileWriter outFile = new FileWriter(folder + city + File.separator + "venues.ids");
 	
-	// Get the information from the crawled venues.
-	BufferedReader buffer = new BufferedReader(new FileReader(folder + city + File.separator + ".exhaustive_crawl" + File.separator + "venues.json"));
+	// Writing the venue_ids in the output file.
+	for(String venue_id: best_venues)
+	  outFile.write(venue_id+"\n") ;
+	
+	outFile.close();
+  }
+  
+  /** A venue and its number of checkins, as read from the discovery file. */
+  private static class Candidate {
+	final String id;
+	final int    checkins;
+
+	Candidate(String id, int checkins) {
+	  this.id       = id;
+	  this.checkins = checkins;
+	}
+  }
+
+  /**
+   * Selects the `top` venues with the highest number of checkins, plus `sample`
+   * venues drawn at random from the remaining ones.
+   * 
+   * The venues are read in a single pass, and only their id and number of
+   * checkins are extracted. The best venues are kept in a min-heap of size
+   * `top`: a venue either enters it (and pushes out the weakest one) or is
+   * out of the top for good. The venues out of the top are sampled with a
+   * reservoir of size `sample`. The memory thus depends on `top`+`sample`,
+   * not on the number of venues.
+   * Each venue is expected to appear once (see `DiscoveryIndex.compact`).
+   * 
+   * @param buffer The venues, one Foursquare JSON object per line.
+   */
+  public static Collection<String> selectVenues(BufferedReader buffer, int top, int sample) throws IOException {
+	return selectVenues(buffer, top, sample, new Random());
+  }
+  
+  static Collection<String> selectVenues(BufferedReader buffer, int top, int sample, Random random) throws IOException {
+	PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(Math.max(1, top), new Comparator<Candidate>() {
+	  @Override
+	  public int compare(Candidate a, Candidate b) {
+		return Integer.compare(a.checkins, b.checkins);
+	  }
+	});
+	
+	List<String> reservoir = new ArrayList<String>(sample);
+	long others = 0;
+	
 	String line = null ;
-    
-	Map<String,Integer> venueCheckins = new HashMap<String,Integer>();
+	while ((line = buffer.readLine()) != null) {
+	  Candidate venue;
+	  try {
+		VenueStats stats = VenueStats.parseVenue(new StringReader(line));
+		if(stats.getId() == null)
+		  continue;
+		venue = new Candidate(stats.getId(), stats.getCheckincount());
+	  } catch (Exception e) {
+		continue;
+	  }
+	  
+	  // The venue enters the top if it is better than the weakest one, which
+	  // is then out of the top for good. Otherwise, the venue itself is out.
+	  if(best.size() < top) {
+		best.add(venue);
+		continue;
+	  }
+	  if(top > 0 && venue.checkins > best.peek().checkins) {
+		best.add(venue);
+		venue = best.poll();
+	  }
+	  
+	  // Reservoir sampling: the n-th venue out of the top replaces a random
+	  // venue of the sample with probability sample/n.
+	  others++;
+	  if(reservoir.size() < sample)
+		reservoir.add(venue.id);
+	  else {
+		long j = (long) (random.nextDouble() * others);
+		if(j < sample)
+		  reservoir.set((int) j, venue.id);
+	  }
+	}
+	
+	// The top venues come first, by decreasing number of checkins.
+	List<Candidate> sorted = new ArrayList<Candidate>(best);
+	Collections.sort(sorted, Collections.reverseOrder(best.comparator()));
+	
+	Collection<String> best_venues = new ArrayList<String>(sorted.size() + reservoir.size());
+	for(Candidate venue: sorted)
+	  best_venues.add(venue.id);
+	best_venues.addAll(reservoir);
 	
-    while ((line = buffer.readLine()) != null) {
-      // We have a very convenient Venue class which creates an object from
-      // a Foursquare JSON line.
-      try {
-    	Venue venue = new Venue(line);
-    	venueCheckins.put(venue.getId(), venue.getCheckincount());
-      } catch (Exception e) {
-    	continue;
-      }
-    }
-    
-    buffer.close();
-        
-    Collection<String> best_venues  = new ArrayList<String>();
-    Collection<String> other_venues = new ArrayList<String>(venueCheckins.keySet());
-    
-    venueCheckins = Utils.sortMapByValue(venueCheckins);
-    
-    // We get the top 3,000 venues by their checkins counts.
-    int i = 0;
-    for(String venue_id: venueCheckins.keySet()) {
-      if(i == 3000)
-    	break;
-      best_venues.add(venue_id);
-      i++;
-    }
-    
-    // Then we remove those best venues from the complete set and shuffle
-    // the rest...
-    other_venues.removeAll(best_venues);
-    Collections.shuffle((List<?>) other_venues);
-    
-    // ... and draw 1,950 venues.
-    i = 0;
-    for(String venue_id: other_venues) {
-      if(i == 1950)
-    	break;
-      best_venues.add(venue_id);
-      i++;
-    }
-    
-    // Writing the venue_ids in the output file.
-    for(String venue_id: best_venues)
-      outFile.write(venue_id+"\n") ;
-    
-    outFile.close();
+	return best_venues;
   }
 
 }
@@ -0,0 +1,371 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * The forecasts of all the venues of a city (the files generated by the batch
+ * R process, one "date,value" line per hour), in a dense matrix with one row
+ * per venue and one column per hour of the horizon.
+ *
+ * The files are read in parallel, and the dates are only parsed once for the
+ * whole city: the forecasts of a city are expected to cover the same hours
+ * (a shorter forecast is padded with NaN). The sum over the city and the
+ * probabilities of the venues,
+ *   prob = (value + mu*back_prob) / (sum + mu),
+ * are then computed by plain loops over the rows, which are split among
+ * worker threads. The NaN values of the forecasts count as 0 in the sum.
+ *
+ * The per-venue API of `VenueForecast` is kept: a `VenueForecast` is a view
+ * of a row of the matrix.
+ */
+public class ForecastMatrix {
+
+  // The rows are split among the workers by blocks of this number of venues.
+  private static final int BLOCK = 256;
+
+  private static final ForkJoinPool workers = new ForkJoinPool();
+
+  private final String[]            venues;
+  private final Map<String,Integer> rows = new HashMap<String, Integer>();
+  private final String[]            dates;
+  private final long[]              times;
+  final int[]                       lengths;
+  final double[][]                  values;
+
+  // Allocated by the first computation of the probabilities.
+  double[][] probs;
+
+  // The sum of the forecasts of the city (null if it must be computed again).
+  private double[] sum;
+
+  private ForecastMatrix(String[] venues, String[] dates, long[] times, int[] lengths, double[][] values) {
+	this.venues  = venues;
+	this.dates   = dates;
+	this.times   = times;
+	this.lengths = lengths;
+	this.values  = values;
+
+	for(int i = 0 ; i < venues.length ; ++i)
+	  rows.put(venues[i], i);
+  }
+
+  /** Reads the forecasts of all the files of a directory (the venue ids are the names of the files, without extension). */
+  public static ForecastMatrix load(String directory) throws IOException {
+	File[] files = new File(directory).listFiles();
+	if(files == null)
+	  throw new IOException(directory+" is not a directory.");
+
+	Arrays.sort(files);
+	List<File> forecasts = new ArrayList<File>();
+	for(File file: files)
+	  if(file.isFile() && !file.isHidden())
+		forecasts.add(file);
+
+	return load(forecasts);
+  }
+
+  /** Reads forecast files, in parallel. */
+  public static ForecastMatrix load(List<File> files) throws IOException {
+	int n = files.size();
+	double[][]    values = new double[n][];
+	String[][]    dates  = new String[n][];
+	int[]         lengths = new int[n];
+	IOException[] errors = new IOException[n];
+
+	workers.invoke(new LoadTask(files, 0, n, values, dates, lengths, errors));
+
+	for(IOException error: errors)
+	  if(error != null)
+		throw error;
+
+	// The dates of the longest forecast are the columns of the matrix.
+	int longest = 0;
+	for(int i = 0 ; i < n ; ++i)
+	  if(lengths[i] > lengths[longest])
+		longest = i;
+
+	int      horizon = n == 0 ? 0 : lengths[longest];
+	String[] columns = n == 0 ? new String[0] : Arrays.copyOf(dates[longest], horizon);
+	long[]   times   = new long[horizon];
+
+	DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	for(int t = 0 ; t < horizon ; ++t) {
+	  try {
+		times[t] = df.parse(columns[t]).getTime();
+	  } catch (ParseException e) {
+		throw new IOException("Invalid date in "+files.get(longest)+": "+columns[t]);
+	  }
+	}
+
+	String[] venues = new String[n];
+	for(int i = 0 ; i < n ; ++i) {
+	  String name = files.get(i).getName();
+	  venues[i] = name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name;
+
+	  if(values[i].length != horizon) {
+		values[i] = Arrays.copyOf(values[i], horizon);
+		Arrays.fill(values[i], lengths[i], horizon, Double.NaN);
+	  }
+	}
+
+	return new ForecastMatrix(venues, columns, times, lengths, values);
+  }
+
+  /** Reads a range of forecast files. */
+  private static class LoadTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private static final int THRESHOLD = 16;
+
+	private final List<File>    files;
+	private final int           from, to;
+	private final double[][]    values;
+	private final String[][]    dates;
+	private final int[]         lengths;
+	private final IOException[] errors;
+
+	LoadTask(List<File> files, int from, int to, double[][] values, String[][] dates, int[] lengths, IOException[] errors) {
+	  this.files   = files;
+	  this.from    = from;
+	  this.to      = to;
+	  this.values  = values;
+	  this.dates   = dates;
+	  this.lengths = lengths;
+	  this.errors  = errors;
+	}
+
+	@Override
+	protected void compute() {
+	  if(to - from > THRESHOLD) {
+		int middle = (from + to) >>> 1;
+		invokeAll(new LoadTask(files, from, middle, values, dates, lengths, errors),
+				  new LoadTask(files, middle, to, values, dates, lengths, errors));
+		return;
+	  }
+
+	  for(int i = from ; i < to ; ++i) {
+		try {
+		  read(i);
+		} catch (IOException e) {
+		  errors[i] = e;
+		} catch (NumberFormatException e) {
+		  errors[i] = new IOException("Invalid forecast in "+files.get(i)+": "+e.getMessage());
+		}
+	  }
+	}
+
+	private void read(int i) throws IOException {
+	  double[] row  = new double[256];
+	  String[] days = new String[256];
+	  int      size = 0;
+
+	  BufferedReader buffer = new BufferedReader(new FileReader(files.get(i)));
+	  try {
+		for(String line ; (line = buffer.readLine()) != null ; ) {
+		  if(line.isEmpty())
+			continue;
+
+		  int comma = line.indexOf(',');
+		  int next  = line.indexOf(',', comma+1);
+		  if(comma < 0)
+			throw new IOException("Invalid line in "+files.get(i)+": "+line);
+
+		  if(size == row.length) {
+			row  = Arrays.copyOf(row, size*2);
+			days = Arrays.copyOf(days, size*2);
+		  }
+		  days[size] = line.substring(0, comma);
+		  row[size]  = Double.parseDouble(line.substring(comma+1, next < 0 ? line.length() : next));
+		  size++;
+		}
+	  } finally {
+		buffer.close();
+	  }
+
+	  values[i]  = Arrays.copyOf(row, size);
+	  dates[i]   = days;
+	  lengths[i] = size;
+	}
+  }
+
+  /** Returns the number of venues (rows). */
+  public int size() {
+	return venues.length;
+  }
+
+  /** Returns the number of hours (columns). */
+  public int getHorizon() {
+	return dates.length;
+  }
+
+  public List<String> getVenues() {
+	return Collections.unmodifiableList(Arrays.asList(venues));
+  }
+
+  /** Returns the row of a venue, or -1 if there is no forecast for it. */
+  public int indexOf(String venue_id) {
+	Integer row = rows.get(venue_id);
+	return row == null ? -1 : row;
+  }
+
+  /** Returns the column of a time (in milliseconds), or -1 if it is not in the horizon. */
+  public int indexOf(long time) {
+	int column = Arrays.binarySearch(times, time);
+	return column < 0 ? -1 : column;
+  }
+
+  public String getDate(int column) {
+	return dates[column];
+  }
+
+  /** Returns the time of a column, in milliseconds (the dates are in the local time zone). */
+  public long getTime(int column) {
+	return times[column];
+  }
+
+  public double getValue(int row, int column) {
+	return values[row][column];
+  }
+
+  /** Returns a probability, or NaN if they have not been computed (see `computeProbs`). */
+  public double getProb(int row, int column) {
+	return probs == null ? Double.NaN : probs[row][column];
+  }
+
+  /** Returns the forecast of a venue, as a view of its row, or null if there is no forecast for it. */
+  public VenueForecast getForecast(String venue_id) {
+	int row = indexOf(venue_id);
+	return row < 0 ? null : new VenueForecast(this, row);
+  }
+
+  /** Returns the sum of the forecasts of all the venues, for each hour. */
+  public synchronized double[] getSum() {
+	if(sum == null) {
+	  int blocks = (venues.length + BLOCK - 1) / BLOCK;
+	  final double[][] partial = new double[blocks][];
+
+	  workers.invoke(new BlockTask(new BlockOperation() {
+		@Override
+		public void apply(int from, int to, int block) {
+		  double[] s = new double[dates.length];
+		  for(int v = from ; v < to ; ++v) {
+			double[] row = values[v];
+			for(int t = 0 ; t < s.length ; ++t) {
+			  double x = row[t];
+			  s[t] += x == x ? x : 0;
+			}
+		  }
+		  partial[block] = s;
+		}
+	  }, 0, blocks));
+
+	  double[] total = new double[dates.length];
+	  for(double[] s: partial)
+		for(int t = 0 ; t < total.length ; ++t)
+		  total[t] += s[t];
+	  sum = total;
+	}
+	return sum;
+  }
+
+  /** Must be called when values have been modified. */
+  synchronized void invalidateSum() {
+	sum = null;
+  }
+
+  /**
+   * Computes the probabilities of all the venues, for all the hours:
+   * prob = (value + mu*back_prob) / (sum + mu).
+   */
+  public synchronized void computeProbs(double mu, double back_prob) {
+	final double   prior = mu*back_prob;
+	final double[] norm  = getSum().clone();
+	for(int t = 0 ; t < norm.length ; ++t)
+	  norm[t] += mu;
+
+	if(probs == null)
+	  probs = new double[venues.length][dates.length];
+
+	workers.invoke(new BlockTask(new BlockOperation() {
+	  @Override
+	  public void apply(int from, int to, int block) {
+		for(int v = from ; v < to ; ++v) {
+		  double[] row = values[v];
+		  double[] out = probs[v];
+		  for(int t = 0 ; t < out.length ; ++t)
+			out[t] = (row[t] + prior) / norm[t];
+		}
+	  }
+	}, 0, (venues.length + BLOCK - 1) / BLOCK));
+  }
+
+  /** Returns the probabilities of all the venues (in the order of the rows) for an hour of the horizon. */
+  public double[] score(int column, double mu, double back_prob) {
+	double prior = mu*back_prob;
+	double norm  = getSum()[column] + mu;
+
+	double[] scores = new double[venues.length];
+	for(int v = 0 ; v < scores.length ; ++v)
+	  scores[v] = (values[v][column] + prior) / norm;
+	return scores;
+  }
+
+  /** An operation on the rows [from, to[, which are the block number `block`. */
+  private interface BlockOperation {
+	void apply(int from, int to, int block);
+  }
+
+  /** Applies an operation to a range of blocks of rows, in parallel. */
+  private class BlockTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	private final BlockOperation operation;
+	private final int            first, last;
+
+	BlockTask(BlockOperation operation, int first, int last) {
+	  this.operation = operation;
+	  this.first     = first;
+	  this.last      = last;
+	}
+
+	@Override
+	protected void compute() {
+	  if(last - first > 1) {
+		int middle = (first + last) >>> 1;
+		invokeAll(new BlockTask(operation, first, middle), new BlockTask(operation, middle, last));
+		return;
+	  }
+
+	  if(first < last)
+		operation.apply(first*BLOCK, Math.min(venues.length, (first+1)*BLOCK), first);
+	}
+  }
+}
@@ -46,6 +46,20 @@ public class FoursquareAPIException extends Exception {
 	this.response     = jsonObj.get("response").getAsJsonObject();
   }
 
+  /**
+   * Creates the exception from error metadata that has already been extracted
+   * from the response (see `VenueStats`).
+   */
+  public FoursquareAPIException(String http_code, String error_type, String error_detail) {
+	super(error_detail);
+	
+	this.http_code    = http_code == null ? "" : http_code;
+	this.error_type   = error_type == null ? "" : error_type;
+	this.error_detail = error_detail == null ? "" : error_detail;
+	
+	this.response     = new JsonObject();
+  }
+
   public String getHttp_code() {
     return http_code;
   }
@@ -16,35 +16,31 @@
 
 package eu.smartfp7.foursquare;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
-import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.HttpURLConnection;
 import java.net.URLEncoder;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
-import javax.net.ssl.HttpsURLConnection;
-
 import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 
+import eu.smartfp7.foursquare.utils.APIAccount;
+import eu.smartfp7.foursquare.utils.APIClient;
+import eu.smartfp7.foursquare.utils.APIResponse;
 import eu.smartfp7.foursquare.utils.Settings;
 import eu.smartfp7.geo.GeoUtil;
 
 /**
- * This class allows to obtain all the venues in a given city. It creates a grid
- * around a central point specified in the `etc/settings.json` file, and queries
- * the Foursquare API for each point of this grid.
+ * This class allows to obtain all the venues in a given city. It sweeps the
+ * area around a central point specified in the `etc/settings.json` file with
+ * an adaptive quadtree (see `VenueSweep`): dense areas are split into smaller
+ * boxes until every venue has been returned, and empty areas cost a single
+ * call.
  * The result of this crawl is written in the `.exhaustive_crawl/venues.json` file,
  * ideally you should not touch this file.
  *
@@ -55,7 +51,9 @@ public class GetAllVenues {
    * Creates a grid of points around the central point specified in the `etc/settings.json`
    * file. These points are all couples of latitude and longitude double numbers.
    * 
+   * @deprecated The city is now swept with an adaptive quadtree, see `VenueSweep`.
    */
+  @Deprecated
   public static double[][][] createGridAround(double[] point, int m){
 	double xAxis[][]  = new double[m*2+1][2]; 
 	double yAxis[][]  = new double[m*2+1][2];
@@ -103,12 +101,14 @@ public class GetAllVenues {
    */
   public static String search4SqVenues(double[] sw, double[] ne,
 	  String clientId, String clientSecret) throws Exception {
+	return search4SqVenues(sw, ne, new APIAccount(clientId, clientSecret));
+  }
 
-	HttpsURLConnection c = null;
-
-	InputStream is = null;
-	int rc;
-
+  /**
+   * Searches the venues located within a bounding box with the credentials of
+   * an account, whose quota is updated from the response.
+   */
+  public static String search4SqVenues(double[] sw, double[] ne, APIAccount account) throws Exception {
 	String url="";
 
 	/** This parameter represents the date of the Foursquare API version that we use. 
@@ -120,128 +120,82 @@ public class GetAllVenues {
 	String neString=ne[0]+","+ne[1];
 
 	try {
-	  url = "https://api.foursquare.com/v2/venues/search?intent=browse&limit=100"+
-		  "&client_id=" + clientId +
-		  "&client_secret=" + clientSecret+
+	  url = Settings.getInstance().getAPIURL() + "/venues/search?intent=browse&limit=100"+
+		  "&client_id=" + account.getClientId() +
+		  "&client_secret=" + account.getClientSecret()+
 		  "&sw="+URLEncoder.encode(swString,"UTF-8") + "&ne="+URLEncoder.encode(neString,"UTF-8")+
 		  "&v="+vParam;
 	} catch (UnsupportedEncodingException e1) {
 	  e1.printStackTrace();
 	}
 
-	final StringBuilder out = new StringBuilder();
+	// The call goes through the shared client, which reuses keep-alive
+	// connections and bounds the call with the configured timeouts.
+	APIResponse response = APIClient.getInstance().get(url, account);
 	try {
-	  c = (HttpsURLConnection) (new URL(url)).openConnection();
-
-	  c.setRequestMethod("GET");
-	  c.setDoOutput(true);
-	  c.setReadTimeout(20000);	             
-	  c.connect();
-
-	  // Getting the response code will open the connection,
-	  // send the request, and read the HTTP response headers.
-	  // The headers are stored until requested.
-	  rc = c.getResponseCode();
-	  if (rc != HttpsURLConnection.HTTP_OK)
+	  if (response.getCode() != HttpURLConnection.HTTP_OK)
 		throw new Exception("Connection can not be made with the Foursquare service..");
 
-	  is = c.getInputStream();
-
-	  final char[] buffer = new char[2048];
-
-	  final Reader in = new InputStreamReader(is, "UTF-8");
-	  for (;;) {
-		int rsz = in.read(buffer, 0, buffer.length);
-		if (rsz < 0)
-		  break;
-		out.append(buffer, 0, rsz);
-	  }
-	  return out.toString();
-
-	} catch (ClassCastException e) {
-	  throw new IllegalArgumentException("Not an HTTP URL");
-	} catch (MalformedURLException e) {			 
-	  throw e;
-	} catch (IOException e) {				
-	  throw e;
+	  return response.getBody();
+	} finally {
+	  response.close();
 	}
   }
 
   /**
-   * This is the main crawling function. It iterates over all the points
-   * of the grid generated by the `createGridAround` function, and retrieves
+   * This is the main crawling function. It sweeps the square area of half side
+   * `m`*100 meters around the given point (see `VenueSweep`), and retrieves
    * the venues from Foursquare.
    * The crawl can be restarted in case it crashes.
    * 
    */
   public static void incrementalFsqCrawl(String city, double[] point, String folder, String clientId, String clientSecret, int m) throws IOException{
-	JsonParser parser = new JsonParser();
-	
-	// Creating the grid of points around the center of the city.
-	double[][][] grid = createGridAround(point,m);
-	
-	Collection<String> venue_ids = new ArrayList<String>();
-	String ids_file = Settings.getInstance().getFolder()+ city + File.separator + ".exhaustive_crawl" + File.separator + "venues.ids";
-	
-	// We get the ids of the venues that have already been crawled,
-	// in order to avoid storing them again.
-	if(new File(ids_file).exists()) {
-	  BufferedReader city_file = new BufferedReader(new FileReader(ids_file));
-	  String line = null;
-	  while ((line = city_file.readLine()) != null)
-		venue_ids.add(line);
-	  city_file.close();
-	}
+	incrementalFsqCrawl(city, point, folder, Arrays.asList(new APIAccount(clientId, clientSecret)), m);
+  }
+  
+  public static void incrementalFsqCrawl(String city, double[] point, String folder, List<APIAccount> accounts, int m) throws IOException{
+	// The venues found so far, and the boxes of the current sweep that have
+	// already been searched if the crawl has been interrupted.
+	final DiscoveryIndex index = DiscoveryIndex.open(folder + city + File.separator + ".exhaustive_crawl", VenueSweep.getId(point, 100*m));
 	
-	// Opening the file where the results of the crawl will be written.
-	FileWriter rawVenuesWriter = new FileWriter(folder + city + File.separator + ".exhaustive_crawl" + File.separator + "venues.json",true);
-	FileWriter venueIdsWriter  = new FileWriter(ids_file,true);
-
-	// Iterating over all the points of the grid.
-	for(int x = 0 ; x <grid.length ; ++x){
-	  double[] sw= grid[x][0];
-	  double[] ne= grid[x][1];
-	  
-	  String response=null;
-	  try {
-		// Retrieves all the Foursquare venues that are located nearby
-		// the bounding box given as a parameter.
-		response = search4SqVenues(sw,ne,clientId,clientSecret);
-	  } catch (Exception e) {
-		e.printStackTrace();
-		continue;
+	VenueSweep sweep = new VenueSweep(Settings.getInstance(), accounts, new VenueSweep.Listener() {
+	  @Override
+	  public VenueSweep.BoxState getState(String box) {
+		return index.getState(box);
 	  }
 	  
-	  JsonObject jsonResponse;
-	  try {
-		jsonResponse= parser.parse(response).getAsJsonObject();
-	  } catch (Exception e) {
-		System.out.println(response);
-		continue;
-	  }
-
-	  // Parse the JSON response to extract an array of venues.
-	  JsonArray venuesArr = jsonResponse.get("response").getAsJsonObject().get("venues").getAsJsonArray();
-	  for(int i = 0; i < venuesArr.size() ; ++i){
-		 //Since we want popular venues, we heuristically filter venues that have
-		 // less than 25 overall checkins.
-		Venue v = new Venue(venuesArr.get(i).toString());
-		if(v.getCheckincount() < 25 || venue_ids.contains(v.getId()))
-		  continue;
-
-		// Write to the output file.
-		rawVenuesWriter.write(venuesArr.get(i).toString()+"\n");
+	  @Override
+	  public void boxSearched(String box, JsonArray venuesArr, boolean split) throws IOException {
+		Map<String,String> venues = new LinkedHashMap<String, String>();
+		for(int i = 0; i < venuesArr.size() ; ++i){
+		  //Since we want popular venues, we heuristically filter venues that have
+		  // less than 25 overall checkins.
+		  String json = venuesArr.get(i).toString();
+		  VenueStats v = VenueStats.parseVenue(new StringReader(json));
+		  if(v.getCheckincount() < 25 || index.contains(v.getId()))
+			continue;
+		  
+		  venues.put(v.getId(), json);
+		}
+		
+		// Venues on the border of two boxes can be returned twice, but are written once.
+		index.record(box, venues, split);
 	  }
+	});
+	
+	try {
+	  sweep.sweep(point, 100*m);
 	  
-	  try {
-		Thread.sleep(1000);
-	  } catch (InterruptedException e) {
-		e.printStackTrace();
-	  }
+	  // If some boxes could not be searched, they are searched again by the
+	  // next pass, which resumes this sweep.
+	  if(sweep.getFailedBoxes() == 0)
+		index.finishSweep();
+	} finally {
+	  sweep.shutdown();
+	  index.close();
 	}
 	
-	venueIdsWriter.close();
-	rawVenuesWriter.close();
+	System.out.println(city+": "+sweep+", "+index.size()+" venues");
   }
 
   
@@ -263,7 +217,7 @@ public class GetAllVenues {
 	// Get the central point of the city and the Foursquare API credentials, 
 	// both specified in the Settings.
 	double[] centroid = new double[]{Settings.getInstance().getCityCenterLat(city),Settings.getInstance().getCityCenterLng(city)};
-	Map<String, String> credentials = Settings.getInstance().getCityCredentials(city);
+	List<APIAccount> accounts = Settings.getInstance().getCityAccounts(city);
 	
 	Settings.getInstance().checkFileHierarchy(city);
 
@@ -271,7 +225,7 @@ public class GetAllVenues {
 	// of venues.
 	while(true){
 	  try {
-		incrementalFsqCrawl(city, centroid, folder,  credentials.get("client_id"),  credentials.get("client_secret"), size);
+		incrementalFsqCrawl(city, centroid, folder, accounts, size);
 	  } catch (NumberFormatException e) {
 		e.printStackTrace();
 	  } catch (IOException e) {
@@ -0,0 +1,422 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import eu.smartfp7.foursquare.utils.Metrics;
+
+/**
+ * Writes the hourly observations of the venues of a city in their `.ts` files.
+ *
+ * Instead of opening and closing a file for each observation, the lines are
+ * buffered in memory and written in groups ("group commit"), either when
+ * enough lines are waiting or when `commit()` is called (e.g. at the end of
+ * an hourly sweep). A bounded LRU of open append channels is kept, so that
+ * the files of the venues are not reopened at every commit.
+ *
+ * The lines written are exactly the same as before, hence the `.ts` files
+ * can still be read by `RTimeSeries`. Optionally, the observations are also
+ * written in the binary `.tsb` files (see `BinaryTimeSeries`).
+ */
+public class ObservationWriter implements Closeable {
+
+  /** When the written observations are forced to the disk. */
+  public enum FsyncPolicy {
+	/** Never: the operating system decides when the data reaches the disk. */
+	NONE,
+	/** Every file written during a group commit is forced to the disk. */
+	COMMIT,
+	/** Every observation is committed and forced to the disk immediately. */
+	ALWAYS;
+
+	public static FsyncPolicy fromString(String policy) {
+	  return valueOf(policy.toUpperCase());
+	}
+  }
+
+  /**
+   * Notified when the `.ts` file of a venue changes, while the lock of the
+   * file is held (see `getFileLock`).
+   */
+  public interface Listener {
+	/** Lines have been appended to the file of a venue. */
+	void appended(String venue_id, String lines);
+
+	/** The file of a venue has been (re)created, rewritten (e.g. repaired) or released. */
+	void changed(String venue_id);
+  }
+
+  public static final String HEADER = "Date,here_now,hour_checkins,total_checkins\n";
+
+  private static final ThreadLocal<DateFormat> df = new ThreadLocal<DateFormat>() {
+	@Override
+	protected DateFormat initialValue() {
+	  return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	}
+  };
+
+  private final String      directory;
+  private final FsyncPolicy fsync_policy;
+  private final int         batch_size;
+  private final boolean     binary;
+
+  // Lines waiting to be written, and the venues whose file must be created
+  // (or truncated) before writing them.
+  private Map<String,StringBuilder> pending = new LinkedHashMap<String, StringBuilder>();
+  private Map<String,Boolean>       created = new HashMap<String, Boolean>();
+  private Map<String,List<double[]>> pending_binary = new HashMap<String, List<double[]>>();
+  private int pending_lines = 0;
+
+  // Serialises the group commits, so that the lines of a venue are always
+  // written in the order they have been appended.
+  private final Object commit_lock = new Object();
+  private final LinkedHashMap<String,FileChannel> channels;
+
+  // Striped locks protecting the files of the venues, so that they can be
+  // rewritten (e.g. repaired) while the crawl goes on.
+  private final Object[] file_locks = new Object[64];
+
+  private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+  /**
+   * @param folder The crawl folder.
+   * @param city The city whose observations are written.
+   * @param max_open_files The maximum number of append channels kept open.
+   * @param batch_size The number of buffered lines that triggers a group commit.
+   * @param fsync_policy When the written lines are forced to the disk.
+   * @param binary If the observations must also be written in `.tsb` files.
+   */
+  public ObservationWriter(String folder, String city, final int max_open_files, int batch_size, FsyncPolicy fsync_policy, boolean binary) {
+	this.directory    = folder + city + File.separator + "attendances_crawl" + File.separator;
+	this.batch_size   = batch_size;
+	this.fsync_policy = fsync_policy;
+	this.binary       = binary;
+
+	for(int i = 0 ; i < file_locks.length ; ++i)
+	  file_locks[i] = new Object();
+
+	this.channels = new LinkedHashMap<String, FileChannel>(16, 0.75f, true) {
+	  private static final long serialVersionUID = 1L;
+
+	  @Override
+	  protected boolean removeEldestEntry(Map.Entry<String,FileChannel> eldest) {
+		if(size() <= max_open_files)
+		  return false;
+
+		closeQuietly(eldest.getValue());
+		return true;
+	  }
+	};
+  }
+
+  /** Formats an observation as a line of a `.ts` file. */
+  public static String formatLine(long time, int here_now, int hour_checkins, int total_checkins) {
+	return df.get().format(time)+","+here_now+","+Integer.toString(hour_checkins)+","+total_checkins+"\n";
+  }
+
+  /** Returns the path of the `.ts` file of a venue. */
+  public String getFile(String venue_id) {
+	return directory + venue_id + ".ts";
+  }
+
+  /**
+   * Starts a new time series for a venue: its file will be (re)created with
+   * the header line followed by the first observation.
+   */
+  public void create(String venue_id, long time, int here_now, int hour_checkins, int total_checkins) throws IOException {
+	synchronized(this) {
+	  pending.remove(venue_id);
+	  pending_binary.remove(venue_id);
+	  created.put(venue_id, true);
+	}
+	add(venue_id, HEADER, time, here_now, hour_checkins, total_checkins);
+  }
+
+  /**
+   * Appends an observation to the time series of a venue. The group commits
+   * that fail are reported on the error output, not thrown: the observation
+   * has been buffered, and will be written by a next commit.
+   */
+  public void append(String venue_id, long time, int here_now, int hour_checkins, int total_checkins) throws IOException {
+	add(venue_id, "", time, here_now, hour_checkins, total_checkins);
+  }
+
+  private void add(String venue_id, String header, long time, int here_now, int hour_checkins, int total_checkins) throws IOException {
+	String line = formatLine(time, here_now, hour_checkins, total_checkins);
+
+	boolean full;
+	synchronized(this) {
+	  StringBuilder buffer = pending.get(venue_id);
+	  if(buffer == null) {
+		buffer = new StringBuilder();
+		pending.put(venue_id, buffer);
+	  }
+	  buffer.append(header).append(line);
+
+	  if(binary) {
+		List<double[]> observations = pending_binary.get(venue_id);
+		if(observations == null) {
+		  observations = new ArrayList<double[]>();
+		  pending_binary.put(venue_id, observations);
+		}
+		try {
+		  // The binary files use the local date of the line, not the epoch time.
+		  observations.add(new double[]{BinaryTimeSeries.toEpochHour(line.substring(0, line.indexOf(','))), here_now, hour_checkins, total_checkins});
+		} catch (ParseException e) {
+		  throw new IOException(e);
+		}
+	  }
+	  full = ++pending_lines >= batch_size;
+	}
+
+	// The observation is buffered: a commit that fails (even on the file of
+	// this venue) must not make the caller call the API again, since the
+	// lines that could not be written are buffered again for the next commit.
+	if(full || fsync_policy == FsyncPolicy.ALWAYS) {
+	  try {
+		commit();
+	  } catch (IOException e) {
+		System.err.println(e.getMessage());
+	  }
+	}
+  }
+
+  /**
+   * Writes all the buffered lines in their files (group commit). If the
+   * files of some venues cannot be written, their lines are buffered again
+   * (to be written by the next commit) and an IOException is thrown once the
+   * other venues have been written. The binary observations of a venue are
+   * only written once its lines have been.
+   */
+  public void commit() throws IOException {
+	synchronized(commit_lock) {
+	  Map<String,StringBuilder> batch;
+	  Map<String,Boolean>       batch_created;
+	  Map<String,List<double[]>> batch_binary;
+	  int lines;
+	  synchronized(this) {
+		if(pending.isEmpty() && pending_binary.isEmpty())
+		  return;
+		batch          = pending;
+		batch_created  = created;
+		batch_binary   = pending_binary;
+		pending        = new LinkedHashMap<String, StringBuilder>();
+		created        = new HashMap<String, Boolean>();
+		pending_binary = new HashMap<String, List<double[]>>();
+		lines          = pending_lines;
+		pending_lines  = 0;
+	  }
+
+	  Map<String,IOException> failed = new LinkedHashMap<String, IOException>();
+
+	  for(Map.Entry<String,StringBuilder> entry: batch.entrySet()) {
+		String venue_id = entry.getKey();
+
+		synchronized(getFileLock(venue_id)) {
+		  try {
+			write(venue_id, entry.getValue().toString(), batch_created.containsKey(venue_id));
+		  } catch (IOException e) {
+			failed.put(venue_id, e);
+			lines -= requeue(venue_id, entry.getValue(), batch_created.containsKey(venue_id), batch_binary.remove(venue_id));
+			continue;
+		  }
+
+		  for(Listener listener: listeners) {
+			if(batch_created.containsKey(venue_id))
+			  listener.changed(venue_id);
+			else
+			  listener.appended(venue_id, entry.getValue().toString());
+		  }
+		}
+	  }
+
+	  for(Map.Entry<String,List<double[]>> entry: batch_binary.entrySet()) {
+		synchronized(getFileLock(entry.getKey())) {
+		  String tsb_file = directory + entry.getKey() + BinaryTimeSeries.EXTENSION;
+		  try {
+			// The binary observations of a venue that has been created are
+			// only buffered again after the file has been deleted.
+			if(batch_created.containsKey(entry.getKey()))
+			  new File(tsb_file).delete();
+			BinaryTimeSeries.write(tsb_file, entry.getValue());
+		  } catch (IOException e) {
+			failed.put(entry.getKey(), e);
+			requeue(entry.getKey(), null, false, entry.getValue());
+		  }
+		}
+	  }
+
+	  Metrics.getInstance().recordObservations(lines);
+
+	  if(!failed.isEmpty()) {
+		Map.Entry<String,IOException> first = failed.entrySet().iterator().next();
+		throw new IOException("Cannot write the observations of "+failed.size()+" venue(s) "+failed.keySet()
+							  +", they will be written by the next commit (first error on "+first.getKey()+": "
+							  +first.getValue().getMessage()+").", first.getValue());
+	  }
+	}
+  }
+
+  /** Appends lines to the file of a venue, which is first (re)created if needed. */
+  private void write(String venue_id, String lines, boolean create) throws IOException {
+	FileChannel channel = null;
+	long        size    = -1;
+	try {
+	  channel = create ? recreate(venue_id) : channel(venue_id);
+	  size    = channel.size();
+
+	  ByteBuffer bytes = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+	  while(bytes.hasRemaining())
+		channel.write(bytes);
+
+	  if(fsync_policy != FsyncPolicy.NONE)
+		channel.force(false);
+	} catch (IOException e) {
+	  // Remove what may have been written, so that the lines are not
+	  // duplicated when they are written again, and reopen the file next time.
+	  if(channel != null && size >= 0) {
+		try {
+		  channel.truncate(size);
+		} catch (IOException ignored) {
+		}
+	  }
+	  closeQuietly(channels.remove(venue_id));
+	  throw e;
+	}
+  }
+
+  /**
+   * Buffers again the lines (if not null) and the binary observations (if not
+   * null) of a venue that could not be written, before the ones added since
+   * the commit started. They are dropped if the venue has been created again
+   * in the meantime. Returns the number of observations buffered again.
+   */
+  private synchronized int requeue(String venue_id, StringBuilder lines, boolean create, List<double[]> observations) {
+	if(created.containsKey(venue_id))
+	  return 0;
+
+	int count = 0;
+	if(lines != null) {
+	  for(int i = 0 ; i < lines.length() ; ++i)
+		if(lines.charAt(i) == '\n')
+		  count++;
+	  if(create)
+		count--;
+
+	  StringBuilder added = pending.remove(venue_id);
+	  pending.put(venue_id, added == null ? lines : lines.append(added));
+	  if(create)
+		created.put(venue_id, true);
+	  pending_lines += count;
+	}
+
+	if(observations != null) {
+	  List<double[]> added = pending_binary.put(venue_id, observations);
+	  if(added != null)
+		observations.addAll(added);
+	}
+
+	return count;
+  }
+
+  /**
+   * Returns the lock that must be held to read and rewrite the files of a
+   * venue without losing the observations committed in the meantime.
+   */
+  public Object getFileLock(String venue_id) {
+	return file_locks[(venue_id.hashCode() & 0x7fffffff) % file_locks.length];
+  }
+
+  public void addListener(Listener listener) {
+	listeners.add(listener);
+  }
+
+  /**
+   * Tells the listeners that the file of a venue has been rewritten by
+   * someone else. Must be called while the lock of the file is held.
+   */
+  public void fireChanged(String venue_id) {
+	for(Listener listener: listeners)
+	  listener.changed(venue_id);
+  }
+
+  private FileChannel channel(String venue_id) throws IOException {
+	FileChannel channel = channels.get(venue_id);
+	if(channel == null || !channel.isOpen()) {
+	  channel = FileChannel.open(Paths.get(getFile(venue_id)), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	  channels.put(venue_id, channel);
+	}
+	return channel;
+  }
+
+  private FileChannel recreate(String venue_id) throws IOException {
+	closeQuietly(channels.remove(venue_id));
+	FileChannel.open(Paths.get(getFile(venue_id)), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING).close();
+	return channel(venue_id);
+  }
+
+  /**
+   * Writes the buffered lines of a venue and closes its channel, e.g. before
+   * its file is moved or rewritten by someone else.
+   */
+  public void release(String venue_id) throws IOException {
+	commit();
+	synchronized(commit_lock) {
+	  closeQuietly(channels.remove(venue_id));
+	}
+	synchronized(getFileLock(venue_id)) {
+	  fireChanged(venue_id);
+	}
+  }
+
+  /** Commits the buffered lines and closes all the channels. */
+  @Override
+  public void close() throws IOException {
+	commit();
+	synchronized(commit_lock) {
+	  for(FileChannel channel: channels.values())
+		closeQuietly(channel);
+	  channels.clear();
+	}
+  }
+
+  private static void closeQuietly(FileChannel channel) {
+	if(channel == null)
+	  return;
+	try {
+	  channel.close();
+	} catch (IOException e) {
+	  e.printStackTrace();
+	}
+  }
+}
@@ -15,21 +15,17 @@
 
 package eu.smartfp7.foursquare;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.DecimalFormat;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
 
 
 /**
@@ -39,52 +35,62 @@ import java.util.Map;
  * is convenient when working with R). Or maybe it is because Romain
  * coded this class. Or maybe both.
  *
+ * The observations are kept in a `CompactTimeSeries`; the `Date` objects
+ * returned by this class are only created when they are asked for.
  */
 public class RTimeSeries {
   
   static final private long Milliseconds_in_1_hour = 3600000;
 
-  /**
-   * There are several information duplicates (with the dates) but it is very
-   * convenient to access the right values.
-   */
-  private Map<String,TimeSeriesItem<Double>> here_now_time_series;
-  private Map<String,TimeSeriesItem<Double>> hour_checkins_time_series;
-  private Map<String,TimeSeriesItem<Double>> total_checkins_time_series;
-  private ArrayList<Date>					 dates;
-  private Double							 total_here_now;
+  private CompactTimeSeries series;
+  private Double			total_here_now;
   
-  private Collection<Date>					 missings;
+  private Collection<Date>	missings;
+  private Map<Date,Date[]>	interp_bounds;
   
+  /**
+   * Reads a time series either from a `.ts` (CSV) file, from its binary
+   * `.tsb` version (see `BinaryTimeSeries`) or from its archived `.tsa`
+   * version (see `ArchivedTimeSeries`).
+   */
   public RTimeSeries(String file) throws IOException, ParseException {
-	total_here_now 			   = 0.0;
-	here_now_time_series       = new HashMap<String,TimeSeriesItem<Double>>();
-	hour_checkins_time_series  = new HashMap<String,TimeSeriesItem<Double>>();
-	total_checkins_time_series = new HashMap<String,TimeSeriesItem<Double>>();
-	dates					   = new ArrayList<Date>();
-	missings				   = new ArrayList<Date>();
+	series = CompactTimeSeries.read(file);
 	
-	// We read the time series from a SpecificVenueCrawler .ts file.
-	BufferedReader buffer_forecast = new BufferedReader(new FileReader(file));
-	DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-
-	// Ignore the first line since it only contains headers (used in R).
-	String tmp = buffer_forecast.readLine();
-	
-	// Iterate through all lines (i.e. hours) to initialise the object.
-	while((tmp = buffer_forecast.readLine()) != null) {
-	  String[] line = tmp.split(",");
-	  here_now_time_series.put(line[0],new TimeSeriesItem<Double>(line[0], Double.parseDouble(line[1])));
-	  hour_checkins_time_series.put(line[0],new TimeSeriesItem<Double>(line[0], Double.parseDouble(line[2])));
-	  total_checkins_time_series.put(line[0],new TimeSeriesItem<Double>(line[0], Double.parseDouble(line[3])));
-	  dates.add(df.parse(line[0]));
-	  
-	  total_here_now += Double.parseDouble(line[1]);
-	}
-	buffer_forecast.close();
-	
-	// Sort the dates in case it's not already the case.
-	Collections.sort(this.dates);
+	double total = 0;
+	for(int i = 0 ; i < series.size() ; ++i)
+	  total += series.getHereNow(i);
+	total_here_now = total;
+  }
+  
+  /** Returns the observations of the time series. */
+  public CompactTimeSeries getSeries() {
+	return series;
+  }
+  
+  /**
+   * Returns the Date of an epoch-hour. The dates of the `.ts` files are local
+   * times of the city, and they are interpreted in the time zone of the JVM
+   * (as a DateFormat would do).
+   */
+  private static Date toDate(long epoch_hour) {
+	Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+	utc.setTimeInMillis(epoch_hour * Milliseconds_in_1_hour);
+	
+	Calendar local = Calendar.getInstance();
+	local.clear();
+	local.set(utc.get(Calendar.YEAR), utc.get(Calendar.MONTH), utc.get(Calendar.DAY_OF_MONTH), utc.get(Calendar.HOUR_OF_DAY), 0, 0);
+	return local.getTime();
+  }
+  
+  /** Returns the epoch-hour of a Date (see `toDate`). */
+  private static long toEpochHour(Date date) {
+	Calendar local = Calendar.getInstance();
+	local.setTime(date);
+	
+	Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+	utc.clear();
+	utc.set(local.get(Calendar.YEAR), local.get(Calendar.MONTH), local.get(Calendar.DAY_OF_MONTH), local.get(Calendar.HOUR_OF_DAY), 0, 0);
+	return utc.getTimeInMillis() / Milliseconds_in_1_hour;
   }
   
   /**
@@ -92,48 +98,55 @@ public class RTimeSeries {
    * series.
    */
   public Collection<Date> missingDates() {
-//	System.out.println("Start missing dates... ");
-	if(missings.isEmpty()) {
-	  Collection<Date> collection = idealDates();
-	  //System.out.println(collection.size()+ " ideal dates.");
-	 
-	  for(Iterator<Date> i=collection.iterator(); i.hasNext();)
-		if (this.dates.contains(i.next()))
-		  i.remove();
-
-	  missings.addAll(collection);
-	}
-	//System.out.println(missings.size()+" missing dates.");
+	if(missings == null)
+	  scanGaps();
 	
 	return missings;
   }
   
+  /**
+   * Finds the missing dates and their interpolation bounds in a single forward
+   * scan: the hours between two successive observations are missing, and these
+   * observations are their bounds.
+   */
+  private void scanGaps() {
+	missings      = new ArrayList<Date>();
+	interp_bounds = new HashMap<Date, Date[]>();
+	
+	for(int i = 1 ; i < series.size() ; ++i) {
+	  long previous = series.getHour(i-1);
+	  long current  = series.getHour(i);
+	  
+	  if(current - previous == 1)
+		continue;
+	  
+	  Date[] bounds = new Date[]{ toDate(previous), toDate(current) };
+	  for(long hour = previous+1 ; hour < current ; ++hour) {
+		Date missing = toDate(hour);
+		missings.add(missing);
+		interp_bounds.put(missing, bounds);
+	  }
+	}
+  }
+  
   /**
    * Returns true if the current RTimeSeries misses some Dates, false otherwise.
    */
   public boolean isBroken() {
-	return !missingDates().isEmpty();
+	return !series.isComplete();
   }
   
   /**
    * Returns a set of Date representing the ideal points of the time series.
    */
   public Collection<Date> idealDates() {
-	Date first_date = this.dates.get(0);
-	Date last_date  = this.dates.get(this.dates.size()-1);
-	
 	ArrayList<Date> ideal_dates = new ArrayList<Date>();
 	
-	Date tmp_date = first_date;
-	while(!tmp_date.after(last_date)) {
-	  ideal_dates.add(tmp_date);
-
-	  Calendar c = Calendar.getInstance();
-	  c.setTime(tmp_date);
-	  c.add(Calendar.HOUR_OF_DAY, 1);
-	  
-	  tmp_date = c.getTime();
-	}
+	if(series.isEmpty())
+	  return ideal_dates;
+	
+	for(long hour = series.getFirstHour() ; hour <= series.getLastHour() ; ++hour)
+	  ideal_dates.add(toDate(hour));
 	
 	return ideal_dates;
   }
@@ -145,27 +158,7 @@ public class RTimeSeries {
    * the same estimated value.
    */
   public Map<Date,Date[]> getInterpolationBounds() {
-	Map<Date,Date[]> interp_bounds = new HashMap<Date, Date[]>();
-	
-	
-	for(Date d: this.dates) {
-	  for(Date m: missingDates()) {
-		
-		Date[] bounds = interp_bounds.get(m);
-		if(bounds == null) {
-		  bounds = new Date[2];
-		  interp_bounds.put(m, bounds); 
-		}
-		
-		if(d.before(m))
-		  bounds[0] = d;
-		else if(d.after(m) && bounds[1] == null)
-		  bounds[1] = d;
-	
-	  }
-	}
-	
-	
+	missingDates();
 	return interp_bounds;
   }
   
@@ -173,54 +166,11 @@ public class RTimeSeries {
    * Modifies the time series to integrate the estimation of the missing points.
    * There are two implemented methods for recovering missing points: linear interpolation
    * and seasonal nave. The first one is called only one point is missing, while the 
-   * second one is called when successive points are missing.
+   * second one is called when successive points are missing (see `CompactTimeSeries.fill`).
    */
   public void generateMissingPoints() {
-	DateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-	
-	Map<Date, Date[]> interp_bounds = getInterpolationBounds();
-	//System.out.println(System.currentTimeMillis() - start + "ms");
-	
-	// We iterate over all the missing points we identify.
-	for(Date m: missingDates()) {
-	  // This variable contains the number of milliseconds between the nearest observations
-	  // surrounding the missing point.
-	  Long interval = interp_bounds.get(m)[1].getTime() - interp_bounds.get(m)[0].getTime();
-	  Double here_now_inter_val   = 0.0;
-	  Double hour_check_inter_val = 0.0;
-	  
-	  String before = df.format(interp_bounds.get(m)[0]);
-	  String after  = df.format(interp_bounds.get(m)[1]);
-	  
-	  // If only one hour is missing, we interpolate the values.
-	  if(interval == 2*Milliseconds_in_1_hour) {
-		here_now_inter_val   = getLinearlyInterpolatedValue(before, after, this.here_now_time_series);
-		hour_check_inter_val = getLinearlyInterpolatedValue(before, after, this.hour_checkins_time_series);
-	  }
-	  // If several points are missing, we use the seasonal nave method which
-	  // gets the same value as the day before.
-	  else if(interval > 2*Milliseconds_in_1_hour) {
-		Date n = new Date();
-		n.setTime(m.getTime()-24*Milliseconds_in_1_hour);
-		
-		if(!this.here_now_time_series.containsKey(df.format(n)))
-		  n.setTime(m.getTime()-Milliseconds_in_1_hour);
-		
-		here_now_inter_val   = getSeasonalNaiveValue(df.format(n), this.here_now_time_series);
-		hour_check_inter_val = getSeasonalNaiveValue(df.format(n), this.hour_checkins_time_series);
-	  }
-	  
-	  String formatted_m = df.format(m);
-	  
-	  // Putting the estimated values in the time series.
-	  this.here_now_time_series.put(formatted_m, new TimeSeriesItem<Double>(formatted_m, here_now_inter_val));
-	  this.hour_checkins_time_series.put(formatted_m, new TimeSeriesItem<Double>(formatted_m, hour_check_inter_val));
-	  this.total_checkins_time_series.put(formatted_m, new TimeSeriesItem<Double>(formatted_m, this.total_checkins_time_series.get(before).getValue()+hour_check_inter_val));
-	  
-	  this.dates.add(m);
-	}
-	
-	Collections.sort(this.dates);
+	series = series.fill();
+	missings = null;
   }
   
   /**
@@ -238,12 +188,26 @@ public class RTimeSeries {
   }
 
   public ArrayList<Date> getDates() {
-    return dates;
+	ArrayList<Date> dates = new ArrayList<Date>(series.size());
+	for(int i = 0 ; i < series.size() ; ++i)
+	  dates.add(toDate(series.getHour(i)));
+	
+	return dates;
   }
 
+  /** Only keeps the observations of the given dates. */
   public void setDates(ArrayList<Date> dates) {
-    this.dates = dates;
-    Collections.sort(this.dates);
+	Set<Long> hours = new HashSet<Long>();
+	for(Date date: dates)
+	  hours.add(toEpochHour(date));
+	
+	CompactTimeSeries.Builder builder = new CompactTimeSeries.Builder();
+	for(int i = 0 ; i < series.size() ; ++i)
+	  if(hours.contains(series.getHour(i)))
+		builder.add(series.getHour(i), series.getHereNow(i), series.getHourCheckins(i), series.getTotalCheckins(i));
+	
+	series   = builder.build();
+	missings = null;
   }
   
   public Double getTotal_here_now() {
@@ -251,8 +215,7 @@ public class RTimeSeries {
   }
   
   public Double getTotalCheckins() {
-	DateFormat    df   = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-	return total_checkins_time_series.get(df.format(this.dates.get(this.dates.size()-1))).getValue();
+	return series.getTotalCheckins(series.size()-1);
   }
   
   
@@ -260,18 +223,6 @@ public class RTimeSeries {
    * Prints the time series in the .ts file format.
    */
   public String toString() {
-	String time_series_file_format = "Date,here_now,hour_checkins,total_checkins\n" ;
-	
-	DateFormat    df   = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-	DecimalFormat decf = new DecimalFormat("###.#");
-	
-	for(Date d: this.dates) {
-	  time_series_file_format += df.format(d)+","+decf.format(here_now_time_series.get(df.format(d)).getValue())
-		  									 +","+decf.format(hour_checkins_time_series.get(df.format(d)).getValue())
-		  									 +","+decf.format(total_checkins_time_series.get(df.format(d)).getValue())
-		  									 +"\n";
-	}
-	
-	return time_series_file_format;
+	return series.appendCSV(new StringBuilder(ObservationWriter.HEADER)).toString();
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,571 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An HTTP service, embedded in the crawler, which serves the time series of
+ * the venues to the local readers (forecasting, dashboards, ...), so that
+ * they do not have to read and parse the `.ts` files themselves:
+ *   - GET /venues/CITY/VENUE_ID?from=DATE&to=DATE: the observations of a
+ *     venue in [from, to[, in JSON,
+ *   - GET /venues/CITY/VENUE_ID.ts?from=DATE&to=DATE: the same lines of the
+ *     `.ts` file, as they are on disk,
+ *   - GET /cities/CITY/latest: the latest observation of every venue of a
+ *     city, in JSON,
+ *   - GET /cities/CITY/totals?from=DATE&to=DATE: the hourly totals of the
+ *     venues of a city (here_now, hour_checkins and number of venues
+ *     observed), in JSON, from its rollups (see `Rollups`).
+ * A date is a prefix of "yyyy-MM-dd HH:mm:ss" (e.g. "2014-03-01" or
+ * "2014-03-01T10"); both bounds are optional.
+ *
+ * The parsed series are kept in an LRU cache whose size in memory is
+ * bounded. An entry is dropped as soon as the crawler writes in its file
+ * (see `ObservationWriter.Listener`), so the cache never serves stale
+ * observations. The latest line of every venue is also kept up to date from
+ * the lines written by the crawler, hence the `latest` endpoint does not read
+ * the disk once every venue has been crawled.
+ *
+ * Since the lines of a `.ts` file are sorted by date, the lines of a range
+ * are found by a binary search on the file, and are then transferred from
+ * the file to the response without being decoded (`FileChannel.transferTo`).
+ * A range read while the daily repair rewrites the same file can be
+ * inconsistent: the JSON endpoint, which reads the file while it is locked,
+ * is not affected.
+ *
+ * The service only listens on the loopback interface.
+ */
+public class ReadService {
+
+  private static final int    THREADS       = 4;
+  private static final String DATE_TEMPLATE = "0000-01-01 00:00:00";
+  private static final int    DATE_LENGTH   = DATE_TEMPLATE.length();
+
+  private static final Pattern DATE_PATTERN     = Pattern.compile("\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}");
+  private static final Pattern VENUE_ID_PATTERN = Pattern.compile("[A-Za-z0-9_-]+");
+
+  // The lines of a `.ts` file between two bounds are searched linearly once
+  // the binary search has narrowed them to this number of bytes.
+  private static final int SCAN_SIZE = 4096;
+
+  private final CrawlEngine engine;
+  private final Map<String,Collection<String>> city_venues;
+  private final SeriesCache cache;
+
+  // The latest line of the `.ts` file of each venue ("city/venue_id" keys).
+  private final ConcurrentMap<String,String> latest = new ConcurrentHashMap<String, String>();
+
+  private HttpServer      server;
+  private ExecutorService workers;
+
+  /** The parsed series, in an LRU cache bounded by their (estimated) size in memory. */
+  static class SeriesCache {
+	private final long max_bytes;
+	private long       bytes = 0;
+	private final LinkedHashMap<String,CompactTimeSeries> series = new LinkedHashMap<String, CompactTimeSeries>(16, 0.75f, true);
+
+	private final AtomicLong hits   = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	SeriesCache(long max_bytes) {
+	  this.max_bytes = max_bytes;
+	}
+
+	synchronized CompactTimeSeries get(String key) {
+	  CompactTimeSeries cached = series.get(key);
+	  (cached == null ? misses : hits).incrementAndGet();
+	  return cached;
+	}
+
+	synchronized void put(String key, CompactTimeSeries value) {
+	  remove(key);
+	  series.put(key, value);
+	  bytes += weight(value);
+
+	  // The least recently used series are evicted first.
+	  for(java.util.Iterator<CompactTimeSeries> it = series.values().iterator() ; bytes > max_bytes && it.hasNext() ; ) {
+		bytes -= weight(it.next());
+		it.remove();
+	  }
+	}
+
+	synchronized void remove(String key) {
+	  CompactTimeSeries removed = series.remove(key);
+	  if(removed != null)
+		bytes -= weight(removed);
+	}
+
+	synchronized long getBytes() {
+	  return bytes;
+	}
+
+	long getHits() {
+	  return hits.get();
+	}
+
+	long getMisses() {
+	  return misses.get();
+	}
+
+	// 20 bytes per observation (see `CompactTimeSeries`), plus the objects.
+	private static long weight(CompactTimeSeries value) {
+	  return 128 + 20L * value.size();
+	}
+  }
+
+  /**
+   * @param cache_bytes The maximum size in memory of the parsed series kept in the cache.
+   */
+  public ReadService(CrawlEngine engine, Map<String,Collection<String>> city_venues, long cache_bytes) {
+	this.engine      = engine;
+	this.city_venues = city_venues;
+	this.cache       = new SeriesCache(cache_bytes);
+
+	for(final String city: city_venues.keySet()) {
+	  engine.getObservationWriter(city).addListener(new ObservationWriter.Listener() {
+		@Override
+		public void appended(String venue_id, String lines) {
+		  cache.remove(city+"/"+venue_id);
+
+		  int end   = lines.length() - 1;
+		  int start = lines.lastIndexOf('\n', end - 1) + 1;
+		  latest.put(city+"/"+venue_id, lines.substring(start, end));
+		}
+
+		@Override
+		public void changed(String venue_id) {
+		  cache.remove(city+"/"+venue_id);
+		  latest.remove(city+"/"+venue_id);
+		}
+	  });
+	}
+  }
+
+  /** Starts the service on a local port (0 to disable it). */
+  public void start(int port) throws IOException {
+	if(port == 0)
+	  return;
+
+	server  = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+	workers = Executors.newFixedThreadPool(THREADS);
+	server.setExecutor(workers);
+
+	server.createContext("/venues/", new HttpHandler() {
+	  @Override
+	  public void handle(HttpExchange exchange) throws IOException {
+		serve(exchange, true);
+	  }
+	});
+	server.createContext("/cities/", new HttpHandler() {
+	  @Override
+	  public void handle(HttpExchange exchange) throws IOException {
+		serve(exchange, false);
+	  }
+	});
+	server.start();
+  }
+
+  public void stop() {
+	if(server != null) {
+	  server.stop(0);
+	  workers.shutdownNow();
+	}
+  }
+
+  public SeriesCache getCache() {
+	return cache;
+  }
+
+  private void serve(HttpExchange exchange, boolean venues) throws IOException {
+	try {
+	  if(!exchange.getRequestMethod().equals("GET")) {
+		sendError(exchange, 405, "Only GET requests are supported.");
+		return;
+	  }
+
+	  // e.g. /venues/london/4ad08b28f964a52064d820e3.ts -> ["", "venues", "london", "4ad08b28f964a52064d820e3.ts"]
+	  String[] path = exchange.getRequestURI().getPath().split("/");
+	  Map<String,String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+
+	  if(path.length != 4 || !city_venues.containsKey(path[2])) {
+		sendError(exchange, 404, "Unknown resource.");
+		return;
+	  }
+
+	  String city = path[2];
+	  String from = query.containsKey("from") ? toDate(query.get("from")) : null;
+	  String to   = query.containsKey("to") ? toDate(query.get("to")) : null;
+
+	  if(venues && path[3].endsWith(".ts"))
+		sendRange(exchange, city, path[3].substring(0, path[3].length()-3), from, to);
+	  else if(venues)
+		sendSeries(exchange, city, path[3], from, to);
+	  else if(path[3].equals("latest"))
+		sendLatest(exchange, city);
+	  else if(path[3].equals("totals"))
+		sendTotals(exchange, city, from, to);
+	  else
+		sendError(exchange, 404, "Unknown resource.");
+	} catch (IllegalArgumentException e) {
+	  sendError(exchange, 400, e.getMessage());
+	} catch (ParseException e) {
+	  sendError(exchange, 400, e.getMessage());
+	} catch (IOException e) {
+	  sendError(exchange, 500, e.getMessage());
+	} finally {
+	  exchange.close();
+	}
+  }
+
+  /** Sends the observations of a venue between two dates (null for no bound), in JSON. */
+  private void sendSeries(HttpExchange exchange, String city, String venue_id, String from, String to) throws IOException, ParseException {
+	CompactTimeSeries series = getSeries(city, venue_id);
+	if(series == null) {
+	  sendError(exchange, 404, "Unknown venue "+venue_id+".");
+	  return;
+	}
+
+	long from_hour = from == null ? Long.MIN_VALUE : BinaryTimeSeries.toEpochHour(from);
+	long to_hour   = to == null ? Long.MAX_VALUE : BinaryTimeSeries.toEpochHour(to);
+	CompactTimeSeries slice = series.slice(from_hour, to_hour);
+
+	ByteArrayOutputStream body = new ByteArrayOutputStream();
+	JsonWriter json = newJson(body);
+	json.beginObject();
+	json.name("city").value(city);
+	json.name("venue").value(venue_id);
+	json.name("columns").beginArray().value("date").value("here_now").value("hour_checkins").value("total_checkins").endArray();
+	json.name("observations").beginArray();
+	for(int i = 0 ; i < slice.size() ; ++i) {
+	  json.beginArray().value(BinaryTimeSeries.toDate(slice.getHour(i)));
+	  writeNumber(json, slice.getHereNow(i));
+	  writeNumber(json, slice.getHourCheckins(i));
+	  writeNumber(json, slice.getTotalCheckins(i));
+	  json.endArray();
+	}
+	json.endArray();
+	json.endObject();
+	json.close();
+	sendJson(exchange, body);
+  }
+
+  /** Sends the lines of the `.ts` file of a venue between two dates (null for no bound), as they are on disk. */
+  private void sendRange(HttpExchange exchange, String city, String venue_id, String from, String to) throws IOException {
+	File file = getFile(city, venue_id);
+	if(file == null) {
+	  sendError(exchange, 404, "Unknown venue "+venue_id+".");
+	  return;
+	}
+
+	FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	try {
+	  long start = from == null ? findFirstLine(channel) : findLine(channel, from);
+	  long end   = to == null ? channel.size() : Math.max(start, findLine(channel, to));
+
+	  byte[] header = ObservationWriter.HEADER.getBytes(StandardCharsets.UTF_8);
+	  exchange.getResponseHeaders().set("Content-Type", "text/csv; charset=utf-8");
+	  exchange.sendResponseHeaders(200, header.length + end - start);
+
+	  OutputStream out = exchange.getResponseBody();
+	  out.write(header);
+
+	  WritableByteChannel target = Channels.newChannel(out);
+	  while(start < end)
+		start += channel.transferTo(start, end - start, target);
+	  out.close();
+	} finally {
+	  channel.close();
+	}
+  }
+
+  /** Sends the latest observation of every venue of a city, in JSON. */
+  private void sendLatest(HttpExchange exchange, String city) throws IOException {
+	Collection<String> venues;
+	synchronized(city_venues.get(city)) {
+	  venues = new ArrayList<String>(city_venues.get(city));
+	}
+
+	ByteArrayOutputStream body = new ByteArrayOutputStream();
+	JsonWriter json = newJson(body);
+	json.beginObject();
+	json.name("city").value(city);
+	json.name("columns").beginArray().value("date").value("here_now").value("hour_checkins").value("total_checkins").endArray();
+	json.name("venues").beginObject();
+	for(String venue_id: venues) {
+	  String line = getLatestLine(city, venue_id);
+	  if(line == null)
+		continue;
+
+	  String[] values = line.split(",");
+	  json.name(venue_id).beginArray().value(values[0]);
+	  for(int i = 1 ; i < values.length ; ++i)
+		json.value(new BigDecimal(values[i]));
+	  json.endArray();
+	}
+	json.endObject();
+	json.endObject();
+	json.close();
+	sendJson(exchange, body);
+  }
+
+  /** Sends the hourly totals of the venues of a city between two dates (null for no bound), in JSON. */
+  private void sendTotals(HttpExchange exchange, String city, String from, String to) throws IOException, ParseException {
+	// The totals are read from the hourly rollups of the city.
+	Rollups rollups = engine.getRollups(city);
+	long first = rollups.getFirstHour();
+	long last  = rollups.getLastHour();
+	if(from != null)
+	  first = Math.max(first, BinaryTimeSeries.toEpochHour(from));
+	if(to != null)
+	  last = Math.min(last, BinaryTimeSeries.toEpochHour(to) - 1);
+
+	ByteArrayOutputStream body = new ByteArrayOutputStream();
+	JsonWriter json = newJson(body);
+	json.beginObject();
+	json.name("city").value(city);
+	json.name("columns").beginArray().value("date").value("here_now").value("hour_checkins").value("venues").endArray();
+	json.name("totals").beginArray();
+	for(long hour = first ; hour <= last ; ++hour) {
+	  Rollups.Rollup total = rollups.getHour(hour);
+	  if(total == null)
+		continue;
+
+	  json.beginArray().value(BinaryTimeSeries.toDate(hour));
+	  writeNumber(json, total.getHereNow());
+	  writeNumber(json, total.getHourCheckins());
+	  json.value(total.getObservations());
+	  json.endArray();
+	}
+	json.endArray();
+	json.endObject();
+	json.close();
+	sendJson(exchange, body);
+  }
+
+  /** Returns the parsed series of a venue (from the cache if possible), or null if it has no `.ts` file. */
+  CompactTimeSeries getSeries(String city, String venue_id) throws IOException, ParseException {
+	String key = city+"/"+venue_id;
+	CompactTimeSeries series = cache.get(key);
+	if(series != null)
+	  return series;
+
+	// The file is read while it is locked, so that the series cached is not
+	// missing lines appended in the meantime.
+	ObservationWriter writer = engine.getObservationWriter(city);
+	synchronized(writer.getFileLock(venue_id)) {
+	  File file = getFile(city, venue_id);
+	  if(file == null)
+		return null;
+
+	  series = CompactTimeSeries.read(file.getPath());
+	  cache.put(key, series);
+	}
+	return series;
+  }
+
+  /** Returns the last line of the `.ts` file of a venue, or null if there is none. */
+  private String getLatestLine(String city, String venue_id) throws IOException {
+	String key  = city+"/"+venue_id;
+	String line = latest.get(key);
+	if(line != null)
+	  return line;
+
+	ObservationWriter writer = engine.getObservationWriter(city);
+	synchronized(writer.getFileLock(venue_id)) {
+	  File file = getFile(city, venue_id);
+	  if(file == null)
+		return null;
+
+	  line = VenueUtil.readLastLine(file);
+	  if(line == null || line.startsWith("Date"))
+		return null;
+
+	  latest.put(key, line);
+	}
+	return line;
+  }
+
+  /** Returns the `.ts` file of a venue, or null if the venue has none. */
+  private File getFile(String city, String venue_id) {
+	if(!VENUE_ID_PATTERN.matcher(venue_id).matches())
+	  return null;
+
+	File file = new File(engine.getObservationWriter(city).getFile(venue_id));
+	return file.exists() ? file : null;
+  }
+
+  /** Returns the offset of the first line after the header of a `.ts` file. */
+  static long findFirstLine(FileChannel channel) throws IOException {
+	return nextLine(channel, 1);
+  }
+
+  /**
+   * Returns the offset of the first line of a `.ts` file whose date is not
+   * before `date` (or the size of the file if there is none). The dates of
+   * the lines are sorted and have a fixed format, hence they can be compared
+   * as strings.
+   */
+  static long findLine(FileChannel channel, String date) throws IOException {
+	byte[] target = date.getBytes(StandardCharsets.UTF_8);
+	ByteBuffer buffer = ByteBuffer.allocate(DATE_LENGTH);
+
+	// The line at `low` is before the date (or is the first one), the line
+	// at `high` is not (or is the end of the file).
+	long low  = findFirstLine(channel);
+	long high = channel.size();
+	while(high - low > SCAN_SIZE) {
+	  long line = nextLine(channel, (low + high) >>> 1);
+	  if(line >= high)
+		break;
+
+	  if(compareDate(channel, line, target, buffer) < 0)
+		low = line;
+	  else
+		high = line;
+	}
+
+	for(long line = low ; line < high ; line = nextLine(channel, line + 1))
+	  if(compareDate(channel, line, target, buffer) >= 0)
+		return line;
+	return high;
+  }
+
+  /** Returns the offset of the first line starting at or after `position` (or the size of the file). */
+  private static long nextLine(FileChannel channel, long position) throws IOException {
+	ByteBuffer buffer = ByteBuffer.allocate(128);
+	for(long offset = position - 1 ; offset < channel.size() ; offset += buffer.limit()) {
+	  buffer.clear();
+	  if(channel.read(buffer, offset) <= 0)
+		break;
+	  buffer.flip();
+
+	  for(int i = 0 ; i < buffer.limit() ; ++i)
+		if(buffer.get(i) == '\n')
+		  return offset + i + 1;
+	}
+	return channel.size();
+  }
+
+  private static int compareDate(FileChannel channel, long line, byte[] date, ByteBuffer buffer) throws IOException {
+	buffer.clear();
+	while(buffer.hasRemaining() && channel.read(buffer, line + buffer.position()) > 0);
+
+	for(int i = 0 ; i < buffer.position() && i < date.length ; ++i)
+	  if(buffer.get(i) != date[i])
+		return buffer.get(i) - date[i];
+	return buffer.position() - date.length;
+  }
+
+  /** Completes a prefix of "yyyy-MM-dd HH:mm:ss" (a 'T' can separate the day and the time). */
+  static String toDate(String prefix) {
+	String date = prefix.replace('T', ' ');
+	if(date.length() <= DATE_LENGTH)
+	  date += DATE_TEMPLATE.substring(date.length());
+
+	if(!DATE_PATTERN.matcher(date).matches())
+	  throw new IllegalArgumentException("Invalid date: "+prefix);
+	return date;
+  }
+
+  private static Map<String,String> parseQuery(String query) throws UnsupportedEncodingException {
+	Map<String,String> parameters = new HashMap<String, String>();
+	if(query == null)
+	  return parameters;
+
+	for(String parameter: query.split("&")) {
+	  int equals = parameter.indexOf('=');
+	  if(equals > 0)
+		parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"), URLDecoder.decode(parameter.substring(equals+1), "UTF-8"));
+	}
+	return parameters;
+  }
+
+  // The JSON documents are generated in memory before the headers are sent,
+  // so that an error while reading the series is still sent as an error.
+  private static JsonWriter newJson(ByteArrayOutputStream body) {
+	return new JsonWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8));
+  }
+
+  private static void sendJson(HttpExchange exchange, ByteArrayOutputStream body) throws IOException {
+	exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+	exchange.sendResponseHeaders(200, body.size());
+	OutputStream out = exchange.getResponseBody();
+	try {
+	  body.writeTo(out);
+	} finally {
+	  out.close();
+	}
+  }
+
+  // The counts are written without decimals when they have none.
+  private static void writeNumber(JsonWriter json, double value) throws IOException {
+	if(value == Math.rint(value) && Math.abs(value) < 1e15)
+	  json.value((long) value);
+	else
+	  json.value(Double.parseDouble(Float.toString((float) value)));
+  }
+
+  private static void sendError(HttpExchange exchange, int code, String message) throws IOException {
+	// The headers have already been sent (e.g. the file of a venue could not
+	// be read until the end): the response is aborted, its body is shorter
+	// than its announced length.
+	if(exchange.getResponseCode() != -1)
+	  return;
+
+	byte[] body = (message+"\n").getBytes(StandardCharsets.UTF_8);
+	exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+	exchange.sendResponseHeaders(code, body.length);
+	OutputStream out = exchange.getResponseBody();
+	try {
+	  out.write(body);
+	} finally {
+	  out.close();
+	}
+  }
+}
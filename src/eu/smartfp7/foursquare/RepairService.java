@@ -0,0 +1,252 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.smartfp7.foursquare.utils.RateLimiter;
+import eu.smartfp7.foursquare.utils.Settings;
+
+/**
+ * Repairs the broken time series of the crawled cities in the background,
+ * so that the crawl does not stop while the files are being repaired.
+ *
+ * The `.ts` files of a city are spread over a fork-join pool. Each file has a
+ * "verified up to" watermark (see `RepairWatermarks`): the daily repair only
+ * reads the hours observed since the previous repair, and patches them in
+ * place, so that its cost grows with the new data and not with the history.
+ * The disk bandwidth used by the repair is limited, so that it does not slow
+ * down the writing of the observations.
+ * A file is read and rewritten while holding the lock of the observation
+ * writer of its city, hence no observation can be lost.
+ */
+public class RepairService {
+
+  /** The progress of the repair of a city, which can be read while it runs. */
+  public static class Progress {
+	private final String city;
+	private final int    total;
+	private final long   started_at = System.currentTimeMillis();
+	private volatile long finished_at = -1;
+
+	private final AtomicInteger checked  = new AtomicInteger();
+	// Files of which only the hours after the watermark have been read.
+	private final AtomicInteger skipped  = new AtomicInteger();
+	private final AtomicInteger repaired = new AtomicInteger();
+	private final AtomicInteger failed   = new AtomicInteger();
+
+	Progress(String city, int total) {
+	  this.city  = city;
+	  this.total = total;
+	}
+
+	public String getCity()    { return city; }
+	public int getTotal()      { return total; }
+	public int getChecked()    { return checked.get(); }
+	public int getSkipped()    { return skipped.get(); }
+	public int getRepaired()   { return repaired.get(); }
+	public int getFailed()     { return failed.get(); }
+	public boolean isRunning() { return finished_at < 0; }
+
+	/** Returns the duration of the repair in milliseconds (so far, if it is still running). */
+	public long getDuration() {
+	  return (finished_at < 0 ? System.currentTimeMillis() : finished_at) - started_at;
+	}
+
+	public String toString() {
+	  return city+": "+checked.get()+"/"+total+" files checked, "+skipped.get()+" skipped, "+repaired.get()+" repaired, "
+		  +failed.get()+" failed, "+(getDuration()/1000)+"s"+(isRunning() ? " so far" : "");
+	}
+  }
+
+  private final String       folder;
+  private final CrawlEngine  engine;
+  private final ForkJoinPool workers;
+  private final RateLimiter  io_limiter;
+
+  // Runs the repairs of the cities one after the other, in the background.
+  private final ExecutorService coordinator = Executors.newSingleThreadExecutor();
+
+  private final ConcurrentMap<String,Progress>         progress   = new ConcurrentHashMap<String, Progress>();
+  private final ConcurrentMap<String,RepairWatermarks> watermarks = new ConcurrentHashMap<String, RepairWatermarks>();
+
+  /**
+   * @param engine The crawl engine whose observation writers must be locked
+   *               while repairing a file (null if the crawler is not running).
+   */
+  public RepairService(Settings settings, CrawlEngine engine) {
+	this.folder     = settings.getFolder();
+	this.engine     = engine;
+	this.workers    = new ForkJoinPool(settings.getRepairThreads());
+	this.io_limiter = new RateLimiter(settings.getRepairBytesPerSecond());
+  }
+
+  /**
+   * Schedules the repair of a city in the background. If `full` is false, only
+   * the hours observed after the watermark of each file are verified.
+   * Returns false if a repair of this city is already running.
+   */
+  public boolean submit(final String city, final boolean full) {
+	Progress current = progress.get(city);
+	if(current != null && current.isRunning())
+	  return false;
+
+	coordinator.submit(new Runnable() {
+	  @Override
+	  public void run() {
+		try {
+		  Progress result = repairCity(city, full);
+		  if(engine != null)
+			engine.logInfo(city, "Sanity check OK ("+result+").");
+		} catch (Exception e) {
+		  e.printStackTrace();
+		}
+	  }
+	});
+
+	return true;
+  }
+
+  /** Repairs the files of a city and returns when they have all been checked. */
+  public Progress repairCity(String city, boolean full) throws IOException {
+	List<File> files = VenueUtil.getAllVenueFilesEndingWith(folder, city, ".ts");
+
+	Progress city_progress = new Progress(city, files.size());
+	progress.put(city, city_progress);
+
+	RepairWatermarks city_watermarks = getWatermarks(city);
+	try {
+	  workers.invoke(new RepairTask(city, files, 0, files.size(), full, city_watermarks, city_progress));
+	} finally {
+	  city_watermarks.save();
+	  city_progress.finished_at = System.currentTimeMillis();
+	}
+
+	return city_progress;
+  }
+
+  private RepairWatermarks getWatermarks(String city) {
+	RepairWatermarks city_watermarks = watermarks.get(city);
+	if(city_watermarks == null) {
+	  watermarks.putIfAbsent(city, RepairWatermarks.load(RepairWatermarks.getFile(folder, city)));
+	  city_watermarks = watermarks.get(city);
+	}
+	return city_watermarks;
+  }
+
+  /** Returns the progress of the current (or last) repair of a city, or null. */
+  public Progress getProgress(String city) {
+	return progress.get(city);
+  }
+
+  public Iterable<Progress> getProgress() {
+	return progress.values();
+  }
+
+  /** Splits the files of a city until there are few enough to be repaired by a single thread. */
+  private class RepairTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private static final int THRESHOLD = 16;
+
+	private final String     city;
+	private final List<File> files;
+	private final int        from, to;
+	private final boolean    full;
+	private final RepairWatermarks city_watermarks;
+	private final Progress   city_progress;
+
+	RepairTask(String city, List<File> files, int from, int to, boolean full, RepairWatermarks city_watermarks, Progress city_progress) {
+	  this.city            = city;
+	  this.files           = files;
+	  this.from            = from;
+	  this.to              = to;
+	  this.full            = full;
+	  this.city_watermarks = city_watermarks;
+	  this.city_progress   = city_progress;
+	}
+
+	@Override
+	protected void compute() {
+	  if(to - from > THRESHOLD) {
+		int middle = (from + to) >>> 1;
+		invokeAll(new RepairTask(city, files, from, middle, full, city_watermarks, city_progress),
+				  new RepairTask(city, files, middle, to, full, city_watermarks, city_progress));
+		return;
+	  }
+
+	  for(int i = from ; i < to ; ++i) {
+		try {
+		  if(repairVenue(city, files.get(i), full, city_watermarks, city_progress))
+			city_progress.repaired.incrementAndGet();
+		} catch (Exception e) {
+		  city_progress.failed.incrementAndGet();
+		  e.printStackTrace();
+		}
+		city_progress.checked.incrementAndGet();
+	  }
+	}
+  }
+
+  /**
+   * Repairs the time series of a venue if it is broken. Returns true if the
+   * file has been modified.
+   */
+  boolean repairVenue(String city, File file, boolean full, RepairWatermarks city_watermarks, Progress city_progress)
+	  throws IOException, ParseException, InterruptedException {
+	String name     = file.getName();
+	String venue_id = name.substring(0, name.length()-3);
+
+	if(full)
+	  city_watermarks.remove(venue_id);
+
+	RepairWatermarks.Watermark watermark = city_watermarks.get(venue_id);
+	long from = watermark == null || watermark.getReferenceOffset() > file.length() ? 0 : watermark.getReferenceOffset();
+	if(from > 0)
+	  city_progress.skipped.incrementAndGet();
+
+	// The new lines are read, and potentially written again: we reserve the
+	// bandwidth before locking the file so that the crawl is never blocked by
+	// the throttling.
+	io_limiter.acquire(Math.max(1, 2*(file.length() - from)));
+
+	ObservationWriter writer = engine == null ? null : engine.getObservationWriter(city);
+	Object lock = writer == null ? new Object() : writer.getFileLock(venue_id);
+
+	synchronized(lock) {
+	  boolean repaired = VenueUtil.fixBrokenTimeSeriesVenue(file, city_watermarks);
+	  if(repaired && writer != null)
+		writer.fireChanged(venue_id);
+	  return repaired;
+	}
+  }
+
+  public void shutdown() throws InterruptedException {
+	coordinator.shutdownNow();
+	workers.shutdownNow();
+	workers.awaitTermination(1, TimeUnit.MINUTES);
+  }
+}
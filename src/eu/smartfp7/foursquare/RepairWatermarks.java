@@ -0,0 +1,150 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The "verified up to" watermarks of the `.ts` files of a city.
+ *
+ * The watermark of a venue tells that its time series has no gap up to a
+ * given hour, which ends at a given offset of the file. The daily repair
+ * thus only needs to read the lines written after the watermark, plus the 24
+ * lines before it (used as the seasonal naive reference), whose offset is
+ * also kept.
+ */
+public class RepairWatermarks {
+
+  public static final String FILE_NAME = "repair.watermarks";
+
+  private static final int MAGIC   = 0x4653574d; // "FSWM"
+  private static final int VERSION = 1;
+
+  /** The watermark of a venue. */
+  public static class Watermark {
+	private final long hour;
+	private final long reference_offset;
+	private final long end_offset;
+
+	/**
+	 * @param hour             The epoch-hour (see `BinaryTimeSeries`) of the last verified line.
+	 * @param reference_offset The offset of the line 23 hours before it (or of the first line).
+	 * @param end_offset       The offset of the end of the last verified line.
+	 */
+	public Watermark(long hour, long reference_offset, long end_offset) {
+	  this.hour             = hour;
+	  this.reference_offset = reference_offset;
+	  this.end_offset       = end_offset;
+	}
+
+	public long getHour()            { return hour; }
+	public long getReferenceOffset() { return reference_offset; }
+	public long getEndOffset()       { return end_offset; }
+  }
+
+  private final String file;
+  private final ConcurrentMap<String,Watermark> watermarks = new ConcurrentHashMap<String, Watermark>();
+
+  private RepairWatermarks(String file) {
+	this.file = file;
+  }
+
+  /** Returns the path of the watermarks file of a city. */
+  public static String getFile(String folder, String city) {
+	return folder + city + File.separator + FILE_NAME;
+  }
+
+  /**
+   * Reads the watermarks of a city. If the file does not exist (or cannot be
+   * read), there is no watermark: every file will be entirely verified.
+   */
+  public static RepairWatermarks load(String file) {
+	RepairWatermarks watermarks = new RepairWatermarks(file);
+	if(!new File(file).exists())
+	  return watermarks;
+
+	try {
+	  DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+	  try {
+		if(in.readInt() != MAGIC || in.readInt() != VERSION)
+		  return watermarks;
+
+		for(int i = in.readInt() ; i > 0 ; --i) {
+		  String venue_id = in.readUTF();
+		  watermarks.watermarks.put(venue_id, new Watermark(in.readLong(), in.readLong(), in.readLong()));
+		}
+	  } finally {
+		in.close();
+	  }
+	} catch (IOException e) {
+	  e.printStackTrace();
+	  watermarks.watermarks.clear();
+	}
+
+	return watermarks;
+  }
+
+  /** Writes the watermarks in a temporary file, which then replaces the previous one atomically. */
+  public synchronized void save() throws IOException {
+	File tmp = new File(file + ".tmp");
+
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	try {
+	  out.writeInt(MAGIC);
+	  out.writeInt(VERSION);
+
+	  // The map can change while we write it: we write a copy.
+	  Map<String,Watermark> copy = new HashMap<String, Watermark>(watermarks);
+	  out.writeInt(copy.size());
+	  for(Map.Entry<String,Watermark> entry: copy.entrySet()) {
+		out.writeUTF(entry.getKey());
+		out.writeLong(entry.getValue().hour);
+		out.writeLong(entry.getValue().reference_offset);
+		out.writeLong(entry.getValue().end_offset);
+	  }
+	} finally {
+	  out.close();
+	}
+
+	Files.move(tmp.toPath(), new File(file).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Returns the watermark of a venue, or null if its file has never been verified. */
+  public Watermark get(String venue_id) {
+	return watermarks.get(venue_id);
+  }
+
+  public void put(String venue_id, Watermark watermark) {
+	watermarks.put(venue_id, watermark);
+  }
+
+  public void remove(String venue_id) {
+	watermarks.remove(venue_id);
+  }
+}
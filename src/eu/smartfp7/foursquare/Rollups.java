@@ -0,0 +1,679 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import eu.smartfp7.foursquare.utils.Settings;
+
+/**
+ * Aggregates of the observations of a city, kept up to date as the crawler
+ * writes them (see `ObservationWriter.Listener`):
+ *   - for each venue, the daily and weekly sums of here_now and
+ *     hour_checkins, and the maximum of here_now,
+ *   - for the whole city, the hourly sums of here_now and hour_checkins over
+ *     all the venues (and the number of venues observed).
+ * Days and hours are those of the `.ts` dates (i.e. local to the city), and
+ * weeks start on Monday. A rollup is found in constant time, whatever the
+ * length of the history: the rollups of a venue (or of the city) are columns
+ * indexed by day, week or hour.
+ *
+ * The hours of each day already added are remembered, so that an observation
+ * is never counted twice. When a file is rewritten (e.g. when the repair
+ * generates the missing points), it is read again and only the hours that
+ * were not there yet are added.
+ *
+ * The rollups of a city are saved in a single file, which starts with "FSRU"
+ * and a version, followed by records:
+ *   - 'V': a venue (index, then id as short length + UTF-8 bytes),
+ *   - 'D': a day of a venue (venue index, epoch-day, bitset of the hours
+ *     added, sum of here_now, sum of hour_checkins, max of here_now),
+ *   - 'H': an hour of the city (epoch-hour, sum of here_now, sum of
+ *     hour_checkins, max of here_now, number of venues).
+ * The rows modified since the last save are appended at the end of the file
+ * (the last record of a row wins), and the file is compacted when there are
+ * more obsolete records than live ones. The weekly rollups are computed from
+ * the daily ones when the file is loaded.
+ *
+ * The sums are floats: they are exact as long as the counts stay below 2^24.
+ */
+public class Rollups implements ObservationWriter.Listener {
+
+  public static final String FILE_NAME = "rollups.dat";
+
+  private static final int MAGIC       = 0x46535255; // "FSRU"
+  private static final int VERSION     = 1;
+  private static final int HEADER_SIZE = 8;
+
+  private static final byte VENUE = 'V';
+  private static final byte DAY   = 'D';
+  private static final byte HOUR  = 'H';
+
+  private static final int DAY_SIZE  = 1 + 4 + 4 + 4 + 4*3;
+  private static final int HOUR_SIZE = 1 + 4 + 4*3 + 4;
+
+  /** The aggregate of the observations of a period. */
+  public static class Rollup {
+	private final float here_now;
+	private final float hour_checkins;
+	private final float max_here_now;
+	private final int   observations;
+
+	Rollup(float here_now, float hour_checkins, float max_here_now, int observations) {
+	  this.here_now      = here_now;
+	  this.hour_checkins = hour_checkins;
+	  this.max_here_now  = max_here_now;
+	  this.observations  = observations;
+	}
+
+	/** Returns the sum of here_now. */
+	public float getHereNow() {
+	  return here_now;
+	}
+
+	/** Returns the sum of hour_checkins. */
+	public float getHourCheckins() {
+	  return hour_checkins;
+	}
+
+	public float getMaxHereNow() {
+	  return max_here_now;
+	}
+
+	/** Returns the number of observations (of hours for a venue, of venues for an hour of the city). */
+	public int getObservations() {
+	  return observations;
+	}
+  }
+
+  /** The rollups of consecutive periods (hours, days or weeks), in columns indexed by period. */
+  static class Table {
+	private long    first = 0;
+	private int     size  = 0;
+	private int     rows  = 0;
+	private float[] here_now      = new float[0];
+	private float[] hour_checkins = new float[0];
+	private float[] max_here_now  = new float[0];
+	private int[]   observations  = new int[0];
+
+	// For the days: the bitset of the hours already added.
+	private int[]   hours;
+
+	Table(boolean days) {
+	  this.hours = days ? new int[0] : null;
+	}
+
+	/** Returns the index of a period, after growing the columns if they do not cover it yet. */
+	int index(long period) {
+	  if(size == 0)
+		first = period;
+
+	  if(period < first) {
+		int shift = (int) (first - period);
+		resize(size + shift, shift);
+		first = period;
+		size += shift;
+	  }
+	  else if(period - first >= size) {
+		int needed = (int) (period - first + 1);
+		if(needed > observations.length)
+		  resize(needed, 0);
+		size = needed;
+	  }
+	  return (int) (period - first);
+	}
+
+	private void resize(int needed, int shift) {
+	  int capacity = Math.max(needed, Math.max(8, observations.length * 2));
+	  here_now      = copy(here_now, capacity, shift);
+	  hour_checkins = copy(hour_checkins, capacity, shift);
+	  max_here_now  = copy(max_here_now, capacity, shift);
+
+	  int[] copy = new int[capacity];
+	  System.arraycopy(observations, 0, copy, shift, size);
+	  observations = copy;
+
+	  if(hours != null) {
+		copy = new int[capacity];
+		System.arraycopy(hours, 0, copy, shift, size);
+		hours = copy;
+	  }
+	}
+
+	private float[] copy(float[] column, int capacity, int shift) {
+	  float[] copy = new float[capacity];
+	  System.arraycopy(column, 0, copy, shift, size);
+	  return copy;
+	}
+
+	void add(int i, float here_now, float hour_checkins, float max_here_now, int observations) {
+	  if(this.observations[i] == 0) {
+		this.max_here_now[i] = max_here_now;
+		rows++;
+	  }
+	  else
+		this.max_here_now[i] = Math.max(this.max_here_now[i], max_here_now);
+
+	  this.here_now[i]      += here_now;
+	  this.hour_checkins[i] += hour_checkins;
+	  this.observations[i]  += observations;
+	}
+
+	void set(int i, float here_now, float hour_checkins, float max_here_now, int observations) {
+	  if(this.observations[i] == 0 && observations > 0)
+		rows++;
+	  else if(this.observations[i] > 0 && observations == 0)
+		rows--;
+
+	  this.here_now[i]      = here_now;
+	  this.hour_checkins[i] = hour_checkins;
+	  this.max_here_now[i]  = max_here_now;
+	  this.observations[i]  = observations;
+	}
+
+	/** Adds the rollups of another table, period by period. */
+	void addAll(Table other) {
+	  for(int i = 0 ; i < other.size ; ++i)
+		if(other.observations[i] > 0)
+		  add(index(other.first + i), other.here_now[i], other.hour_checkins[i], other.max_here_now[i], other.observations[i]);
+	}
+
+	Rollup get(long period) {
+	  if(period < first || period - first >= size)
+		return null;
+
+	  int i = (int) (period - first);
+	  return observations[i] == 0 ? null : new Rollup(here_now[i], hour_checkins[i], max_here_now[i], observations[i]);
+	}
+  }
+
+  /** The daily and weekly rollups of a venue. */
+  static class VenueRollups {
+	final String id;
+	int          index;
+	long         last_hour = Long.MIN_VALUE;
+	final Table  days      = new Table(true);
+	final Table  weeks     = new Table(false);
+
+	VenueRollups(String id, int index) {
+	  this.id    = id;
+	  this.index = index;
+	}
+
+	/** Adds an observation. Returns false if its hour has already been added. */
+	boolean add(long hour, float here_now, float hour_checkins) {
+	  long day = toDay(hour);
+	  int  bit = 1 << (int) (hour - day*24);
+	  int  i   = days.index(day);
+	  if((days.hours[i] & bit) != 0)
+		return false;
+
+	  days.hours[i] |= bit;
+	  days.add(i, here_now, hour_checkins, here_now, 1);
+	  weeks.add(weeks.index(toWeek(day)), here_now, hour_checkins, here_now, 1);
+	  last_hour = Math.max(last_hour, hour);
+	  return true;
+	}
+
+	/** Sets the rollup of a day (read from the file), and updates the last hour added. */
+	void setDay(long day, int hours, float here_now, float hour_checkins, float max_here_now) {
+	  int i = days.index(day);
+	  days.hours[i] = hours;
+	  days.set(i, here_now, hour_checkins, max_here_now, Integer.bitCount(hours));
+	  if(hours != 0)
+		last_hour = Math.max(last_hour, day*24 + 31 - Integer.numberOfLeadingZeros(hours));
+	}
+
+	/** Computes the weekly rollups from the daily ones. */
+	void computeWeeks() {
+	  for(int i = 0 ; i < days.size ; ++i)
+		if(days.observations[i] > 0)
+		  weeks.add(weeks.index(toWeek(days.first + i)), days.here_now[i], days.hour_checkins[i], days.max_here_now[i], days.observations[i]);
+	}
+  }
+
+  private final File   file;
+  private final String directory;
+
+  private final Map<String,VenueRollups> venues   = new HashMap<String, VenueRollups>();
+  private final List<VenueRollups>       by_index = new ArrayList<VenueRollups>();
+  private final Table                    hours    = new Table(false);
+
+  // The rows modified since the last save: new venues, days (venue index << 32 | day) and hours.
+  private final List<VenueRollups> dirty_venues = new ArrayList<VenueRollups>();
+  private final Set<Long>          dirty_days   = new LinkedHashSet<Long>();
+  private final Set<Long>          dirty_hours  = new LinkedHashSet<Long>();
+
+  // The number of records in the file.
+  private long records = 0;
+
+  private Rollups(String folder, String city) {
+	this.file      = new File(getFile(folder, city));
+	this.directory = folder + city + File.separator + "attendances_crawl" + File.separator;
+  }
+
+  /** Returns the path of the rollups of a city. */
+  public static String getFile(String folder, String city) {
+	return folder + city + File.separator + FILE_NAME;
+  }
+
+  /** Returns the epoch-day of an epoch-hour. */
+  public static long toDay(long hour) {
+	return hour / 24;
+  }
+
+  /** Returns the week (starting on Monday) of an epoch-day. The 1st of January 1970 is a Thursday. */
+  public static long toWeek(long day) {
+	return (day + 3) / 7;
+  }
+
+  /** Returns the epoch-day of the Monday of a week. */
+  public static long getFirstDay(long week) {
+	return week*7 - 3;
+  }
+
+  /**
+   * Opens the rollups of a city. If they do not exist yet, they are first
+   * built from the `.ts` files. Otherwise, the venues whose files have been
+   * written after the last save (e.g. before a crash) are caught up.
+   */
+  public static Rollups open(String folder, String city) throws IOException {
+	if(!new File(getFile(folder, city)).exists())
+	  return build(folder, city);
+
+	Rollups rollups = new Rollups(folder, city);
+	rollups.load();
+	rollups.catchUp();
+	rollups.save();
+	return rollups;
+  }
+
+  /** Computes the rollups of a city from its `.ts` files (in parallel), and writes them. */
+  public static Rollups build(String folder, String city) throws IOException {
+	Rollups rollups = new Rollups(folder, city);
+
+	List<File> files = new File(rollups.directory).isDirectory() ? VenueUtil.getAllFilesEndingWith(rollups.directory, ".ts") : new ArrayList<File>();
+	VenueRollups[] built = new VenueRollups[files.size()];
+
+	ForkJoinPool workers = new ForkJoinPool();
+	try {
+	  workers.invoke(new RollupTask(files, 0, files.size(), built, rollups.hours));
+	} finally {
+	  workers.shutdown();
+	}
+
+	for(VenueRollups venue: built) {
+	  if(venue != null) {
+		venue.index = rollups.by_index.size();
+		rollups.by_index.add(venue);
+		rollups.venues.put(venue.id, venue);
+	  }
+	}
+
+	rollups.compact();
+	return rollups;
+  }
+
+  /** Computes the rollups of a range of `.ts` files. */
+  private static class RollupTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private static final int THRESHOLD = 16;
+
+	private final List<File>     files;
+	private final int            from, to;
+	private final VenueRollups[] venues;
+	private final Table          hours;
+
+	RollupTask(List<File> files, int from, int to, VenueRollups[] venues, Table hours) {
+	  this.files  = files;
+	  this.from   = from;
+	  this.to     = to;
+	  this.venues = venues;
+	  this.hours  = hours;
+	}
+
+	@Override
+	protected void compute() {
+	  if(to - from > THRESHOLD) {
+		int middle = (from + to) >>> 1;
+		invokeAll(new RollupTask(files, from, middle, venues, hours),
+				  new RollupTask(files, middle, to, venues, hours));
+		return;
+	  }
+
+	  // The hourly rollups of the city are summed separately, then merged.
+	  Table partial = new Table(false);
+	  for(int i = from ; i < to ; ++i) {
+		String name = files.get(i).getName();
+		try {
+		  CompactTimeSeries series = CompactTimeSeries.read(files.get(i).getPath());
+		  VenueRollups venue = new VenueRollups(name.substring(0, name.length()-3), -1);
+		  for(int j = 0 ; j < series.size() ; ++j)
+			if(venue.add(series.getHour(j), series.getHereNow(j), series.getHourCheckins(j)))
+			  partial.add(partial.index(series.getHour(j)), series.getHereNow(j), series.getHourCheckins(j), series.getHereNow(j), 1);
+		  venues[i] = venue;
+		} catch (Exception e) {
+		  System.err.println("Cannot read "+files.get(i)+" ("+e.getMessage()+").");
+		}
+	  }
+
+	  synchronized(hours) {
+		hours.addAll(partial);
+	  }
+	}
+  }
+
+  /** Reads the records of the file. A truncated record at the end of the file is dropped. */
+  private void load() throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try {
+	  FileChannel channel = raf.getChannel();
+	  long length = channel.size();
+	  if(length > Integer.MAX_VALUE)
+		throw new IOException("The rollups "+file+" are too large to be mapped.");
+
+	  MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+	  if(length < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+		throw new IOException(file+" does not contain rollups.");
+
+	  int position = HEADER_SIZE;
+	  while(position < length) {
+		byte kind = map.get(position);
+		if(kind == VENUE && position + 7 <= length && position + 7 + (map.getShort(position + 5) & 0xffff) <= length) {
+		  byte[] id = new byte[map.getShort(position + 5) & 0xffff];
+		  map.position(position + 7);
+		  map.get(id);
+
+		  int index = map.getInt(position + 1);
+		  if(index != by_index.size())
+			break;
+
+		  VenueRollups venue = new VenueRollups(new String(id, StandardCharsets.UTF_8), index);
+		  by_index.add(venue);
+		  venues.put(venue.id, venue);
+		  position += 7 + id.length;
+		}
+		else if(kind == DAY && position + DAY_SIZE <= length && map.getInt(position + 1) < by_index.size()) {
+		  by_index.get(map.getInt(position + 1)).setDay(map.getInt(position + 5), map.getInt(position + 9),
+			  map.getFloat(position + 13), map.getFloat(position + 17), map.getFloat(position + 21));
+		  position += DAY_SIZE;
+		}
+		else if(kind == HOUR && position + HOUR_SIZE <= length) {
+		  hours.set(hours.index(map.getInt(position + 1)), map.getFloat(position + 5), map.getFloat(position + 9),
+			  map.getFloat(position + 13), map.getInt(position + 17));
+		  position += HOUR_SIZE;
+		}
+		else
+		  break;
+
+		records++;
+	  }
+
+	  // The end of the file is a record that has not been completely written.
+	  if(position < length)
+		channel.truncate(position);
+	} finally {
+	  raf.close();
+	}
+
+	for(VenueRollups venue: by_index)
+	  venue.computeWeeks();
+  }
+
+  /** Adds the lines written in the `.ts` files after the last save. */
+  private void catchUp() throws IOException {
+	if(!new File(directory).isDirectory())
+	  return;
+
+	for(File ts: VenueUtil.getAllFilesEndingWith(directory, ".ts")) {
+	  String name = ts.getName();
+	  String id   = name.substring(0, name.length()-3);
+	  String last = VenueUtil.readLastLine(ts);
+	  if(last == null || last.startsWith("Date"))
+		continue;
+
+	  try {
+		VenueRollups venue = venues.get(id);
+		if(venue == null || venue.last_hour < BinaryTimeSeries.toEpochHour(last.substring(0, last.indexOf(','))))
+		  update(id, ts);
+	  } catch (Exception e) {
+		System.err.println("Cannot read "+ts+" ("+e.getMessage()+").");
+	  }
+	}
+  }
+
+  /** Adds an observation of a venue. Returns false if the hour has already been added. */
+  public synchronized boolean add(String venue_id, long hour, float here_now, float hour_checkins) {
+	VenueRollups venue = venues.get(venue_id);
+	if(venue == null) {
+	  venue = new VenueRollups(venue_id, by_index.size());
+	  by_index.add(venue);
+	  venues.put(venue_id, venue);
+	  dirty_venues.add(venue);
+	}
+
+	if(!venue.add(hour, here_now, hour_checkins))
+	  return false;
+
+	hours.add(hours.index(hour), here_now, hour_checkins, here_now, 1);
+	dirty_days.add(((long) venue.index << 32) | toDay(hour));
+	dirty_hours.add(hour);
+	return true;
+  }
+
+  /** Adds the observations of the `.ts` file of a venue that have not been added yet. */
+  public void update(String venue_id, File ts) throws IOException, ParseException {
+	CompactTimeSeries series = CompactTimeSeries.read(ts.getPath());
+
+	synchronized(this) {
+	  for(int i = 0 ; i < series.size() ; ++i)
+		add(venue_id, series.getHour(i), series.getHereNow(i), series.getHourCheckins(i));
+	}
+  }
+
+  @Override
+  public void appended(String venue_id, String lines) {
+	for(String line: lines.split("\n")) {
+	  if(line.isEmpty() || line.startsWith("Date"))
+		continue;
+
+	  try {
+		String[] values = line.split(",");
+		add(venue_id, BinaryTimeSeries.toEpochHour(values[0]), Float.parseFloat(values[1]), Float.parseFloat(values[2]));
+	  } catch (Exception e) {
+		System.err.println("Cannot add the line \""+line+"\" of "+venue_id+" to the rollups ("+e.getMessage()+").");
+	  }
+	}
+  }
+
+  @Override
+  public void changed(String venue_id) {
+	File ts = new File(directory + venue_id + ".ts");
+	if(!ts.exists())
+	  return;
+
+	try {
+	  update(venue_id, ts);
+	} catch (Exception e) {
+	  System.err.println("Cannot update the rollups of "+venue_id+" ("+e.getMessage()+").");
+	}
+  }
+
+  /** Returns the rollup of a venue for an epoch-day, or null if it has not been observed that day. */
+  public synchronized Rollup getDay(String venue_id, long day) {
+	VenueRollups venue = venues.get(venue_id);
+	return venue == null ? null : venue.days.get(day);
+  }
+
+  /** Returns the rollup of a venue for a week (see `toWeek`), or null if it has not been observed that week. */
+  public synchronized Rollup getWeek(String venue_id, long week) {
+	VenueRollups venue = venues.get(venue_id);
+	return venue == null ? null : venue.weeks.get(week);
+  }
+
+  /** Returns the rollup of all the venues of the city for an epoch-hour, or null if none has been observed. */
+  public synchronized Rollup getHour(long hour) {
+	return hours.get(hour);
+  }
+
+  /** Returns the first epoch-hour of the city rollups (meaningless if there are none, see `getLastHour`). */
+  public synchronized long getFirstHour() {
+	return hours.first;
+  }
+
+  /** Returns the last epoch-hour of the city rollups, or `getFirstHour()-1` if there are none. */
+  public synchronized long getLastHour() {
+	return hours.first + hours.size - 1;
+  }
+
+  /** Returns the ids of the venues that have rollups. */
+  public synchronized List<String> getVenues() {
+	List<String> ids = new ArrayList<String>(by_index.size());
+	for(VenueRollups venue: by_index)
+	  ids.add(venue.id);
+	return ids;
+  }
+
+  /** Appends the rows modified since the last save to the file, which is compacted if needed. */
+  public synchronized void save() throws IOException {
+	if(dirty_venues.isEmpty() && dirty_days.isEmpty() && dirty_hours.isEmpty())
+	  return;
+
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+	try {
+	  for(VenueRollups venue: dirty_venues)
+		writeVenue(out, venue);
+
+	  for(long key: dirty_days) {
+		VenueRollups venue = by_index.get((int) (key >>> 32));
+		writeDay(out, venue, venue.days.index(key & 0xffffffffL));
+	  }
+
+	  for(long hour: dirty_hours)
+		writeHour(out, hours.index(hour));
+	} finally {
+	  out.close();
+	}
+
+	records += dirty_venues.size() + dirty_days.size() + dirty_hours.size();
+	dirty_venues.clear();
+	dirty_days.clear();
+	dirty_hours.clear();
+
+	if(records - getLiveRecords() > getLiveRecords())
+	  compact();
+  }
+
+  private long getLiveRecords() {
+	long live = by_index.size() + hours.rows;
+	for(VenueRollups venue: by_index)
+	  live += venue.days.rows;
+	return live;
+  }
+
+  /** Rewrites the file with the live rows only, in a temporary file which then replaces it atomically. */
+  public synchronized void compact() throws IOException {
+	File tmp = new File(file.getPath() + ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	try {
+	  out.writeInt(MAGIC);
+	  out.writeInt(VERSION);
+
+	  for(VenueRollups venue: by_index)
+		writeVenue(out, venue);
+
+	  for(VenueRollups venue: by_index)
+		for(int i = 0 ; i < venue.days.size ; ++i)
+		  if(venue.days.observations[i] > 0)
+			writeDay(out, venue, i);
+
+	  for(int i = 0 ; i < hours.size ; ++i)
+		if(hours.observations[i] > 0)
+		  writeHour(out, i);
+	} finally {
+	  out.close();
+	}
+
+	Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+	records = getLiveRecords();
+	dirty_venues.clear();
+	dirty_days.clear();
+	dirty_hours.clear();
+  }
+
+  private static void writeVenue(DataOutputStream out, VenueRollups venue) throws IOException {
+	byte[] id = venue.id.getBytes(StandardCharsets.UTF_8);
+	out.writeByte(VENUE);
+	out.writeInt(venue.index);
+	out.writeShort(id.length);
+	out.write(id);
+  }
+
+  private static void writeDay(DataOutputStream out, VenueRollups venue, int i) throws IOException {
+	Table days = venue.days;
+	out.writeByte(DAY);
+	out.writeInt(venue.index);
+	out.writeInt((int) (days.first + i));
+	out.writeInt(days.hours[i]);
+	out.writeFloat(days.here_now[i]);
+	out.writeFloat(days.hour_checkins[i]);
+	out.writeFloat(days.max_here_now[i]);
+  }
+
+  private void writeHour(DataOutputStream out, int i) throws IOException {
+	out.writeByte(HOUR);
+	out.writeInt((int) (hours.first + i));
+	out.writeFloat(hours.here_now[i]);
+	out.writeFloat(hours.hour_checkins[i]);
+	out.writeFloat(hours.max_here_now[i]);
+	out.writeInt(hours.observations[i]);
+  }
+
+  /**
+   * Rebuilds the rollups of a city from its `.ts` files. The crawler of the
+   * city must not be running.
+   *
+   * Usage: Rollups <city>
+   */
+  public static void main(String[] args) throws IOException {
+	String folder = Settings.getInstance().getFolder();
+
+	long start = System.currentTimeMillis();
+	Rollups rollups = build(folder, args[0]);
+	System.out.println("Rollups of "+rollups.by_index.size()+" venues written in "+getFile(folder, args[0])
+		+" ("+(System.currentTimeMillis()-start)+" ms).");
+  }
+}
@@ -16,16 +16,21 @@
 
 package eu.smartfp7.foursquare;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import org.apache.commons.io.input.CharSequenceReader;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 
 import eu.smartfp7.geo.GeoUtil;
 
@@ -46,9 +51,24 @@ import eu.smartfp7.geo.GeoUtil;
  *  "hereNow":{"count":11,"groups":[{"type":"others","name":"Other people here","count":11,"items":[]}]},
  *  "venuePage":{"id":"33156056"}}
  *
+ * The JSON is read in a single streaming pass, without building any tree.
+ * A venue read from a `VenueCatalog` is only a view of its record: the id,
+ * coordinates and number of checkins come from the header of the record, and
+ * the other fields are decoded from the raw JSON when they are first asked
+ * for (by groups, e.g. all the location fields at once). Listing or filtering
+ * venues thus only allocates memory for the fields that are actually used.
  */
 public class Venue{
   
+	// The groups of fields that are decoded together.
+	private static final int ID         = 1;
+	private static final int INFO       = 2;  // name, url, canonicalUrl
+	private static final int LOCATION   = 4;  // address, city, ..., lat, lon
+	private static final int STATS      = 8;  // checkincount, hereNow, likes, rating
+	private static final int CATEGORIES = 16; // categories, category_icons
+	private static final int PHOTOS     = 32; // photos, icons
+	private static final int ALL        = 63;
+	
 	private String id;
 	private String name;
 	private String phone;
@@ -79,6 +99,14 @@ public class Venue{
 	private int hereNow=0;
 	private int likes=0;
 	
+	// The UTF-8 JSON of a venue read from a `VenueCatalog` (raw_length bytes at
+	// raw_offset of the mapped catalog), and the groups of fields that have
+	// already been decoded from it.
+	private ByteBuffer   raw;
+	private int          raw_offset;
+	private int          raw_length;
+	private volatile int decoded = ALL;
+	
 	
 	public Venue() {
 		super();
@@ -87,113 +115,260 @@ public class Venue{
 	
 	public Venue(String jsonObjString){
 	  	setFoursquareJson(jsonObjString);
-	  
-		JsonParser parser = new JsonParser();
-		
-		JsonObject jsonObj= parser.parse(jsonObjString).getAsJsonObject();
-		setName(jsonObj.get("name").getAsString());
-		setId(jsonObj.get("id").getAsString());
-		
-		
-		JsonArray jsonArray = jsonObj.get("categories").getAsJsonArray();
-		int s  =jsonArray.size();
-		
-		this.categories = new HashMap<String, String>();
-		this.category_icons = new HashMap<String,String>();
-		
-		for(int i=0;i<s;i++){
-		  this.categories.put(jsonArray.get(i).getAsJsonObject().get("id").getAsString(), jsonArray.get(i).getAsJsonObject().get("name").getAsString());
-		  JsonObject iconObject = jsonArray.get(i).getAsJsonObject().get("icon").getAsJsonObject();
-		  this.category_icons.put(jsonArray.get(i).getAsJsonObject().get("name").getAsString(),iconObject.get("prefix").getAsString()+"32"+iconObject.get("suffix").getAsString());
+	  	this.decoded = 0;
+	  	load(ALL);
+	}
+	
+	/**
+	 * Creates a view of a venue stored in a `VenueCatalog`: the fields that
+	 * are in the header of its record are known, and the other fields are only
+	 * decoded from the JSON of the venue when they are first asked for.
+	 */
+	Venue(String id, double lat, double lon, int checkincount, ByteBuffer catalog, int json_offset, int json_length) {
+	  	this.id           = id;
+	  	this.lat          = Double.isNaN(lat) ? null : lat;
+	  	this.lon          = Double.isNaN(lon) ? null : lon;
+	  	this.checkincount = checkincount;
+	  	this.raw          = catalog;
+	  	this.raw_offset   = json_offset;
+	  	this.raw_length   = json_length;
+	  	this.decoded      = ID;
+	}
+	
+	/** Decodes the groups of fields that have not been decoded yet, in a single pass over the JSON. */
+	private synchronized void load(int groups) {
+	  	groups &= ~decoded;
+	  	if(groups == 0)
+	  	  return;
+	  	
+	  	try {
+	  	  JsonReader reader = new JsonReader(raw != null ? new CharSequenceReader(decodeRaw()) : new StringReader(foursquareJson));
+	  	  try {
+	  		read(reader, groups);
+	  	  } finally {
+	  		reader.close();
+	  	  }
+	  	} catch (IOException e) {
+	  	  throw new JsonParseException("Cannot decode venue "+id, e);
+	  	} catch (IllegalStateException e) {
+	  	  throw new JsonParseException("Cannot decode venue "+id, e);
+	  	}
+	  	
+	  	decoded |= groups;
+	}
+	
+	private CharSequence decodeRaw() {
+		ByteBuffer json = raw.duplicate();
+		json.limit(raw_offset + raw_length);
+		json.position(raw_offset);
+		return StandardCharsets.UTF_8.decode(json);
+	}
+	
+	private void read(JsonReader reader, int groups) throws IOException {
+		if((groups & CATEGORIES) != 0) {
+		  this.categories = new HashMap<String, String>();
+		  this.category_icons = new HashMap<String,String>();
 		}
-		
-		this.photos = new ArrayList<String>();
-		this.icons = new ArrayList<String>();
-		
-		if(jsonObj.has("url"))
-			setUrl(jsonObj.get("url").getAsString().replaceAll(".*", ""));
-		if(jsonObj.has("canonicalUrl"))
-			setCanonicalUrl(jsonObj.get("canonicalUrl").getAsString());
-		if(jsonObj.has("location")){
-			// e.g. location":{"address":"Ariel Way","lat":51.50721994598464,"lng":-0.2215290069580078,
-			//		"distance":1943,"postalCode":"W12 7GF","city":"Shepherd's Bush","state":"Greater London",
-			//		"country":"United Kingdom","cc":"GB"}
-			JsonObject locObj = jsonObj.get("location").getAsJsonObject();
-			if(locObj.has("address"))
-				setAddress(locObj.get("address").getAsString());
-			if(locObj.has("city"))
-				setCity(locObj.get("city").getAsString());
-			if(locObj.has("state"))
-				setState(locObj.get("state").getAsString());
-			if(locObj.has("country"))
-				setCountry(locObj.get("country").getAsString());
-			if(locObj.has("postalCode"))
-				setPostalCode(locObj.get("postalCode").getAsString());
-			if(locObj.has("lat"))
-				setLat(locObj.get("lat").getAsDouble());
-			if(locObj.has("lng"))
-				setLon(locObj.get("lng").getAsDouble());
-			
+		if((groups & PHOTOS) != 0) {
+		  this.photos = new ArrayList<String>();
+		  this.icons = new ArrayList<String>();
 		}
-		if(jsonObj.has("stats")){
-			JsonObject statObject = jsonObj.get("stats").getAsJsonObject();
-			if(statObject.has("checkinsCount"))
-				setCheckincount(statObject.get("checkinsCount").getAsInt());
+		
+		reader.beginObject();
+		while(reader.hasNext()) {
+		  String key = reader.nextName();
+		  if(reader.peek() == JsonToken.NULL)
+			reader.skipValue();
+		  else if(key.equals("id") && (groups & ID) != 0)
+			this.id = reader.nextString();
+		  else if(key.equals("name") && (groups & INFO) != 0)
+			this.name = reader.nextString();
+		  else if(key.equals("url") && (groups & INFO) != 0)
+			this.url = reader.nextString().replaceAll(".*", "");
+		  else if(key.equals("canonicalUrl") && (groups & INFO) != 0)
+			this.canonicalUrl = reader.nextString();
+		  else if(key.equals("location") && (groups & LOCATION) != 0)
+			readLocation(reader);
+		  else if(key.equals("stats") && (groups & STATS) != 0)
+			this.checkincount = VenueStats.readCount(reader, "checkinsCount", this.checkincount);
+		  else if(key.equals("hereNow") && (groups & STATS) != 0)
+			this.hereNow = VenueStats.readCount(reader, "count", this.hereNow);
+		  else if(key.equals("likes") && (groups & STATS) != 0)
+			this.likes = VenueStats.readCount(reader, "count", this.likes);
+		  else if(key.equals("rating") && (groups & STATS) != 0)
+			this.rating = reader.nextDouble();
+		  else if(key.equals("categories") && (groups & CATEGORIES) != 0)
+			readCategories(reader);
+		  else if(key.equals("photos") && (groups & PHOTOS) != 0)
+			readPhotos(reader);
+		  else
+			reader.skipValue();
 		}
-		if(jsonObj.has("hereNow")) {
-		  JsonObject statObject = jsonObj.get("hereNow").getAsJsonObject();
-		  if(statObject.has("count"))
-			setHereNow(statObject.get("count").getAsInt());
+		reader.endObject();
+	}
+	
+	// e.g. location":{"address":"Ariel Way","lat":51.50721994598464,"lng":-0.2215290069580078,
+	//		"distance":1943,"postalCode":"W12 7GF","city":"Shepherd's Bush","state":"Greater London",
+	//		"country":"United Kingdom","cc":"GB"}
+	private void readLocation(JsonReader reader) throws IOException {
+		reader.beginObject();
+		while(reader.hasNext()) {
+		  String key = reader.nextName();
+		  if(reader.peek() == JsonToken.NULL)
+			reader.skipValue();
+		  else if(key.equals("address"))
+			this.address = reader.nextString();
+		  else if(key.equals("city"))
+			this.city = reader.nextString();
+		  else if(key.equals("state"))
+			this.state = reader.nextString();
+		  else if(key.equals("country"))
+			this.country = reader.nextString();
+		  else if(key.equals("postalCode"))
+			this.postalCode = reader.nextString();
+		  else if(key.equals("lat"))
+			this.lat = reader.nextDouble();
+		  else if(key.equals("lng"))
+			this.lon = reader.nextDouble();
+		  else
+			reader.skipValue();
 		}
-		if(jsonObj.has("likes")) {
-		  JsonObject statObject = jsonObj.get("likes").getAsJsonObject();
-		  if(statObject.has("count"))
-			setLikes(statObject.get("count").getAsInt());
+		reader.endObject();
+	}
+	
+	private void readCategories(JsonReader reader) throws IOException {
+		reader.beginArray();
+		while(reader.hasNext()) {
+		  String category_id = null, category_name = null, prefix = null, suffix = null;
+		  
+		  reader.beginObject();
+		  while(reader.hasNext()) {
+			String key = reader.nextName();
+			if(key.equals("id"))
+			  category_id = reader.nextString();
+			else if(key.equals("name"))
+			  category_name = reader.nextString();
+			else if(key.equals("icon") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+			  reader.beginObject();
+			  while(reader.hasNext()) {
+				String field = reader.nextName();
+				if(field.equals("prefix"))
+				  prefix = reader.nextString();
+				else if(field.equals("suffix"))
+				  suffix = reader.nextString();
+				else
+				  reader.skipValue();
+			  }
+			  reader.endObject();
+			}
+			else
+			  reader.skipValue();
+		  }
+		  reader.endObject();
+		  
+		  this.categories.put(category_id, category_name);
+		  if(prefix != null && suffix != null)
+			this.category_icons.put(category_name, prefix+"32"+suffix);
 		}
-		if(jsonObj.has("rating"))
-		  setRating(jsonObj.get("rating").getAsDouble());
-		if(jsonObj.has("photos")) {
-			for(JsonElement e: jsonObj.get("photos").getAsJsonObject().get("groups").getAsJsonArray()) {
-			  if(e.getAsJsonObject().get("type").getAsString().equals("venue")) {
-				for(JsonElement e2: e.getAsJsonObject().get("items").getAsJsonArray()) {
-				  this.photos.add(e2.getAsJsonObject().get("prefix").getAsString().toString()+"300x100"+e2.getAsJsonObject().get("suffix").getAsString().toString());
-				  this.icons.add(e2.getAsJsonObject().get("prefix").getAsString().toString()+"36x36"+e2.getAsJsonObject().get("suffix").getAsString().toString());
+		reader.endArray();
+	}
+	
+	// Only the photos of the "venue" group are kept, e.g.
+	// "photos":{"count":1,"groups":[{"type":"venue","items":[{"prefix":"...","suffix":"...", ...}]}]}
+	private void readPhotos(JsonReader reader) throws IOException {
+		reader.beginObject();
+		while(reader.hasNext()) {
+		  if(!reader.nextName().equals("groups")) {
+			reader.skipValue();
+			continue;
+		  }
+		  
+		  reader.beginArray();
+		  while(reader.hasNext()) {
+			String type = null;
+			List<String> prefixes = new ArrayList<String>(), suffixes = new ArrayList<String>();
+			
+			reader.beginObject();
+			while(reader.hasNext()) {
+			  String key = reader.nextName();
+			  if(key.equals("type"))
+				type = reader.nextString();
+			  else if(key.equals("items")) {
+				reader.beginArray();
+				while(reader.hasNext()) {
+				  String prefix = null, suffix = null;
+				  reader.beginObject();
+				  while(reader.hasNext()) {
+					String field = reader.nextName();
+					if(field.equals("prefix"))
+					  prefix = reader.nextString();
+					else if(field.equals("suffix"))
+					  suffix = reader.nextString();
+					else
+					  reader.skipValue();
+				  }
+				  reader.endObject();
+				  prefixes.add(prefix);
+				  suffixes.add(suffix);
 				}
+				reader.endArray();
 			  }
+			  else
+				reader.skipValue();
 			}
+			reader.endObject();
+			
+			if("venue".equals(type)) {
+			  for(int i = 0 ; i < prefixes.size() ; ++i) {
+				this.photos.add(prefixes.get(i)+"300x100"+suffixes.get(i));
+				this.icons.add(prefixes.get(i)+"36x36"+suffixes.get(i));
+			  }
+			}
+		  }
+		  reader.endArray();
 		}
-		
+		reader.endObject();
 	}
 	
 	public Map<String,String> getCategoryIcons() {
+	  load(CATEGORIES);
 	  return category_icons;
 	}
 	
 	public Collection<String> getIcons() {
+	  load(PHOTOS);
 	  return icons;
 	}
 	
 	public Collection<String> getPhotos() {
+	  load(PHOTOS);
 	  return photos;
 	}
 
 	public void setPhotos(Collection<String> photos) {
+	  load(PHOTOS);
 	  this.photos = photos;
 	}
 
 	public String getGeoHash(int precision) {
+	  if(this.lat == null || this.lon == null)
+		load(LOCATION);
 	  return (this.lat != null && this.lon != null) ? GeoUtil.geoHash(this.lon, this.lat, precision): null ;
 	}
 	
 	public void addCategory(String id, String name) {
+	  load(CATEGORIES);
 	  this.categories.put(id, name);
 	}
 	
 	public Map<String,String> getCategories() {
+	  load(CATEGORIES);
 	  return this.categories;
 	}
 	
 	public String getFoursquareJson() {
+	  if(foursquareJson == null && raw != null)
+		foursquareJson = decodeRaw().toString();
 	  return foursquareJson;
 	}
 
@@ -202,32 +377,41 @@ public class Venue{
 	}
 
 	public int getHereNow() {
+	  load(STATS);
 	  return hereNow;
 	}
 
 	public void setHereNow(int hereNow) {
+	  load(STATS);
 	  this.hereNow = hereNow;
 	}
 
 	public int getCheckincount() {
+		if(checkincount < 0)
+			load(STATS);
 		return checkincount;
 	}
 
 	public void setCheckincount(int checkincount) {
+		load(STATS);
 		this.checkincount = checkincount;
 	}
 
 	public String getId() {
+		load(ID);
 		return id;
 	}
 
 	public void setId(String id) {
+		load(ID);
 		this.id = id;
 	}
 	public String getName() {
+		load(INFO);
 		return name;
 	}
 	public void setName(String name) {
+		load(INFO);
 		this.name = name;
 	}
 	public String getPhone() {
@@ -243,33 +427,51 @@ public class Venue{
 		this.twitter = twitter;
 	}
 	public String getPostalCode() {
+		load(LOCATION);
 		return postalCode;
 	}
 	public void setPostalCode(String postalCode) {
+		load(LOCATION);
 		this.postalCode = postalCode;
 	}
 	public String getAddress() {
+		load(LOCATION);
 		return address;
 	}
 	public void setAddress(String address) {
+		load(LOCATION);
 		this.address = address;
 	}
 	public String getCity() {
+		load(LOCATION);
 		return city;
 	}
 	public void setCity(String city) {
+		load(LOCATION);
 		this.city = city;
 	}
+	/** Returns false if the location of the venue is unknown (`getLat` and `getLon` would then fail). */
+	public boolean hasCoordinates() {
+		if(lat == null || lon == null)
+			load(LOCATION);
+		return lat != null && lon != null;
+	}
 	public double getLat() {
+		if(lat == null)
+			load(LOCATION);
 		return lat;
 	}
 	public void setLat(double lat) {
+		load(LOCATION);
 		this.lat = lat;
 	}
 	public double getLon() {
+		if(lon == null)
+			load(LOCATION);
 		return lon;
 	}
 	public void setLon(double lon) {
+		load(LOCATION);
 		this.lon = lon;
 	}
 	public int getVenuePageId() {
@@ -279,27 +481,35 @@ public class Venue{
 		this.venuePageId = venuePageId;
 	}
 	public String getCanonicalUrl() {
+		load(INFO);
 		return canonicalUrl;
 	}
 	public void setCanonicalUrl(String canonicalUrl) {
+		load(INFO);
 		this.canonicalUrl = canonicalUrl;
 	}
 	public String getUrl() {
+		load(INFO);
 		return url == null ? this.getCanonicalUrl() : url ;
 	}
 	public void setUrl(String url) {
+		load(INFO);
 		this.url = url;
 	}
 	public String getState() {
+	  	load(LOCATION);
 	  	return state;
 	}
 	public void setState(String state){
+	  	load(LOCATION);
 	  	this.state = state;
 	}
 	public String getCountry() {
+	  	load(LOCATION);
 	  	return country;
 	}
 	public void setCountry(String country){
+	  	load(LOCATION);
 	  	this.country = country;
 	}
 	
@@ -327,13 +537,15 @@ public class Venue{
 
 
 
-	private List<TimeSeriesItem<Integer>> hereNowTimeseries = new ArrayList<TimeSeriesItem<Integer>>();
+	private List<TimeSeriesItem<Integer>> hereNowTimeseries;
 
 	/**
 	 * 
 	 * @return the raw timeseries data available for the venue
 	 */
 	public List<TimeSeriesItem<Integer>> getHereNowTimeseries() {
+		if(hereNowTimeseries == null)
+			hereNowTimeseries = new ArrayList<TimeSeriesItem<Integer>>();
 		return hereNowTimeseries;
 	}
 	
@@ -355,18 +567,22 @@ public class Venue{
 	}
 
 	public int getLikes() {
+	  load(STATS);
 	  return likes;
 	}
 
 	public void setLikes(int likes) {
+	  load(STATS);
 	  this.likes = likes;
 	}
 
 	public Double getRating() {
+	  load(STATS);
 	  return rating;
 	}
 
 	public void setRating(Double rating) {
+	  load(STATS);
 	  this.rating = rating;
 	}
 
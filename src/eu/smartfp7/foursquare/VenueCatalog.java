@@ -0,0 +1,359 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import eu.smartfp7.foursquare.utils.Settings;
+
+/**
+ * The venues of a city in a single file, instead of one `.info` file per
+ * venue.
+ *
+ * The catalog starts with "FSVC" and a version, followed by one record per
+ * venue:
+ *   - the length of the rest of the record (int),
+ *   - the id of the venue (short length + UTF-8 bytes),
+ *   - its latitude and longitude (doubles, NaN if unknown) and its number of
+ *     checkins (int, -1 if unknown),
+ *   - its JSON (UTF-8 bytes). A record without JSON means that the venue has
+ *     been removed.
+ *
+ * The file is read through a memory map. When it is opened, the headers of
+ * the records are scanned to build the id -> offset index (the last record
+ * of a venue wins); a truncated record at the end of the file (e.g. after a
+ * crash) is dropped. The venues are then returned as views of their record
+ * (see `Venue`): listing or filtering the venues on their coordinates or
+ * checkins never decodes any JSON.
+ *
+ * New records are appended at the end of the file. When there are more
+ * obsolete records than live ones, the catalog is compacted: the live
+ * records are copied in a temporary file, which then replaces the catalog
+ * atomically.
+ */
+public class VenueCatalog {
+
+  public static final String FILE_NAME = "venues.catalog";
+
+  private static final int MAGIC       = 0x46535643; // "FSVC"
+  private static final int VERSION     = 1;
+  private static final int HEADER_SIZE = 8;
+
+  // The fixed part of a record, after its length and id: latitude, longitude and checkins.
+  private static final int STATS_SIZE  = 8 + 8 + 4;
+
+  private final File file;
+  private RandomAccessFile raf;
+  private FileChannel      channel;
+  private MappedByteBuffer map;
+  private long             size;
+
+  // The offset of the last record of each venue, in the order the venues were first added.
+  private final Map<String,Integer> offsets = new LinkedHashMap<String, Integer>();
+  private int obsolete = 0;
+
+  private VenueCatalog(File file) {
+	this.file = file;
+  }
+
+  /** Returns the path of the catalog of a city. */
+  public static String getFile(String folder, String city) {
+	return folder + city + File.separator + FILE_NAME;
+  }
+
+  /**
+   * Opens the catalog of a city. If it does not exist yet, it is first built
+   * from the `.info` files of the venues.
+   */
+  public static VenueCatalog open(String folder, String city) throws IOException {
+	if(!new File(getFile(folder, city)).exists())
+	  build(folder, city);
+	return open(getFile(folder, city));
+  }
+
+  /** Opens a catalog, which is created if it does not exist. */
+  public static VenueCatalog open(String file) throws IOException {
+	VenueCatalog catalog = new VenueCatalog(new File(file));
+
+	if(!catalog.file.exists()) {
+	  DataOutputStream out = new DataOutputStream(new FileOutputStream(catalog.file));
+	  try {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+	  } finally {
+		out.close();
+	  }
+	}
+
+	catalog.load();
+	if(catalog.obsolete > catalog.offsets.size())
+	  catalog.compact();
+
+	return catalog;
+  }
+
+  /** Writes the catalog of a city from the `.info` files of its venues. */
+  public static void build(String folder, String city) throws IOException {
+	List<File> files = VenueUtil.getAllFilesEndingWith(folder + city + File.separator + "foursquare_venues", ".info");
+
+	File catalog = new File(getFile(folder, city));
+	File tmp     = new File(catalog.getPath() + ".tmp");
+
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	try {
+	  out.writeInt(MAGIC);
+	  out.writeInt(VERSION);
+
+	  for(File info: files) {
+		try {
+		  String json = new String(Files.readAllBytes(info.toPath()), StandardCharsets.UTF_8).trim();
+		  VenueStats venue = VenueStats.parseVenue(new StringReader(json));
+		  if(venue.getId() != null)
+			writeRecord(out, venue.getId(), venue.getLat(), venue.getLng(), venue.getCheckincount(), json.getBytes(StandardCharsets.UTF_8));
+		} catch (Exception e) {
+		  System.err.println("Cannot read "+info+" ("+e.getMessage()+").");
+		}
+	  }
+	} finally {
+	  out.close();
+	}
+
+	Files.move(tmp.toPath(), catalog.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /** Maps the file and scans the headers of the records. */
+  private void load() throws IOException {
+	raf     = new RandomAccessFile(file, "rw");
+	channel = raf.getChannel();
+
+	long length = channel.size();
+	if(length > Integer.MAX_VALUE)
+	  throw new IOException("The catalog "+file+" is too large to be mapped.");
+
+	map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+	if(length < HEADER_SIZE || map.getInt(0) != MAGIC || map.getInt(4) != VERSION)
+	  throw new IOException(file+" is not a venue catalog.");
+
+	offsets.clear();
+	obsolete = 0;
+
+	int position = HEADER_SIZE;
+	while(position + 4 <= length) {
+	  int record = map.getInt(position);
+	  if(record < 2 + STATS_SIZE || position + 4L + record > length
+		  || 2 + (map.getShort(position + 4) & 0xffff) + STATS_SIZE > record)
+		break;
+
+	  String  id      = readId(position);
+	  boolean removed = isRemoved(position);
+	  Integer previous = removed ? offsets.remove(id) : offsets.put(id, position);
+	  if(previous != null)
+		obsolete++;
+	  if(removed)
+		obsolete++;
+
+	  position += 4 + record;
+	}
+
+	// The end of the file is a record that has not been completely written.
+	if(position < length) {
+	  channel.truncate(position);
+	  map = channel.map(FileChannel.MapMode.READ_ONLY, 0, position);
+	}
+	size = position;
+  }
+
+  private String readId(int position) {
+	byte[] id = new byte[map.getShort(position + 4) & 0xffff];
+	ByteBuffer buffer = map.duplicate();
+	buffer.position(position + 6);
+	buffer.get(id);
+	return new String(id, StandardCharsets.UTF_8);
+  }
+
+  private int getJsonOffset(int position) {
+	return position + 6 + (map.getShort(position + 4) & 0xffff) + STATS_SIZE;
+  }
+
+  private boolean isRemoved(int position) {
+	return getJsonOffset(position) == position + 4 + map.getInt(position);
+  }
+
+  private static void writeRecord(DataOutputStream out, String id, double lat, double lng, int checkins, byte[] json) throws IOException {
+	byte[] id_bytes = id.getBytes(StandardCharsets.UTF_8);
+
+	out.writeInt(2 + id_bytes.length + STATS_SIZE + json.length);
+	out.writeShort(id_bytes.length);
+	out.write(id_bytes);
+	out.writeDouble(lat);
+	out.writeDouble(lng);
+	out.writeInt(checkins);
+	out.write(json);
+  }
+
+  /** Appends a record at the end of the file. */
+  private void append(String id, double lat, double lng, int checkins, byte[] json) throws IOException {
+	ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + json.length);
+	writeRecord(new DataOutputStream(bytes), id, lat, lng, checkins, json);
+
+	if(size + bytes.size() > Integer.MAX_VALUE)
+	  throw new IOException("The catalog "+file+" is too large to be mapped.");
+
+	ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+	while(buffer.hasRemaining())
+	  channel.write(buffer, size + buffer.position());
+
+	if(offsets.containsKey(id))
+	  obsolete++;
+	if(json.length == 0) {
+	  offsets.remove(id);
+	  obsolete++;
+	}
+	else
+	  offsets.put(id, (int) size);
+
+	size += bytes.size();
+  }
+
+  /** Returns the mapping of the file, which is extended if records have been appended since it was made. */
+  private MappedByteBuffer getMap() throws IOException {
+	if(map.capacity() < size)
+	  map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	return map;
+  }
+
+  private Venue view(String id, int position) {
+	int json  = getJsonOffset(position);
+	int stats = json - STATS_SIZE;
+	return new Venue(id, map.getDouble(stats), map.getDouble(stats + 8), map.getInt(stats + 16),
+		map, json, position + 4 + map.getInt(position) - json);
+  }
+
+  /** Adds a venue, or replaces it if the catalog already contains it. */
+  public synchronized void put(String id, double lat, double lng, int checkins, String json) throws IOException {
+	append(id, lat, lng, checkins, json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /** Removes a venue. Returns false if the catalog does not contain it. */
+  public synchronized boolean remove(String id) throws IOException {
+	if(!offsets.containsKey(id))
+	  return false;
+
+	append(id, Double.NaN, Double.NaN, -1, new byte[0]);
+	return true;
+  }
+
+  public synchronized boolean contains(String id) {
+	return offsets.containsKey(id);
+  }
+
+  /** Returns the number of venues. */
+  public synchronized int size() {
+	return offsets.size();
+  }
+
+  /** Returns a venue, or null if the catalog does not contain it. */
+  public synchronized Venue get(String id) throws IOException {
+	Integer position = offsets.get(id);
+	if(position == null)
+	  return null;
+
+	getMap();
+	return view(id, position);
+  }
+
+  /** Returns all the venues, in the order they were first added. */
+  public synchronized List<Venue> venues() throws IOException {
+	getMap();
+
+	List<Venue> venues = new ArrayList<Venue>(offsets.size());
+	for(Map.Entry<String,Integer> entry: offsets.entrySet())
+	  venues.add(view(entry.getKey(), entry.getValue()));
+	return venues;
+  }
+
+  /**
+   * Rewrites the catalog without the obsolete records, in a temporary file
+   * which then replaces the catalog atomically. The venues returned before
+   * stay valid.
+   */
+  public synchronized void compact() throws IOException {
+	getMap();
+
+	File tmp = new File(file.getPath() + ".tmp");
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	try {
+	  out.writeInt(MAGIC);
+	  out.writeInt(VERSION);
+
+	  byte[] record = new byte[4096];
+	  for(int position: offsets.values()) {
+		int length = 4 + map.getInt(position);
+		if(record.length < length)
+		  record = new byte[Math.max(length, record.length * 2)];
+
+		ByteBuffer buffer = map.duplicate();
+		buffer.position(position);
+		buffer.get(record, 0, length);
+		out.write(record, 0, length);
+	  }
+	} finally {
+	  out.close();
+	}
+
+	raf.close();
+	Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	load();
+  }
+
+  /** Closes the file. The venues returned before stay valid. */
+  public synchronized void close() throws IOException {
+	raf.close();
+  }
+
+  /**
+   * Builds (or rebuilds) the catalog of a city from the `.info` files of its venues.
+   *
+   * Usage: VenueCatalog <city>
+   */
+  public static void main(String[] args) throws IOException {
+	String folder = Settings.getInstance().getFolder();
+
+	long start = System.currentTimeMillis();
+	build(folder, args[0]);
+
+	VenueCatalog catalog = open(getFile(folder, args[0]));
+	System.out.println(catalog.size()+" venues written in "+getFile(folder, args[0])+" ("+(System.currentTimeMillis()-start)+" ms).");
+	catalog.close();
+  }
+}
@@ -1,10 +1,8 @@
 package eu.smartfp7.foursquare;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 
 /**
  * [Copyright and License]
@@ -14,6 +12,9 @@ import java.util.Collection;
  * This class describes the forecast for a venue as a time series.
  * It takes a file generated by the batch R process as an input.
  * 
+ * The forecast is a row of a `ForecastMatrix`: the forecasts of a whole city
+ * should be loaded at once with `ForecastMatrix.load`, and their
+ * probabilities computed with `ForecastMatrix.computeProbs`.
  * 
  * @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
  *
@@ -21,54 +22,70 @@ import java.util.Collection;
 
 public class VenueForecast {
   
-  // the neural networks forecast represented as a time series
-  Collection<TimeSeriesItem<Double>> neural_nets;
+  // the neural networks forecast, as a row of a matrix
+  private final ForecastMatrix matrix;
+  private final int            row;
   
   public VenueForecast(String file) throws IOException {
-	neural_nets = new ArrayList<TimeSeriesItem<Double>>();
-	BufferedReader buffer_forecast = new BufferedReader(new FileReader(file));
-	String tmp;
-	while((tmp = buffer_forecast.readLine()) != null) {
-	  String[] line = tmp.split(",");
-	  TimeSeriesItem<Double> item = new TimeSeriesItem<Double>(line[0], Double.parseDouble(line[1]));
-	  neural_nets.add(item);
-	}
-	
-	buffer_forecast.close();
+	this(ForecastMatrix.load(Arrays.asList(new File(file))), 0);
+  }
+  
+  VenueForecast(ForecastMatrix matrix, int row) {
+	this.matrix = matrix;
+	this.row    = row;
   }
 
   public long getLastPointTime() {
-	return ((ArrayList<TimeSeriesItem<Double>>) neural_nets).get(neural_nets.size()-1).timeInMilis;
+	return matrix.getTime(size()-1);
+  }
+  
+  /** Returns the number of points of the forecast. */
+  public int size() {
+	return matrix.lengths[row];
+  }
+  
+  public String getDate(int i) {
+	return matrix.getDate(i);
+  }
+  
+  public double getValue(int i) {
+	return matrix.values[row][i];
+  }
+  
+  public double getProb(int i) {
+	return matrix.getProb(row, i);
   }
   
   public void firstStepProbs(Double mu, Double back_prob) {
-	for(TimeSeriesItem<Double> item: neural_nets) {
-	  item.setProb(item.getValue() + mu*back_prob);
-	}
+	double[] values = matrix.values[row];
+	double[] probs  = getProbs();
+	for(int i = 0 ; i < size() ; ++i)
+	  probs[i] = values[i] + mu*back_prob;
   }
   
   public void secondStepProbs(Double mu, VenueForecast sum) {
-	for(int i = 0 ; i < this.neural_nets.size() ; ++i) {
-	  TimeSeriesItem<Double> item = ((ArrayList<TimeSeriesItem<Double>>) this.neural_nets).get(i);
-	  item.setProb(item.getProb()/(((ArrayList<TimeSeriesItem<Double>>) sum.neural_nets).get(i).getValue()+mu));
-	}
+	double[] probs = getProbs();
+	double[] sums  = sum.matrix.values[sum.row];
+	for(int i = 0 ; i < size() ; ++i)
+	  probs[i] = probs[i]/(sums[i]+mu);
   }
   
 
   public void add (VenueForecast v) {
-	//Collection<TimeSeriesItem<Double>> new_neural = new ArrayList<TimeSeriesItem<Double>>();
+	double[] values  = matrix.values[row];
+	double[] vvalues = v.matrix.values[v.row];
+	for(int i = 0 ; i < size() ; ++i)
+	  values[i] += Double.isNaN(vvalues[i]) ? 0 : vvalues[i];
 	
-	for(int i = 0 ; i < this.neural_nets.size() ; ++i) {
-	  TimeSeriesItem<Double> item  = ((ArrayList<TimeSeriesItem<Double>>) this.neural_nets).get(i);
-	  TimeSeriesItem<Double> vitem = ((ArrayList<TimeSeriesItem<Double>>) v.neural_nets).get(i);
-	  item.setValue(item.getValue()+(vitem.getValue().isNaN() ? 0 : vitem.getValue()));
-	  //new_neural.add(item);
+	matrix.invalidateSum();
+  }
+  
+  private double[] getProbs() {
+	synchronized(matrix) {
+	  if(matrix.probs == null)
+		matrix.probs = new double[matrix.size()][matrix.getHorizon()];
 	}
-	
-	//v.neural_nets = new_neural;
-	
-	//return v;
+	return matrix.probs[row];
   }
 
-
 }
@@ -0,0 +1,194 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * The few statistics of a venue that the attendance crawler needs every hour,
+ * i.e. its number of people "here now" and its total number of checkins (and
+ * its coordinates, used to index the venues).
+ *
+ * Contrary to `Venue`, these statistics are extracted in a single pass over
+ * the response of the API, without building any JSON tree: all the other
+ * fields (categories, photos, ...) are skipped. The error metadata of the
+ * response is also kept, in case the response does not contain any venue.
+ */
+public class VenueStats {
+
+  private String id;
+  private int    hereNow      = 0;
+  private int    checkincount = -1;
+  private double lat          = Double.NaN;
+  private double lng          = Double.NaN;
+
+  private String http_code;
+  private String error_type;
+  private String error_detail;
+
+  /**
+   * Reads a response of the `venues/VENUE_ID` endpoint, e.g.:
+   * {"meta":{"code":200},"response":{"venue":{"id":"...", ..., "stats":{"checkinsCount":46003, ...}, "hereNow":{"count":11, ...}}}}
+   */
+  public static VenueStats parse(Reader response) throws IOException {
+	VenueStats stats = new VenueStats();
+	JsonReader reader = new JsonReader(response);
+
+	reader.beginObject();
+	while(reader.hasNext()) {
+	  String name = reader.nextName();
+	  if(name.equals("meta"))
+		stats.readMeta(reader);
+	  else if(name.equals("response") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+		reader.beginObject();
+		while(reader.hasNext()) {
+		  if(reader.nextName().equals("venue") && reader.peek() == JsonToken.BEGIN_OBJECT)
+			stats.readVenue(reader);
+		  else
+			reader.skipValue();
+		}
+		reader.endObject();
+	  }
+	  else
+		reader.skipValue();
+	}
+	reader.endObject();
+
+	return stats;
+  }
+
+  /**
+   * Reads a venue object alone, e.g. a line of the `venues.json` file written
+   * by `GetAllVenues`.
+   */
+  public static VenueStats parseVenue(Reader venue) throws IOException {
+	VenueStats stats = new VenueStats();
+	stats.readVenue(new JsonReader(venue));
+	return stats;
+  }
+
+  private void readMeta(JsonReader reader) throws IOException {
+	reader.beginObject();
+	while(reader.hasNext()) {
+	  String name = reader.nextName();
+	  if(name.equals("code"))
+		http_code = reader.nextString();
+	  else if(name.equals("errorType"))
+		error_type = reader.nextString();
+	  else if(name.equals("errorDetail"))
+		error_detail = reader.nextString();
+	  else
+		reader.skipValue();
+	}
+	reader.endObject();
+  }
+
+  private void readVenue(JsonReader reader) throws IOException {
+	reader.beginObject();
+	while(reader.hasNext()) {
+	  String name = reader.nextName();
+	  if(name.equals("id"))
+		id = reader.nextString();
+	  else if(name.equals("hereNow") && reader.peek() == JsonToken.BEGIN_OBJECT)
+		hereNow = readCount(reader, "count", hereNow);
+	  else if(name.equals("stats") && reader.peek() == JsonToken.BEGIN_OBJECT)
+		checkincount = readCount(reader, "checkinsCount", checkincount);
+	  else if(name.equals("location") && reader.peek() == JsonToken.BEGIN_OBJECT)
+		readLocation(reader);
+	  else
+		reader.skipValue();
+	}
+	reader.endObject();
+  }
+
+  private void readLocation(JsonReader reader) throws IOException {
+	reader.beginObject();
+	while(reader.hasNext()) {
+	  String name = reader.nextName();
+	  if(name.equals("lat"))
+		lat = reader.nextDouble();
+	  else if(name.equals("lng"))
+		lng = reader.nextDouble();
+	  else
+		reader.skipValue();
+	}
+	reader.endObject();
+  }
+
+  /** Reads an object and returns the integer value of one of its fields. */
+  static int readCount(JsonReader reader, String field, int default_value) throws IOException {
+	int value = default_value;
+
+	reader.beginObject();
+	while(reader.hasNext()) {
+	  if(reader.nextName().equals(field))
+		value = reader.nextInt();
+	  else
+		reader.skipValue();
+	}
+	reader.endObject();
+
+	return value;
+  }
+
+  /** Returns true if the response actually contained a venue. */
+  public boolean hasVenue() {
+	return id != null;
+  }
+
+  /** Returns the exception corresponding to the error metadata of the response. */
+  public FoursquareAPIException toException() {
+	return new FoursquareAPIException(http_code, error_type, error_detail);
+  }
+
+  public String getId() {
+	return id;
+  }
+
+  public int getHereNow() {
+	return hereNow;
+  }
+
+  public int getCheckincount() {
+	return checkincount;
+  }
+
+  /** Returns the latitude of the venue, or NaN if the venue has no location. */
+  public double getLat() {
+	return lat;
+  }
+
+  /** Returns the longitude of the venue, or NaN if the venue has no location. */
+  public double getLng() {
+	return lng;
+  }
+
+  public String getHttp_code() {
+	return http_code;
+  }
+
+  public String getError_type() {
+	return error_type;
+  }
+
+  public String getError_detail() {
+	return error_detail;
+  }
+}
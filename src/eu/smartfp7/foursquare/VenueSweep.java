@@ -0,0 +1,273 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+package eu.smartfp7.foursquare;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+
+import eu.smartfp7.foursquare.utils.APIAccount;
+import eu.smartfp7.foursquare.utils.RateLimiter;
+import eu.smartfp7.foursquare.utils.Settings;
+import eu.smartfp7.geo.GeoUtil;
+
+/**
+ * Searches all the venues of an area with an adaptive quadtree.
+ *
+ * The area is first split into coarse boxes. A search returns at most 100
+ * venues: when a box returns less, all its venues have been found and the box
+ * is done (in particular, empty boxes such as parks or water cost a single
+ * call). When a box returns the full 100 venues, it probably contains more,
+ * so it is split into 4 sub-boxes, which are searched in turn.
+ *
+ * The boxes are independent, hence they are searched concurrently in a
+ * fork-join pool. The calls are paced by a shared rate limiter and take
+ * their quota from the accounts of the city: when every account is exhausted,
+ * the sweep waits for the first quota reset.
+ *
+ * Every box has a key (e.g. "3.4/0/2" is the 3rd quarter of the 1st quarter
+ * of the initial box (3,4)), and the listener records the boxes that have
+ * been searched: an interrupted sweep can thus be resumed without searching
+ * them again (see `DiscoveryIndex`).
+ */
+public class VenueSweep {
+
+  /** The maximum number of venues returned by a search (`limit` parameter). */
+  public static final int SEARCH_LIMIT = 100;
+
+  /** Size (in meters) of the boxes the area is first split into. */
+  static final double INITIAL_BOX_SIZE = 2000;
+
+  /** Boxes smaller than this (in meters) are not split anymore, even if they are full. */
+  static final double MIN_BOX_SIZE = 25;
+
+  private static final double Meters_per_latitude_degree = 110540;
+  private static final int    MAX_ATTEMPTS = 5;
+
+  /** The state of a box in a sweep that may have been interrupted. */
+  public enum BoxState { PENDING, DONE, SPLIT }
+
+  /** Notified of the venues found in every box, from the threads of the sweep. */
+  public interface Listener {
+	/** Returns the state of a box, as recorded by `boxSearched` (PENDING if it has never been searched). */
+	BoxState getState(String box);
+
+	/**
+	 * Called once a box has been searched, with the venues it contains.
+	 * `split` is true if the box was full, hence is split into 4 sub-boxes.
+	 */
+	void boxSearched(String box, JsonArray venues, boolean split) throws IOException;
+  }
+
+  private final List<APIAccount> accounts;
+  private final RateLimiter      limiter;
+  private final ForkJoinPool     workers;
+  private final long             backoff_base;
+  private final long             backoff_max;
+  private final Listener         listener;
+
+  private final AtomicInteger next_account = new AtomicInteger();
+
+  private final AtomicInteger calls     = new AtomicInteger();
+  private final AtomicInteger splits    = new AtomicInteger();
+  private final AtomicInteger empty     = new AtomicInteger();
+  private final AtomicInteger saturated = new AtomicInteger();
+  private final AtomicInteger failed    = new AtomicInteger();
+  private final AtomicInteger resumed   = new AtomicInteger();
+
+  public VenueSweep(Settings settings, List<APIAccount> accounts, Listener listener) {
+	this.accounts     = accounts;
+	this.listener     = listener;
+	this.limiter      = new RateLimiter(settings.getMaxRequestsPerSecond());
+	this.workers      = new ForkJoinPool(settings.getCrawlThreads());
+	this.backoff_base = settings.getRetryBackoffBase();
+	this.backoff_max  = settings.getRetryBackoffMax();
+  }
+
+  /** Returns an id of the sweep of an area, which changes if the area or the initial boxes change. */
+  public static String getId(double[] point, double radius) {
+	return point[0]+","+point[1]+","+radius+","+INITIAL_BOX_SIZE;
+  }
+
+  /**
+   * Searches the venues of the square area centered on `point` whose half
+   * side is `radius` meters, and returns when every box has been searched.
+   */
+  public void sweep(double[] point, double radius) {
+	double[] north = GeoUtil.nextPoint(point, radius, Math.PI/2);
+	double[] south = GeoUtil.nextPoint(point, radius, 3*Math.PI/2);
+	double[] east  = GeoUtil.nextPoint(point, radius, 0);
+	double[] west  = GeoUtil.nextPoint(point, radius, Math.PI);
+
+	double min_lat = Math.min(south[0], north[0]), max_lat = Math.max(south[0], north[0]);
+	double min_lng = Math.min(west[1], east[1]),   max_lng = Math.max(west[1], east[1]);
+
+	int n = (int) Math.max(1, Math.ceil(2 * radius / INITIAL_BOX_SIZE));
+	final List<BoxTask> boxes = new ArrayList<BoxTask>();
+	for(int i = 0 ; i < n ; ++i)
+	  for(int j = 0 ; j < n ; ++j)
+		boxes.add(new BoxTask(i+"."+j, min_lat + (max_lat-min_lat) * i / n,     min_lng + (max_lng-min_lng) * j / n,
+							  min_lat + (max_lat-min_lat) * (i+1) / n, min_lng + (max_lng-min_lng) * (j+1) / n));
+
+	workers.invoke(new RecursiveAction() {
+	  private static final long serialVersionUID = 1L;
+
+	  @Override
+	  protected void compute() {
+		invokeAll(boxes);
+	  }
+	});
+  }
+
+  /** A box, whose venues are searched and which is split if it is full. */
+  private class BoxTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+
+	private final String   key;
+	private final double[] sw;
+	private final double[] ne;
+
+	BoxTask(String key, double south, double west, double north, double east) {
+	  this.key = key;
+	  this.sw = new double[]{ south, west };
+	  this.ne = new double[]{ north, east };
+	}
+
+	@Override
+	protected void compute() {
+	  BoxState state = listener.getState(key);
+	  if(state == BoxState.DONE) {
+		resumed.incrementAndGet();
+		return;
+	  }
+
+	  // A box split by a previous sweep is not searched again: its sub-boxes are.
+	  if(state == BoxState.SPLIT)
+		resumed.incrementAndGet();
+	  else if(!searchBox())
+		return;
+
+	  double lat = (sw[0] + ne[0]) / 2, lng = (sw[1] + ne[1]) / 2;
+	  invokeAll(new BoxTask(key+"/0", sw[0], sw[1], lat, lng),   new BoxTask(key+"/1", sw[0], lng, lat, ne[1]),
+				new BoxTask(key+"/2", lat, sw[1], ne[0], lng),   new BoxTask(key+"/3", lat, lng, ne[0], ne[1]));
+	}
+
+	/** Searches the box, and returns true if it must be split. */
+	private boolean searchBox() {
+	  JsonArray venues;
+	  try {
+		venues = search(sw, ne);
+	  } catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return false;
+	  }
+
+	  if(venues == null) {
+		failed.incrementAndGet();
+		System.err.println("Giving up the box "+sw[0]+","+sw[1]+" "+ne[0]+","+ne[1]+", it will be searched again at the next sweep.");
+		return false;
+	  }
+
+	  boolean full  = venues.size() >= SEARCH_LIMIT;
+	  boolean split = full && (ne[0] - sw[0]) * Meters_per_latitude_degree >= MIN_BOX_SIZE;
+
+	  if(venues.size() == 0)
+		empty.incrementAndGet();
+	  else if(full && !split)
+		saturated.incrementAndGet();
+
+	  try {
+		listener.boxSearched(key, venues, split);
+	  } catch (IOException e) {
+		failed.incrementAndGet();
+		e.printStackTrace();
+		return false;
+	  }
+
+	  if(split)
+		splits.incrementAndGet();
+	  return split;
+	}
+  }
+
+  /**
+   * Searches the venues of a box. A failed call is retried after an
+   * exponential backoff. Returns null if all the attempts have failed.
+   */
+  private JsonArray search(double[] sw, double[] ne) throws InterruptedException {
+	for(int attempt = 1 ; attempt <= MAX_ATTEMPTS ; ++attempt) {
+	  limiter.acquire();
+	  APIAccount account = acquireAccount();
+	  calls.incrementAndGet();
+
+	  try {
+		String response = GetAllVenues.search4SqVenues(sw, ne, account);
+		return new JsonParser().parse(response).getAsJsonObject().get("response").getAsJsonObject().get("venues").getAsJsonArray();
+	  } catch (Exception e) {
+		System.err.println("Search of "+sw[0]+","+sw[1]+" "+ne[0]+","+ne[1]+" failed ("+e.getMessage()+"), attempt "+attempt+"/"+MAX_ATTEMPTS+".");
+	  }
+
+	  long delay = Math.min(backoff_max, backoff_base << (attempt-1));
+	  TimeUnit.MILLISECONDS.sleep(delay/2 + ThreadLocalRandom.current().nextLong(delay/2 + 1));
+	}
+
+	return null;
+  }
+
+  /** Takes one call from the quota of the accounts (in turn), waiting for a reset if they are all exhausted. */
+  private APIAccount acquireAccount() throws InterruptedException {
+	while(true) {
+	  long now   = System.currentTimeMillis();
+	  long reset = Long.MAX_VALUE;
+	  int  first = next_account.getAndIncrement();
+
+	  for(int i = 0 ; i < accounts.size() ; ++i) {
+		APIAccount account = accounts.get(Math.abs((first + i) % accounts.size()));
+		if(account.tryAcquire(now))
+		  return account;
+		reset = Math.min(reset, account.getQuotaReset(now));
+	  }
+
+	  TimeUnit.MILLISECONDS.sleep(Math.max(1000, reset - now));
+	}
+  }
+
+  /** Returns the number of API calls made so far. */
+  public int getCalls()          { return calls.get(); }
+  /** Returns the number of boxes that have been split because they were full. */
+  public int getSplits()         { return splits.get(); }
+  public int getEmptyBoxes()     { return empty.get(); }
+  /** Returns the number of boxes that were still full at the minimum size: some of their venues may be missing. */
+  public int getSaturatedBoxes() { return saturated.get(); }
+  public int getFailedBoxes()    { return failed.get(); }
+  /** Returns the number of boxes that had already been searched by a previous, interrupted sweep. */
+  public int getResumedBoxes()   { return resumed.get(); }
+
+  public String toString() {
+	return calls.get()+" calls, "+splits.get()+" boxes split, "+empty.get()+" empty, "+saturated.get()+" saturated, "+failed.get()+" failed, "+resumed.get()+" resumed";
+  }
+
+  public void shutdown() {
+	workers.shutdownNow();
+  }
+}
@@ -16,17 +16,31 @@
 package eu.smartfp7.foursquare;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import eu.smartfp7.geo.GeoUtil;
+import eu.smartfp7.geo.SpatialIndex;
 
 
 /**
@@ -36,6 +50,9 @@ import com.google.gson.JsonObject;
  */
 public class VenueUtil {
   
+  /** The name of the file in which the spatial index of the venues of a city is saved. */
+  public static final String SPATIAL_INDEX_FILE = "venues.index";
+  
   public static ArrayList<File> getAllFilesEndingWith(String path, final String extension) {
 	File directory = new File(path);
 	ArrayList<File> files = new ArrayList<File>(Arrays.asList(directory.listFiles(new FilenameFilter() {
@@ -71,8 +88,20 @@ public class VenueUtil {
 	return venues;
   }
   
+  /**
+   * Returns the venues of a city. They are read from the catalog of the city
+   * if it exists (see `VenueCatalog`), and from their `.info` files otherwise.
+   */
   public static Collection<Venue> listAllVenues(String folder, String city) throws IOException {
-	return listAllVenues(folder, city, ".info");
+	if(!new File(VenueCatalog.getFile(folder, city)).exists())
+	  return listAllVenues(folder, city, ".info");
+	
+	VenueCatalog catalog = VenueCatalog.open(VenueCatalog.getFile(folder, city));
+	try {
+	  return catalog.venues();
+	} finally {
+	  catalog.close();
+	}
   }
   
   public static Collection<Venue> listAllVenues(String folder, String city, String ext) throws IOException {
@@ -88,17 +117,251 @@ public class VenueUtil {
 	return venues;
   }
   
+  /**
+   * Returns the last line of a file, or null if the file is empty. Only the
+   * end of the file is read: we seek to the end and go backwards until we
+   * find the beginning of the last line.
+   */
+  public static String readLastLine(File file) throws IOException {
+	List<String> lines = readLastLines(file, 1);
+	return lines.isEmpty() ? null : lines.get(0);
+  }
+  
+  /**
+   * Returns (at most) the `n` last lines of a file, in their order in the file.
+   * Only the end of the file is read.
+   */
+  public static List<String> readLastLines(File file, int n) throws IOException {
+	RandomAccessFile raf = new RandomAccessFile(file, "r");
+	try {
+	  long end = raf.length();
+	  
+	  // Ignoring the trailing line breaks.
+	  while(end > 0) {
+		raf.seek(end-1);
+		int c = raf.read();
+		if(c != '\n' && c != '\r')
+		  break;
+		end--;
+	  }
+	  
+	  long start = tailStart(raf, end, n);
+	  
+	  byte[] tail = new byte[(int) (end-start)];
+	  raf.seek(start);
+	  raf.readFully(tail);
+	  
+	  List<String> lines = new ArrayList<String>();
+	  if(tail.length > 0)
+		for(String line: new String(tail, StandardCharsets.UTF_8).split("\n"))
+		  lines.add(line.endsWith("\r") ? line.substring(0, line.length()-1) : line);
+	  
+	  return lines;
+	} finally {
+	  raf.close();
+	}
+  }
+  
+  /**
+   * Returns the offset of the beginning of the `n` last lines ending at `end`
+   * (or 0 if there are fewer lines), going backwards from `end`.
+   */
+  static long tailStart(RandomAccessFile raf, long end, int n) throws IOException {
+	byte[] chunk = new byte[4096];
+	long start = end;
+	int breaks = 0;
+	while(start > 0 && breaks < n) {
+	  int length = (int) Math.min(chunk.length, start);
+	  raf.seek(start-length);
+	  raf.readFully(chunk, 0, length);
+	  
+	  int i = length-1;
+	  for(; i >= 0; i--)
+		if(chunk[i] == '\n' && ++breaks == n)
+		  break;
+	  
+	  start = i >= 0 ? start-length+i+1 : start-length;
+	}
+	
+	return start;
+  }
+  
+  /**
+   * Writes the `city.geohash.precision` file, which gives the geohash of every
+   * venue of a city (one "geohash<TAB>venue_id" line per venue, in the order
+   * of the `.info` files).
+   * The `.info` files are read in parallel, and only the id and coordinates of
+   * the venues are extracted from them. The geohashes are then computed in a
+   * single batch, and the file is replaced atomically. Venues without
+   * coordinates are skipped.
+   */
   public static void generateInvertedGeohashFile(String city, String folder, int precision) throws IOException {
-	FileWriter inverted_file = new FileWriter(folder+ city + ".geohash." + precision);
+	List<File> files = getAllFilesEndingWith(folder + city + File.separator + "foursquare_venues", ".info");
+	
+	String[] ids        = new String[files.size()];
+	double[] longitudes = new double[files.size()];
+	double[] latitudes  = new double[files.size()];
+	long[]   hashes     = new long[files.size()];
+	
+	readCoordinates(files, ids, longitudes, latitudes);
+	GeoUtil.encodeGeoHashes(longitudes, latitudes, precision, hashes);
+	
+	File inverted_file = new File(folder + city + ".geohash." + precision);
+	File tmp           = new File(inverted_file.getPath() + ".tmp");
 	
-	for(File file: getAllVenueFilesEndingWith(folder, city, ".info")) {
-	  BufferedReader info = new BufferedReader(new FileReader(file));
-	  Venue venue = new Venue(info.readLine());
-	  inverted_file.write(venue.getGeoHash(precision)+"\t"+venue.getId()+"\n");
-	  info.close();
+	BufferedWriter out  = new BufferedWriter(new FileWriter(tmp));
+	StringBuilder  line = new StringBuilder();
+	try {
+	  for(int i = 0 ; i < ids.length ; ++i) {
+		if(ids[i] == null || Double.isNaN(longitudes[i]) || Double.isNaN(latitudes[i]))
+		  continue;
+		
+		line.setLength(0);
+		GeoUtil.appendBase32(hashes[i], precision, line).append('\t').append(ids[i]).append('\n');
+		out.append(line);
+	  }
+	} finally {
+	  out.close();
 	}
 	
-	inverted_file.close();
+	Files.move(tmp.toPath(), inverted_file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+  
+  /**
+   * Returns the spatial index of the venues of a city, which is read from the
+   * `venues.index` file of the city if it exists, and built from the `.info`
+   * files otherwise.
+   */
+  public static SpatialIndex loadSpatialIndex(String city, String folder) throws IOException {
+	SpatialIndex index = SpatialIndex.load(getSpatialIndexFile(folder, city));
+	return index != null ? index : buildSpatialIndex(city, folder);
+  }
+  
+  /**
+   * Builds the spatial index of the venues of a city from its catalog if it
+   * exists (only the headers of its records are read), and from the `.info`
+   * files of the venues (read in parallel) otherwise.
+   */
+  public static SpatialIndex buildSpatialIndex(String city, String folder) throws IOException {
+	if(new File(VenueCatalog.getFile(folder, city)).exists()) {
+	  VenueCatalog catalog = VenueCatalog.open(VenueCatalog.getFile(folder, city));
+	  try {
+		return buildSpatialIndex(catalog);
+	  } finally {
+		catalog.close();
+	  }
+	}
+	
+	List<File> files = getAllFilesEndingWith(folder + city + File.separator + "foursquare_venues", ".info");
+	
+	String[] ids        = new String[files.size()];
+	double[] longitudes = new double[files.size()];
+	double[] latitudes  = new double[files.size()];
+	
+	readCoordinates(files, ids, longitudes, latitudes);
+	return SpatialIndex.build(ids, latitudes, longitudes);
+  }
+  
+  /** Builds the spatial index of the venues of a catalog. */
+  public static SpatialIndex buildSpatialIndex(VenueCatalog catalog) throws IOException {
+	List<Venue> venues = catalog.venues();
+	
+	String[] ids        = new String[venues.size()];
+	double[] longitudes = new double[venues.size()];
+	double[] latitudes  = new double[venues.size()];
+	for(int i = 0 ; i < ids.length ; ++i) {
+	  Venue venue = venues.get(i);
+	  ids[i]        = venue.getId();
+	  latitudes[i]  = venue.hasCoordinates() ? venue.getLat() : Double.NaN;
+	  longitudes[i] = venue.hasCoordinates() ? venue.getLon() : Double.NaN;
+	}
+	
+	return SpatialIndex.build(ids, latitudes, longitudes);
+  }
+  
+  public static String getSpatialIndexFile(String folder, String city) {
+	return folder + city + File.separator + SPATIAL_INDEX_FILE;
+  }
+  
+  /** Reads the id and coordinates of the venues of `.info` files, in parallel. */
+  private static void readCoordinates(List<File> files, String[] ids, double[] longitudes, double[] latitudes) {
+	ForkJoinPool workers = new ForkJoinPool();
+	try {
+	  workers.invoke(new CoordinatesTask(files, 0, files.size(), ids, longitudes, latitudes));
+	} finally {
+	  workers.shutdown();
+	}
+  }
+  
+  /** Reads the id and coordinates of the venues of a range of `.info` files. */
+  private static class CoordinatesTask extends RecursiveAction {
+	private static final long serialVersionUID = 1L;
+	private static final int THRESHOLD = 64;
+	
+	private final List<File> files;
+	private final int        from, to;
+	private final String[]   ids;
+	private final double[]   longitudes;
+	private final double[]   latitudes;
+	
+	CoordinatesTask(List<File> files, int from, int to, String[] ids, double[] longitudes, double[] latitudes) {
+	  this.files      = files;
+	  this.from       = from;
+	  this.to         = to;
+	  this.ids        = ids;
+	  this.longitudes = longitudes;
+	  this.latitudes  = latitudes;
+	}
+	
+	@Override
+	protected void compute() {
+	  if(to - from > THRESHOLD) {
+		int middle = (from + to) >>> 1;
+		invokeAll(new CoordinatesTask(files, from, middle, ids, longitudes, latitudes),
+				  new CoordinatesTask(files, middle, to, ids, longitudes, latitudes));
+		return;
+	  }
+	  
+	  for(int i = from ; i < to ; ++i) {
+		longitudes[i] = Double.NaN;
+		latitudes[i]  = Double.NaN;
+		try {
+		  readCoordinates(files.get(i), i);
+		} catch (Exception e) {
+		  System.err.println("Cannot read "+files.get(i)+" ("+e.getMessage()+").");
+		}
+	  }
+	}
+	
+	/** Reads the first venue object of a `.info` file, skipping everything but its id and location. */
+	private void readCoordinates(File file, int i) throws IOException {
+	  JsonReader reader = new JsonReader(new BufferedReader(new FileReader(file)));
+	  try {
+		reader.beginObject();
+		while(reader.hasNext()) {
+		  String name = reader.nextName();
+		  if(name.equals("id"))
+			ids[i] = reader.nextString();
+		  else if(name.equals("location") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+			reader.beginObject();
+			while(reader.hasNext()) {
+			  String field = reader.nextName();
+			  if(field.equals("lat"))
+				latitudes[i] = reader.nextDouble();
+			  else if(field.equals("lng"))
+				longitudes[i] = reader.nextDouble();
+			  else
+				reader.skipValue();
+			}
+			reader.endObject();
+		  }
+		  else
+			reader.skipValue();
+		}
+	  } finally {
+		reader.close();
+	  }
+	}
   }
   
   /**
@@ -113,8 +376,12 @@ public class VenueUtil {
    * 
    */
   public static void fixBrokenTimeSeriesCity(String city, String folder) throws IOException, ParseException {
+	RepairWatermarks watermarks = RepairWatermarks.load(RepairWatermarks.getFile(folder, city));
+	
 	for(File file: getAllVenueFilesEndingWith(folder, city, ".ts"))
-	  fixBrokenTimeSeriesVenue(file);
+	  fixBrokenTimeSeriesVenue(file, watermarks);
+	
+	watermarks.save();
   }
   
   public static void fixBrokenTimeSeriesVenue(File file) throws IOException, ParseException {
@@ -128,5 +395,135 @@ public class VenueUtil {
 	  out.close();
 	}
   }
+  
+  /**
+   * Repairs the time series of a venue, and moves its "verified up to"
+   * watermark to its last observation. Returns true if the file has been
+   * modified.
+   * 
+   * If the venue has a watermark, only the lines written after it are read
+   * (plus the 24 lines before it, for the seasonal naive method), and if they
+   * have gaps, they are patched in place: the beginning of the file is never
+   * rewritten. Otherwise, the whole file is read and repaired.
+   * The binary version of the file (if any) is repaired as well.
+   */
+  public static boolean fixBrokenTimeSeriesVenue(File file, RepairWatermarks watermarks) throws IOException, ParseException {
+	String name     = file.getName();
+	String venue_id = name.substring(0, name.length()-3);
+	String tsb_file = file.getAbsolutePath().substring(0, file.getAbsolutePath().length()-3) + BinaryTimeSeries.EXTENSION;
+	
+	RandomAccessFile raf = new RandomAccessFile(file, "rw");
+	try {
+	  RepairWatermarks.Watermark watermark = watermarks.get(venue_id);
+	  if(watermark != null) {
+		Boolean repaired = fixBrokenTimeSeriesTail(raf, venue_id, watermark, watermarks, tsb_file);
+		if(repaired != null)
+		  return repaired;
+	  }
+	  
+	  // There is no (valid) watermark: the whole file is verified.
+	  RTimeSeries ts = new RTimeSeries(file.getAbsolutePath());
+	  boolean broken = ts.isBroken();
+	  
+	  if(broken) {
+		ts.generateMissingPoints();
+		
+		byte[] bytes = ts.toString().getBytes(StandardCharsets.ISO_8859_1);
+		raf.setLength(0);
+		raf.write(bytes);
+		
+		if(new File(tsb_file).exists())
+		  BinaryTimeSeries.fromCSV(file.getAbsolutePath(), tsb_file);
+	  }
+	  
+	  moveWatermark(raf, venue_id, ts.getSeries(), watermarks);
+	  return broken;
+	} finally {
+	  raf.close();
+	}
+  }
+  
+  /**
+   * Repairs the lines written after the watermark of a venue. Returns null if
+   * the watermark does not match the file anymore (e.g. if the file has been
+   * rewritten since), in which case the whole file must be verified.
+   */
+  private static Boolean fixBrokenTimeSeriesTail(RandomAccessFile raf, String venue_id, RepairWatermarks.Watermark watermark,
+	  RepairWatermarks watermarks, String tsb_file) throws IOException, ParseException {
+	long length = raf.length();
+	long first  = watermark.getReferenceOffset();
+	if(length < watermark.getEndOffset() || first > watermark.getEndOffset())
+	  return null;
+	
+	byte[] bytes = new byte[(int) (length - first)];
+	raf.seek(first);
+	raf.readFully(bytes);
+	
+	// The files only contain ASCII characters: a character is a byte.
+	String tail = new String(bytes, StandardCharsets.ISO_8859_1);
+	int end      = (int) (watermark.getEndOffset() - first);
+	int complete = tail.lastIndexOf('\n') + 1;
+	if(complete < end || (end > 0 && tail.charAt(end-1) != '\n'))
+	  return null;
+	
+	CompactTimeSeries.Builder builder = new CompactTimeSeries.Builder();
+	long    previous   = Long.MIN_VALUE;
+	boolean sequential = true;
+	
+	for(int start = 0, next ; start < complete ; start = next) {
+	  next = tail.indexOf('\n', start) + 1;
+	  String line = tail.substring(start, next-1);
+	  if(line.isEmpty() || line.startsWith("Date"))
+		continue;
+	  
+	  long hour = BinaryTimeSeries.toEpochHour(line.substring(0, line.indexOf(',')));
+	  builder.add(line);
+	  
+	  if(next == end && hour != watermark.getHour())
+		return null;
+	  if(start >= end && hour != previous+1)
+		sequential = false;
+	  previous = hour;
+	}
+	
+	// Nothing has been written since the last repair.
+	if(complete == end)
+	  return false;
+	
+	CompactTimeSeries series = builder.build();
+	
+	if(!sequential) {
+	  series = series.fill();
+	  CompactTimeSeries patch = series.slice(watermark.getHour()+1, Long.MAX_VALUE);
+	  
+	  raf.setLength(watermark.getEndOffset());
+	  raf.seek(watermark.getEndOffset());
+	  raf.write(patch.appendCSV(new StringBuilder()).toString().getBytes(StandardCharsets.ISO_8859_1));
+	  
+	  if(new File(tsb_file).exists()) {
+		List<double[]> observations = new ArrayList<double[]>(patch.size());
+		for(int i = 0 ; i < patch.size() ; ++i)
+		  observations.add(new double[]{ patch.getHour(i), patch.getHereNow(i), patch.getHourCheckins(i), patch.getTotalCheckins(i) });
+		BinaryTimeSeries.write(tsb_file, observations);
+	  }
+	}
+	
+	moveWatermark(raf, venue_id, series, watermarks);
+	return !sequential;
+  }
+  
+  /** Sets the watermark of a venue at the last line of its (complete) time series. */
+  private static void moveWatermark(RandomAccessFile raf, String venue_id, CompactTimeSeries series, RepairWatermarks watermarks) throws IOException {
+	long length = raf.length();
+	
+	// A file whose last line is not complete cannot be verified.
+	raf.seek(Math.max(0, length-1));
+	if(series.isEmpty() || !series.isComplete() || length == 0 || raf.read() != '\n') {
+	  watermarks.remove(venue_id);
+	  return;
+	}
+	
+	watermarks.put(venue_id, new RepairWatermarks.Watermark(series.getLastHour(), tailStart(raf, length-1, 24), length));
+  }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,170 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare.utils;
+
+/**
+ * A single Foursquare API account (i.e. a client_id/client_secret couple)
+ * together with its hourly quota.
+ *
+ * Foursquare grants a fixed number of calls per hour to each account. We
+ * model this with a bucket that is filled with `hourly_limit` tokens at the
+ * beginning of every hour: each API call takes one token, and the account
+ * cannot be used anymore once the bucket is empty.
+ *
+ * The bucket is kept in sync with the quota reported by Foursquare in the
+ * `X-RateLimit-*` headers of the responses (see `updateQuota`), since the
+ * account can also be used by other programs, and the window of Foursquare
+ * is not necessarily aligned with our hours: once a response has given the
+ * end of the window, the bucket is only refilled when it is over.
+ */
+public class APIAccount {
+
+  /** Number of calls per hour granted by Foursquare to a regular account. */
+  public static final int DEFAULT_HOURLY_LIMIT = 5000;
+
+  private static final long Milliseconds_in_1_hour = 3600000;
+
+  private final String client_id;
+  private final String client_secret;
+  private final int    hourly_limit;
+
+  // The hour (in epoch milliseconds) the bucket has been filled for, and the
+  // number of tokens left in it.
+  private long bucket_hour = -1;
+  private int  tokens		 = 0;
+
+  // The end (in epoch milliseconds) of the current window of Foursquare, or
+  // -1 if no response has told us yet.
+  private long quota_reset = -1;
+
+  // Number of calls made since the bucket has been filled.
+  private int  bucket_calls = 0;
+
+  // Number of venues that have been assigned to this account by the pool.
+  private int  assigned_venues = 0;
+
+  // Number of calls made with this account since the crawler started.
+  private long total_calls = 0;
+
+  public APIAccount(String client_id, String client_secret, int hourly_limit) {
+	this.client_id     = client_id;
+	this.client_secret = client_secret;
+	this.hourly_limit  = hourly_limit;
+  }
+
+  public APIAccount(String client_id, String client_secret) {
+	this(client_id, client_secret, DEFAULT_HOURLY_LIMIT);
+  }
+
+  /**
+   * Refills the bucket if the window of Foursquare is over or, if no
+   * response has told us when it ends, if we have entered a new hour.
+   */
+  private void refill(long now) {
+	long hour = now - (now % Milliseconds_in_1_hour);
+	if(quota_reset > 0 ? now >= quota_reset : hour != bucket_hour) {
+	  bucket_hour  = hour;
+	  tokens       = hourly_limit;
+	  quota_reset  = -1;
+	  bucket_calls = 0;
+	}
+  }
+
+  /**
+   * Updates the bucket with the quota reported by Foursquare in a response.
+   * A response of a new window gives the number of tokens left. Otherwise,
+   * the responses may arrive in any order, so the number of tokens can only
+   * decrease.
+   *
+   * @param remaining The number of calls left (`X-RateLimit-Remaining`).
+   * @param reset     The end of the window in epoch milliseconds (`X-RateLimit-Reset`), or -1.
+   */
+  public synchronized void updateQuota(int remaining, long reset, long now) {
+	refill(now);
+	if(reset > now && reset != quota_reset) {
+	  quota_reset = reset;
+	  tokens      = Math.min(hourly_limit, remaining);
+	}
+	else
+	  tokens = Math.min(tokens, remaining);
+  }
+
+  /** Returns the time (epoch milliseconds) at which the bucket will be refilled. */
+  public synchronized long getQuotaReset(long now) {
+	refill(now);
+	return quota_reset > 0 ? quota_reset : bucket_hour + Milliseconds_in_1_hour;
+  }
+
+  /** Returns the number of calls made since the bucket has been filled. */
+  public synchronized int getBucketCalls(long now) {
+	refill(now);
+	return bucket_calls;
+  }
+
+  /**
+   * Takes one token from the bucket of the current hour. Returns false if
+   * the quota of this account is exhausted for the current hour.
+   */
+  public synchronized boolean tryAcquire(long now) {
+	refill(now);
+	if(tokens <= 0)
+	  return false;
+
+	tokens--;
+	bucket_calls++;
+	total_calls++;
+	return true;
+  }
+
+  /** Returns the number of calls that can still be made during the current hour. */
+  public synchronized int remaining(long now) {
+	refill(now);
+	return tokens;
+  }
+
+  /** Returns the number of calls made with this account since the crawler started. */
+  public synchronized long getTotalCalls() {
+	return total_calls;
+  }
+
+  public String getClientId() {
+	return client_id;
+  }
+
+  public String getClientSecret() {
+	return client_secret;
+  }
+
+  public int getHourlyLimit() {
+	return hourly_limit;
+  }
+
+  public synchronized int getAssignedVenues() {
+	return assigned_venues;
+  }
+
+  synchronized void assignVenue() {
+	assigned_venues++;
+  }
+
+  synchronized void unassignVenue() {
+	assigned_venues--;
+  }
+
+  public String toString() {
+	return client_id;
+  }
+}
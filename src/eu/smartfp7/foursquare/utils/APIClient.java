@@ -0,0 +1,150 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The HTTP client shared by the crawlers to query the Foursquare API.
+ *
+ * Connections are never explicitly closed: once a response has been fully
+ * read and closed, the JVM puts its connection back into the keep-alive pool,
+ * and the next request to api.foursquare.com reuses it instead of doing a new
+ * TCP and TLS handshake. The size of this pool is set to the number of crawl
+ * threads.
+ * Responses are requested gzip-compressed and decompressed on the fly, and
+ * every request is bounded by the connect and read timeouts of the settings,
+ * so that a hung socket cannot stall the crawl.
+ * When a request is made for an account, the quota reported in the response
+ * headers is given back to the account (see `APIAccount.updateQuota`).
+ *
+ * This class is a singleton, hence the APIClient object must be retrieved by
+ * calling the `getInstance()` method.
+ */
+public class APIClient {
+
+  private static APIClient instance = null;
+
+  private final int connect_timeout;
+  private final int read_timeout;
+
+  private final AtomicLong requests      = new AtomicLong();
+  private final AtomicLong total_latency = new AtomicLong();
+
+  public APIClient(int connect_timeout, int read_timeout, int max_connections) {
+	this.connect_timeout = connect_timeout;
+	this.read_timeout    = read_timeout;
+
+	// Number of idle connections kept alive per host by HttpURLConnection.
+	if(System.getProperty("http.maxConnections") == null)
+	  System.setProperty("http.maxConnections", Integer.toString(max_connections));
+  }
+
+  public static synchronized APIClient getInstance() {
+	if(instance == null) {
+	  Settings settings = Settings.getInstance();
+	  instance = new APIClient(settings.getHttpConnectTimeout(), settings.getHttpReadTimeout(), settings.getCrawlThreads());
+	}
+
+	return instance;
+  }
+
+  /**
+   * Makes a GET request. The returned response must be closed by the caller,
+   * whatever its status code.
+   */
+  public APIResponse get(String url_str) throws IOException {
+	return get(url_str, null);
+  }
+
+  /**
+   * Makes a GET request with the credentials of an account, whose quota is
+   * then updated from the `X-RateLimit-*` headers of the response.
+   */
+  public APIResponse get(String url_str, APIAccount account) throws IOException {
+	long start = System.nanoTime();
+
+	HttpURLConnection conn = (HttpURLConnection) new URL(url_str).openConnection();
+	conn.setRequestMethod("GET");
+	conn.setConnectTimeout(connect_timeout);
+	conn.setReadTimeout(read_timeout);
+	conn.setRequestProperty("Accept-Encoding", "gzip");
+	conn.setRequestProperty("Connection", "keep-alive");
+
+	int code = conn.getResponseCode();
+
+	InputStream is = null;
+	try {
+	  is = code < HttpURLConnection.HTTP_BAD_REQUEST ? conn.getInputStream() : conn.getErrorStream();
+	  if(is == null)
+		is = new ByteArrayInputStream(new byte[0]);
+	  else if("gzip".equalsIgnoreCase(conn.getContentEncoding()))
+		is = new GZIPInputStream(is);
+	} catch (IOException e) {
+	  // e.g. a truncated or corrupted gzip body: the connection cannot be
+	  // reused, and the call is recorded as if its response had been read.
+	  if(is != null) {
+		try {
+		  is.close();
+		} catch (IOException ignored) {
+		}
+	  }
+	  conn.disconnect();
+	  Metrics.getInstance().recordAPICall((System.nanoTime() - start) / 1000000);
+	  throw e;
+	}
+
+	APIResponse response = new APIResponse(this, code, conn.getHeaderFields(), is, start);
+	if(account != null)
+	  updateQuota(account, response);
+
+	return response;
+  }
+
+  private static void updateQuota(APIAccount account, APIResponse response) {
+	int remaining = response.getRateLimitRemaining();
+
+	// Too many requests: the account must not be used until the end of the window.
+	if(remaining < 0 && response.getCode() == 429)
+	  remaining = 0;
+
+	if(remaining >= 0)
+	  account.updateQuota(remaining, response.getRateLimitReset(), System.currentTimeMillis());
+  }
+
+  void record(APIResponse response) {
+	requests.incrementAndGet();
+	total_latency.addAndGet(response.getLatency());
+	Metrics.getInstance().recordAPICall(response.getLatency());
+  }
+
+  /** Returns the number of responses that have been read entirely. */
+  public long getRequestCount() {
+	return requests.get();
+  }
+
+  /** Returns the average latency of the requests in milliseconds. */
+  public double getAverageLatency() {
+	long count = requests.get();
+	return count == 0 ? 0 : total_latency.get() / (double) count;
+  }
+}
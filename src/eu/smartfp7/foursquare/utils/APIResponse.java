@@ -0,0 +1,143 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare.utils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The response of an HTTP call made with the `APIClient`.
+ *
+ * The body is not buffered: it is streamed (and decompressed if needed) from
+ * the connection, so it can be read only once. The response must be closed
+ * once read, so that the underlying connection goes back to the keep-alive
+ * pool.
+ */
+public class APIResponse implements Closeable {
+
+  private final APIClient client;
+  private final int code;
+  private final Map<String,List<String>> headers;
+  private final InputStream body;
+  private final long start;
+
+  private long latency = -1;
+
+  APIResponse(APIClient client, int code, Map<String,List<String>> headers, InputStream body, long start) {
+	this.client  = client;
+	this.code    = code;
+	this.headers = headers;
+	this.body    = body;
+	this.start   = start;
+  }
+
+  /** Returns the HTTP status code of the response. */
+  public int getCode() {
+	return code;
+  }
+
+  /** Returns the first value of a response header, or null if it is absent. */
+  public String getHeader(String name) {
+	for(Map.Entry<String,List<String>> header: headers.entrySet())
+	  if(header.getKey() != null && header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty())
+		return header.getValue().get(0);
+
+	return null;
+  }
+
+  /**
+   * Returns the number of calls left to the account for the current window,
+   * according to the `X-RateLimit-Remaining` header, or -1 if it is absent.
+   */
+  public int getRateLimitRemaining() {
+	try {
+	  String value = getHeader("X-RateLimit-Remaining");
+	  return value == null ? -1 : Integer.parseInt(value.trim());
+	} catch (NumberFormatException e) {
+	  return -1;
+	}
+  }
+
+  /**
+   * Returns the time (epoch milliseconds) at which the quota of the account
+   * is reset, according to the `X-RateLimit-Reset` header (given in epoch
+   * seconds), or -1 if it is absent.
+   */
+  public long getRateLimitReset() {
+	try {
+	  String value = getHeader("X-RateLimit-Reset");
+	  return value == null ? -1 : Long.parseLong(value.trim()) * 1000;
+	} catch (NumberFormatException e) {
+	  return -1;
+	}
+  }
+
+  /** Returns the (decompressed) body of the response as a stream of bytes. */
+  public InputStream getStream() {
+	return body;
+  }
+
+  /** Returns the (decompressed) body of the response as a stream of UTF-8 characters. */
+  public Reader getReader() {
+	return new InputStreamReader(body, StandardCharsets.UTF_8);
+  }
+
+  /** Reads the whole body of the response into a String. */
+  public String getBody() throws IOException {
+	Reader in = getReader();
+	StringBuilder out = new StringBuilder();
+
+	char[] buffer = new char[4096];
+	for(int read; (read = in.read(buffer)) >= 0;)
+	  out.append(buffer, 0, read);
+
+	return out.toString();
+  }
+
+  /**
+   * Returns the time in milliseconds between the beginning of the request and
+   * the end of the response (i.e. when it has been closed), or until now if the
+   * response has not been closed yet.
+   */
+  public long getLatency() {
+	return latency >= 0 ? latency : (System.nanoTime() - start) / 1000000;
+  }
+
+  /**
+   * Consumes what is left of the body and closes the stream. The connection
+   * can then be reused for the next request to the same host.
+   */
+  @Override
+  public void close() throws IOException {
+	if(latency >= 0)
+	  return;
+
+	try {
+	  byte[] buffer = new byte[4096];
+	  while(body.read(buffer) >= 0) ;
+	} finally {
+	  body.close();
+	  latency = (System.nanoTime() - start) / 1000000;
+	  client.record(this);
+	}
+  }
+}
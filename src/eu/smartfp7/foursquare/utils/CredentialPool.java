@@ -0,0 +1,148 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The pool of all the Foursquare API accounts used by the attendance crawler.
+ *
+ * Each venue is assigned to one account of its city (the least loaded one),
+ * so that the number of venues we can crawl every hour grows with the number
+ * of accounts. Accounts shared by several cities (see `Settings.GLOBAL_ACCOUNTS`)
+ * appear only once in the pool, hence they have a single hourly quota.
+ *
+ * When the account of a venue has no call left for the current hour (e.g.
+ * because of retries), the call is made with any other account of the city
+ * that still has some quota.
+ */
+public class CredentialPool {
+
+  // All the accounts, indexed by their client_id.
+  private Map<String,APIAccount>       accounts       = new LinkedHashMap<String, APIAccount>();
+  private Map<String,List<APIAccount>> city_accounts  = new HashMap<String, List<APIAccount>>();
+  private Map<String,APIAccount>       venue_accounts = new HashMap<String, APIAccount>();
+  private Map<String,String>           venue_cities   = new HashMap<String, String>();
+
+  public CredentialPool(Settings settings, Collection<String> cities) {
+	for(String city: cities) {
+	  List<APIAccount> usable = new ArrayList<APIAccount>();
+
+	  for(APIAccount account: settings.getCityAccounts(city)) {
+		if(!accounts.containsKey(account.getClientId()))
+		  accounts.put(account.getClientId(), account);
+		usable.add(accounts.get(account.getClientId()));
+	  }
+
+	  city_accounts.put(city, usable);
+	}
+  }
+
+  /**
+   * Assigns a venue to the least loaded account of its city and returns
+   * this account.
+   */
+  public synchronized APIAccount assign(String city, String venue_id) {
+	APIAccount best = null;
+
+	for(APIAccount account: city_accounts.get(city))
+	  if(best == null || load(account) < load(best))
+		best = account;
+
+	best.assignVenue();
+	venue_accounts.put(venue_id, best);
+	venue_cities.put(venue_id, city);
+
+	return best;
+  }
+
+  /** Removes a venue from the pool (e.g. when it has been deleted on Foursquare). */
+  public synchronized void release(String venue_id) {
+	APIAccount account = venue_accounts.remove(venue_id);
+	venue_cities.remove(venue_id);
+
+	if(account != null)
+	  account.unassignVenue();
+  }
+
+  /**
+   * Returns an account that can be used to make a call for the given venue,
+   * and consumes one call of its quota. The venue's own account is preferred,
+   * otherwise the account of the city with the most calls left is used.
+   * Returns null if all the accounts of the city are exhausted for the
+   * current hour.
+   */
+  public synchronized APIAccount acquire(String venue_id, long now) {
+	APIAccount account = venue_accounts.get(venue_id);
+	if(account != null && account.tryAcquire(now))
+	  return account;
+
+	APIAccount best = null;
+	for(APIAccount other: city_accounts.get(venue_cities.get(venue_id)))
+	  if(best == null || other.remaining(now) > best.remaining(now))
+		best = other;
+
+	if(best != null && best.tryAcquire(now))
+	  return best;
+
+	return null;
+  }
+
+  /** Returns the total number of calls per hour granted to the accounts of a city. */
+  public int getHourlyCapacity(String city) {
+	int capacity = 0;
+	for(APIAccount account: city_accounts.get(city))
+	  capacity += account.getHourlyLimit();
+
+	return capacity;
+  }
+
+  /** Returns the total number of calls per hour granted to the whole pool. */
+  public int getHourlyCapacity() {
+	int capacity = 0;
+	for(APIAccount account: accounts.values())
+	  capacity += account.getHourlyLimit();
+
+	return capacity;
+  }
+
+  /**
+   * Returns the accounts that have more venues assigned than they can crawl
+   * in one hour. The crawl cannot be performed correctly if this collection
+   * is not empty.
+   */
+  public synchronized Collection<APIAccount> getOverloadedAccounts() {
+	Collection<APIAccount> overloaded = new ArrayList<APIAccount>();
+	for(APIAccount account: accounts.values())
+	  if(account.getAssignedVenues() > account.getHourlyLimit())
+		overloaded.add(account);
+
+	return overloaded;
+  }
+
+  public Collection<APIAccount> getAccounts() {
+	return accounts.values();
+  }
+
+  private static double load(APIAccount account) {
+	return account.getAssignedVenues() / (double) account.getHourlyLimit();
+  }
+}
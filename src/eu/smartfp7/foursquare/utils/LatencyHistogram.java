@@ -0,0 +1,92 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of (positive) values, e.g. latencies, from which percentiles
+ * can be estimated.
+ *
+ * Values are counted in log-linear buckets: each power of two is split in 8
+ * buckets, hence a percentile is known within ~6%. The buckets are allocated
+ * once, so recording a value never allocates memory, and the histogram can be
+ * updated by several threads without locking.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BITS = 3;
+  private static final int SUB      = 1 << SUB_BITS;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB);
+  private final AtomicLong      count   = new AtomicLong();
+  private final AtomicLong      sum     = new AtomicLong();
+
+  public void record(long value) {
+	if(value < 0)
+	  value = 0;
+
+	buckets.incrementAndGet(index(value));
+	count.incrementAndGet();
+	sum.addAndGet(value);
+  }
+
+  static int index(long value) {
+	if(value < SUB)
+	  return (int) value;
+
+	int exponent = 63 - Long.numberOfLeadingZeros(value);
+	int sub      = (int) ((value >>> (exponent - SUB_BITS)) & (SUB - 1));
+	return (exponent - SUB_BITS + 1) * SUB + sub;
+  }
+
+  /** Returns the largest value counted in a bucket. */
+  static long upperBound(int index) {
+	if(index < SUB)
+	  return index;
+
+	int exponent = index / SUB + SUB_BITS - 1;
+	int sub      = index % SUB;
+	return ((long) (SUB + sub + 1) << (exponent - SUB_BITS)) - 1;
+  }
+
+  public long getCount() {
+	return count.get();
+  }
+
+  public long getSum() {
+	return sum.get();
+  }
+
+  /** Returns an estimation of a percentile (e.g. 0.99), or 0 if nothing has been recorded. */
+  public long getPercentile(double percentile) {
+	long total = count.get();
+	if(total == 0)
+	  return 0;
+
+	long rank = Math.max(1, (long) Math.ceil(percentile * total));
+	long seen = 0;
+	for(int i = 0 ; i < buckets.length() ; ++i) {
+	  seen += buckets.get(i);
+	  if(seen >= rank)
+		return upperBound(i);
+	}
+
+	// Values recorded while we were reading the buckets.
+	return upperBound(buckets.length()-1);
+  }
+}
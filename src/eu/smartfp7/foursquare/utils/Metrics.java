@@ -0,0 +1,84 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The counters updated by the crawlers while they run: latency of the API
+ * calls, errors by type and number of observations written.
+ * The calls made with each account are counted by the accounts themselves
+ * (see `APIAccount`).
+ *
+ * Updating a counter never allocates memory (except the first time an error
+ * type is seen), so that it can be done on every API call.
+ *
+ * This class is a singleton, hence the Metrics object must be retrieved by
+ * calling the `getInstance()` method.
+ */
+public class Metrics {
+
+  private static final Metrics instance = new Metrics();
+
+  private final LatencyHistogram api_latency          = new LatencyHistogram();
+  private final AtomicLong       observations_written = new AtomicLong();
+
+  private final ConcurrentMap<String,AtomicLong> errors = new ConcurrentHashMap<String, AtomicLong>();
+
+  public static Metrics getInstance() {
+	return instance;
+  }
+
+  /** Records the latency (in milliseconds) of an API call. */
+  public void recordAPICall(long latency) {
+	api_latency.record(latency);
+  }
+
+  public void recordError(String type) {
+	AtomicLong count = errors.get(type);
+	if(count == null) {
+	  AtomicLong created = new AtomicLong();
+	  count = errors.putIfAbsent(type, created);
+	  if(count == null)
+		count = created;
+	}
+	count.incrementAndGet();
+  }
+
+  public void recordObservations(int count) {
+	observations_written.addAndGet(count);
+  }
+
+  public LatencyHistogram getAPILatency() {
+	return api_latency;
+  }
+
+  /** Returns the number of errors of each type, sorted by type. */
+  public Map<String,Long> getErrors() {
+	Map<String,Long> copy = new TreeMap<String, Long>();
+	for(Map.Entry<String,AtomicLong> entry: errors.entrySet())
+	  copy.put(entry.getKey(), entry.getValue().get());
+	return copy;
+  }
+
+  public long getObservationsWritten() {
+	return observations_written.get();
+  }
+}
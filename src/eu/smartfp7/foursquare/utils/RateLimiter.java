@@ -0,0 +1,73 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.foursquare.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A rate limiter shared by all the threads that query the Foursquare API.
+ *
+ * Every call to `acquire()` reserves the next free slot, slots being spaced
+ * by 1/rate seconds. Threads only wait for their own slot: a slow API
+ * response does not delay the calls made by the other threads.
+ * A thread can also reserve several permits at once, which is convenient to
+ * limit a bandwidth (one permit per byte).
+ */
+public class RateLimiter {
+
+  private long interval_nanos;
+  private long next_free_slot;
+
+  /**
+   * @param permits_per_second The maximum number of calls per second.
+   */
+  public RateLimiter(double permits_per_second) {
+	setRate(permits_per_second);
+	this.next_free_slot = System.nanoTime();
+  }
+
+  public synchronized void setRate(double permits_per_second) {
+	if(permits_per_second <= 0)
+	  throw new IllegalArgumentException("The rate must be positive.");
+
+	this.interval_nanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permits_per_second));
+  }
+
+  public synchronized double getRate() {
+	return TimeUnit.SECONDS.toNanos(1) / (double) interval_nanos;
+  }
+
+  /** Reserves the next slots and returns the time (System.nanoTime) at which they start. */
+  private synchronized long reserve(long permits) {
+	long now  = System.nanoTime();
+	long slot = Math.max(now, next_free_slot);
+	next_free_slot = slot + permits * interval_nanos;
+
+	return slot;
+  }
+
+  /** Blocks until the calling thread is allowed to make one call. */
+  public void acquire() throws InterruptedException {
+	acquire(1);
+  }
+
+  /** Blocks until the calling thread is allowed to use the given number of permits. */
+  public void acquire(long permits) throws InterruptedException {
+	long wait = reserve(permits) - System.nanoTime();
+	if(wait > 0)
+	  TimeUnit.NANOSECONDS.sleep(wait);
+  }
+}
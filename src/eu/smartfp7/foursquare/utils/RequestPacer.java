@@ -0,0 +1,103 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+package eu.smartfp7.foursquare.utils;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces the calls of the attendance crawler according to the quota that is
+ * really left to the accounts (as reported by Foursquare, see
+ * `APIAccount.updateQuota`).
+ *
+ * As long as every account has enough calls left for the venues it still has
+ * to crawl this hour, the calls are made at the maximum rate. Otherwise, the
+ * rate is lowered so that the calls left to the most constrained account are
+ * spread until the end of its window, instead of being exhausted early (and
+ * then answered with 403/429 errors). Since the remaining quota is divided by
+ * the remaining time, the rate goes up again near the end of the window if
+ * some calls are left.
+ *
+ * The rate is computed again at most once per second, by the thread that
+ * asks for a call.
+ */
+public class RequestPacer {
+
+  private static final long UPDATE_INTERVAL = 1000;
+
+  /** The lowest rate (calls per second), so that the crawl never stalls. */
+  public static final double MIN_RATE = 1;
+
+  private final Collection<APIAccount> accounts;
+  private final double      max_rate;
+  private final RateLimiter limiter;
+
+  private final AtomicLong  next_update = new AtomicLong();
+
+  /**
+   * @param accounts The accounts used by the crawler.
+   * @param max_rate The maximum number of calls per second, all accounts included.
+   */
+  public RequestPacer(Collection<APIAccount> accounts, double max_rate) {
+	this.accounts = accounts;
+	this.max_rate = max_rate;
+	this.limiter  = new RateLimiter(max_rate);
+  }
+
+  /** Blocks until the calling thread is allowed to make one call. */
+  public void acquire() throws InterruptedException {
+	long now  = System.currentTimeMillis();
+	long next = next_update.get();
+	if(now >= next && next_update.compareAndSet(next, now + UPDATE_INTERVAL))
+	  limiter.setRate(computeRate(now));
+
+	limiter.acquire();
+  }
+
+  /** Returns the current rate, in calls per second. */
+  public double getRate() {
+	return limiter.getRate();
+  }
+
+  /**
+   * Returns the rate at which the calls can be made so that no account runs
+   * out of calls before the end of its window.
+   * The calls are shared among the accounts in proportion to their venues,
+   * hence an account that gets a share s of the calls and has r calls left
+   * for t seconds limits the global rate to r/t/s.
+   */
+  public double computeRate(long now) {
+	long total_venues = 0;
+	for(APIAccount account: accounts)
+	  total_venues += account.getAssignedVenues();
+
+	double rate = max_rate;
+	for(APIAccount account: accounts) {
+	  int venues    = account.getAssignedVenues();
+	  int remaining = account.remaining(now);
+
+	  // The venues of this account that are (approximately) still to be crawled this hour.
+	  int needed = venues - account.getBucketCalls(now);
+	  if(venues == 0 || remaining >= needed)
+		continue;
+
+	  double seconds = Math.max(1, (account.getQuotaReset(now) - now) / 1000.0);
+	  double share   = venues / (double) total_venues;
+	  rate = Math.min(rate, remaining / seconds / share);
+	}
+
+	return Math.max(Math.min(MIN_RATE, max_rate), rate);
+  }
+}
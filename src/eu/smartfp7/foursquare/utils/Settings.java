@@ -20,11 +20,14 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.lang.StringUtils;
 
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 
@@ -34,7 +37,20 @@ import com.google.gson.JsonParser;
  * Currently, the options that are supported are:
  * 	- foursquare_api_accounts
  * 	- timezones
+ * 	- centers
  * 	- crawl_folder
+ * 	- api_url (optional)
+ * 	- crawl_threads (optional)
+ * 	- max_requests_per_second (optional)
+ * 	- retry_backoff_base, retry_backoff_max (optional)
+ * 	- http_connect_timeout (optional)
+ * 	- http_read_timeout (optional)
+ * 	- observation_open_files, observation_batch_size, fsync_policy (optional)
+ * 	- binary_time_series (optional)
+ * 	- repair_threads, repair_bytes_per_second (optional)
+ * 	- metrics_port (optional)
+ * 	- read_api_port, read_cache_mb (optional)
+ * 	- filter_top_venues, filter_sample_venues (optional)
  * 
  * See README.md for more information.
  * 
@@ -44,6 +60,9 @@ import com.google.gson.JsonParser;
  */
 public class Settings {
 
+  /** Name of the `foursquare_api_accounts` entry shared by all the cities. */
+  public static final String GLOBAL_ACCOUNTS = "global";
+
   private JsonObject settings_json;
   private static Settings instance = null;
   
@@ -96,17 +115,59 @@ public class Settings {
 	return path;
   }
 
-  /** Returns the Foursquare API credentials for a given city. */
+  /**
+   * Returns the Foursquare API credentials for a given city. If several
+   * accounts are available for the city, the first one is returned.
+   */
   public Map<String,String> getCityCredentials(String city) {
 	Map<String,String> credentials = new HashMap<String,String>();
 
-	JsonObject cred_map = this.settings_json.get("foursquare_api_accounts").getAsJsonObject().get(city).getAsJsonObject();
-	credentials.put("client_secret", cred_map.get("client_secret").getAsString());
-	credentials.put("client_id", cred_map.get("client_id").getAsString());
+	APIAccount account = getCityAccounts(city).get(0);
+	credentials.put("client_secret", account.getClientSecret());
+	credentials.put("client_id", account.getClientId());
 
 	return credentials;
   }
 
+  /**
+   * Returns all the Foursquare API accounts that can be used for a given city.
+   * The `foursquare_api_accounts` entry of a city can either be a single
+   * account or an array of accounts. Accounts listed under the special `global`
+   * entry are shared by all the cities and are appended to the city's own
+   * accounts.
+   * Each account can optionally specify its `hourly_limit` (5,000 by default).
+   */
+  public List<APIAccount> getCityAccounts(String city) {
+	List<APIAccount> accounts = new ArrayList<APIAccount>();
+	JsonObject accounts_json = this.settings_json.get("foursquare_api_accounts").getAsJsonObject();
+
+	if(accounts_json.has(city))
+	  accounts.addAll(parseAccounts(accounts_json.get(city)));
+	if(!city.equals(GLOBAL_ACCOUNTS) && accounts_json.has(GLOBAL_ACCOUNTS))
+	  accounts.addAll(parseAccounts(accounts_json.get(GLOBAL_ACCOUNTS)));
+
+	if(accounts.isEmpty())
+	  throw new IllegalArgumentException("No Foursquare API account defined for "+city+".");
+
+	return accounts;
+  }
+
+  private static List<APIAccount> parseAccounts(JsonElement accounts_json) {
+	List<APIAccount> accounts = new ArrayList<APIAccount>();
+
+	if(accounts_json.isJsonArray()) {
+	  for(JsonElement e: accounts_json.getAsJsonArray())
+		accounts.addAll(parseAccounts(e));
+	  return accounts;
+	}
+
+	JsonObject cred_map = accounts_json.getAsJsonObject();
+	int hourly_limit = cred_map.has("hourly_limit") ? cred_map.get("hourly_limit").getAsInt() : APIAccount.DEFAULT_HOURLY_LIMIT;
+	accounts.add(new APIAccount(cred_map.get("client_id").getAsString(), cred_map.get("client_secret").getAsString(), hourly_limit));
+
+	return accounts;
+  }
+
   /** Returns the timezone of a given city. */
   public String getCityTimezone(String city) {
 	return this.settings_json.get("timezones").getAsJsonObject().get(city).getAsString();
@@ -121,5 +182,121 @@ public class Settings {
   public Double getCityCenterLat(String city) {
 	return this.settings_json.get("centers").getAsJsonObject().get(city).getAsJsonObject().get("lat").getAsDouble();
   }
+  
+  /**
+   * Returns the base URL of the Foursquare API, without trailing slash
+   * (`api_url`, https://api.foursquare.com/v2 by default). It can point to a
+   * local stub server, e.g. to check the pacing of the calls.
+   */
+  public String getAPIURL() {
+	String url = this.settings_json.has("api_url") ? this.settings_json.get("api_url").getAsString() : "https://api.foursquare.com/v2";
+	return url.endsWith("/") ? url.substring(0, url.length()-1) : url;
+  }
+  
+  /**
+   * Returns the number of threads used by the attendance crawler to query
+   * the API concurrently (`crawl_threads`, 16 by default).
+   */
+  public int getCrawlThreads() {
+	return this.settings_json.has("crawl_threads") ? this.settings_json.get("crawl_threads").getAsInt() : 16;
+  }
+  
+  /**
+   * Returns the maximum number of API calls per second made by the attendance
+   * crawler, all accounts included (`max_requests_per_second`, 20 by default).
+   */
+  public double getMaxRequestsPerSecond() {
+	return this.settings_json.has("max_requests_per_second") ? this.settings_json.get("max_requests_per_second").getAsDouble() : 20;
+  }
+  
+  /**
+   * Returns the delay before retrying a failed API call in milliseconds
+   * (`retry_backoff_base`, 5s by default). It is doubled after each failure.
+   */
+  public long getRetryBackoffBase() {
+	return this.settings_json.has("retry_backoff_base") ? this.settings_json.get("retry_backoff_base").getAsLong() : 5000;
+  }
+  
+  /** Returns the maximum delay before retrying a failed API call in milliseconds (`retry_backoff_max`, 10min by default). */
+  public long getRetryBackoffMax() {
+	return this.settings_json.has("retry_backoff_max") ? this.settings_json.get("retry_backoff_max").getAsLong() : 600000;
+  }
+  
+  /** Returns the connect timeout of the API calls in milliseconds (`http_connect_timeout`, 10s by default). */
+  public int getHttpConnectTimeout() {
+	return this.settings_json.has("http_connect_timeout") ? this.settings_json.get("http_connect_timeout").getAsInt() : 10000;
+  }
+  
+  /** Returns the read timeout of the API calls in milliseconds (`http_read_timeout`, 20s by default). */
+  public int getHttpReadTimeout() {
+	return this.settings_json.has("http_read_timeout") ? this.settings_json.get("http_read_timeout").getAsInt() : 20000;
+  }
+  
+  /**
+   * Returns the maximum number of `.ts` files kept open by the observation
+   * writer of a city (`observation_open_files`, 512 by default).
+   */
+  public int getObservationOpenFiles() {
+	return this.settings_json.has("observation_open_files") ? this.settings_json.get("observation_open_files").getAsInt() : 512;
+  }
+  
+  /**
+   * Returns the number of buffered observations that triggers a group commit
+   * (`observation_batch_size`, 1000 by default).
+   */
+  public int getObservationBatchSize() {
+	return this.settings_json.has("observation_batch_size") ? this.settings_json.get("observation_batch_size").getAsInt() : 1000;
+  }
+  
+  /**
+   * Returns when the observations are forced to the disk (`fsync_policy`):
+   * "none", "commit" (default) or "always".
+   */
+  public String getFsyncPolicy() {
+	return this.settings_json.has("fsync_policy") ? this.settings_json.get("fsync_policy").getAsString() : "commit";
+  }
+  
+  /**
+   * Returns true if the crawler must also write the observations in binary
+   * `.tsb` files (`binary_time_series`, false by default).
+   */
+  public boolean getBinaryTimeSeries() {
+	return this.settings_json.has("binary_time_series") && this.settings_json.get("binary_time_series").getAsBoolean();
+  }
+  
+  /** Returns the number of threads used to repair the time series (`repair_threads`, half of the processors by default). */
+  public int getRepairThreads() {
+	return this.settings_json.has("repair_threads") ? this.settings_json.get("repair_threads").getAsInt() : Math.max(1, Runtime.getRuntime().availableProcessors()/2);
+  }
+  
+  /** Returns the disk bandwidth (bytes per second) that the repair can use (`repair_bytes_per_second`, 20MB/s by default). */
+  public double getRepairBytesPerSecond() {
+	return this.settings_json.has("repair_bytes_per_second") ? this.settings_json.get("repair_bytes_per_second").getAsDouble() : 20*1024*1024;
+  }
+  
+  /** Returns the local port of the Prometheus metrics endpoint (`metrics_port`, 9464 by default, 0 to disable it). */
+  public int getMetricsPort() {
+	return this.settings_json.has("metrics_port") ? this.settings_json.get("metrics_port").getAsInt() : 9464;
+  }
+  
+  /** Returns the local port of the read API of the time series (`read_api_port`, 9465 by default, 0 to disable it). */
+  public int getReadAPIPort() {
+	return this.settings_json.has("read_api_port") ? this.settings_json.get("read_api_port").getAsInt() : 9465;
+  }
+  
+  /** Returns the maximum size (in MB) of the series cached by the read API (`read_cache_mb`, 64 by default). */
+  public long getReadCacheMB() {
+	return this.settings_json.has("read_cache_mb") ? this.settings_json.get("read_cache_mb").getAsLong() : 64;
+  }
+  
+  /** Returns the number of venues with the most checkins kept by `FilterVenues` (`filter_top_venues`, 3000 by default). */
+  public int getFilterTopVenues() {
+	return this.settings_json.has("filter_top_venues") ? this.settings_json.get("filter_top_venues").getAsInt() : 3000;
+  }
+  
+  /** Returns the number of other venues drawn at random by `FilterVenues` (`filter_sample_venues`, 1950 by default). */
+  public int getFilterSampleVenues() {
+	return this.settings_json.has("filter_sample_venues") ? this.settings_json.get("filter_sample_venues").getAsInt() : 1950;
+  }
 
 }
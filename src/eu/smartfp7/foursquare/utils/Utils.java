@@ -15,17 +15,12 @@
 
 package eu.smartfp7.foursquare.utils;
 
-import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.math.BigDecimal;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedHashMap;
@@ -99,30 +94,25 @@ public class Utils {
   /**
    * The generic function for querying the API.
    * (could be a generic function for making any HTTP calls by the way)
+   * The call goes through the shared `APIClient`, hence it reuses the
+   * keep-alive connections.
    */
   public static String makeAPICall(String url_str) throws IOException {
-	URL url = new URL(url_str);
-	HttpURLConnection conn =
-		(HttpURLConnection) url.openConnection();
-
-	InputStream _is;  
-	if (conn.getResponseCode() == HttpURLConnection.HTTP_OK)
-	  _is = conn.getInputStream();  
-	else
-	  _is = conn.getErrorStream();   
-
-	// Buffer the result into a string
-	BufferedReader rd = new BufferedReader(
-		new InputStreamReader(_is));
-	StringBuilder sb = new StringBuilder();
-	String line;
-	while ((line = rd.readLine()) != null) {
-	  sb.append(line);
+	return makeAPICall(url_str, null);
+  }
+  
+  /**
+   * Queries the API with the credentials of an account: the quota reported
+   * in the `X-RateLimit-*` headers of the response is given back to the
+   * account.
+   */
+  public static String makeAPICall(String url_str, APIAccount account) throws IOException {
+	APIResponse response = APIClient.getInstance().get(url_str, account);
+	try {
+	  return response.getBody();
+	} finally {
+	  response.close();
 	}
-	rd.close();
-	
-	conn.disconnect();
-	return sb.toString();
   }
   
   
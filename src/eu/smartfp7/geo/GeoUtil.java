@@ -74,58 +74,208 @@ public class GeoUtil {
 		
 		
 	}
+	/**
+	 * Returns the geohash of a point as a String of `precision` characters.
+	 * 
+	 * @see #encodeGeoHash(double, double, int)
+	 */
 	public static String geoHash(double longitude,double latitude,int precision){
-		String[] base32 ={"0","1","2","3","4","5","6","7","8","9","b","c","d","e","f","g","h",
-				"j","k","m","n","p","q","r","s","t","u","v","w","x","y","z"};
-		int[] bits = {16,8,4,2,1};
-		double[] long_interval = {-180,180};
-		double[] lat_interval = {-90,90};
-		int count=0;
-		String geocode = new String();
-		double latmid =0;
-		double longmid =0;
-		int bit =0;
-		boolean even = true;
-		while (precision> geocode.length()){
-
-			if (even){ //if bit is even 
-				//System.out.println(long_interval[0]+" "+longmid+" "+long_interval[1] );
-				if (longmid < longitude){
-					long_interval[0]=longmid;
-					count+=bits[bit];
-
-				}
-				else{
-					long_interval[1]=longmid;
-
-				}
-				longmid = (long_interval[0]+long_interval[1])/2;
-			}
-			else{
-				if (latmid < latitude){
-					lat_interval[0]=latmid;
-					count+=bits[bit];
-				}
-				else{
-					lat_interval[1]=latmid;
-
-				}
-				latmid = (lat_interval[0]+lat_interval[1])/2;
-			}
-			//After 5 bits find the base 32 
-			if(bit%4==0 && bit !=0){
-				geocode = geocode+base32[count];
-				count =0;
-				bit =0;
-			}
-			else{
-				bit++;
-			}
-			even= !even;
-
+		return toBase32(encodeGeoHash(longitude, latitude, precision), precision);
+	}
+	
+	/*
+	 * Geohashes as longs.
+	 * 
+	 * A geohash of `precision` characters is made of 5*precision bits, which
+	 * alternately halve the longitude and latitude intervals (starting with the
+	 * longitude). These bits are kept in the lowest bits of a long, hence
+	 * precisions up to 12 are supported. None of the following methods
+	 * allocate memory, except `toBase32`.
+	 */
+	
+	public static final int MAX_PRECISION = 12;
+	
+	private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+	private static final int[]  BASE32_INDEX = new int[128];
+	static {
+		java.util.Arrays.fill(BASE32_INDEX, -1);
+		for(int i = 0 ; i < BASE32.length ; ++i)
+			BASE32_INDEX[BASE32[i]] = i;
+	}
+	
+	/**
+	 * Returns the geohash of a point, as a long whose 5*`precision` lowest bits
+	 * are the bits of the geohash.
+	 * A bit is 1 if the coordinate is strictly greater than the middle of its
+	 * interval.
+	 */
+	public static long encodeGeoHash(double longitude, double latitude, int precision){
+		int bits     = checkPrecision(precision) * 5;
+		int lng_bits = (bits + 1) / 2;
+		int lat_bits = bits / 2;
+		
+		long lng = cell(longitude, -180, 360, lng_bits);
+		long lat = cell(latitude, -90, 180, lat_bits);
+		
+		// The last bit is a longitude bit if the number of bits is odd.
+		return (bits & 1) == 1 ? spread(lng) | (spread(lat) << 1) : (spread(lng) << 1) | spread(lat);
+	}
+	
+	/**
+	 * Computes the geohashes of several points at once.
+	 * 
+	 * @param hashes Receives the geohash of each point.
+	 */
+	public static void encodeGeoHashes(double[] longitudes, double[] latitudes, int precision, long[] hashes){
+		for(int i = 0 ; i < longitudes.length ; ++i)
+			hashes[i] = encodeGeoHash(longitudes[i], latitudes[i], precision);
+	}
+	
+	/**
+	 * Writes the bounding box of a geohash in `bbox`, as
+	 * {min_latitude, min_longitude, max_latitude, max_longitude}.
+	 */
+	public static void decodeGeoHash(long hash, int precision, double[] bbox){
+		int bits     = checkPrecision(precision) * 5;
+		int lng_bits = (bits + 1) / 2;
+		int lat_bits = bits / 2;
+		
+		long lng = (bits & 1) == 1 ? compact(hash) : compact(hash >>> 1);
+		long lat = (bits & 1) == 1 ? compact(hash >>> 1) : compact(hash);
+		
+		double lng_width = 360 / (double) (1L << lng_bits);
+		double lat_width = 180 / (double) (1L << lat_bits);
+		
+		bbox[0] = -90  + lat * lat_width;
+		bbox[1] = -180 + lng * lng_width;
+		bbox[2] = bbox[0] + lat_width;
+		bbox[3] = bbox[1] + lng_width;
+	}
+	
+	/**
+	 * Returns the geohash of the cell that is `north` cells above and `east`
+	 * cells to the right of a geohash (negative values go south and west).
+	 * Longitudes wrap around the antimeridian. Returns -1 if the cell is beyond
+	 * a pole.
+	 */
+	public static long neighborGeoHash(long hash, int precision, int north, int east){
+		int bits     = checkPrecision(precision) * 5;
+		int lng_bits = (bits + 1) / 2;
+		int lat_bits = bits / 2;
+		boolean odd  = (bits & 1) == 1;
+		
+		long lng = odd ? compact(hash) : compact(hash >>> 1);
+		long lat = odd ? compact(hash >>> 1) : compact(hash);
+		
+		lat += north;
+		if(lat < 0 || lat >= 1L << lat_bits)
+			return -1;
+		lng = (lng + east) & ((1L << lng_bits) - 1);
+		
+		return odd ? spread(lng) | (spread(lat) << 1) : (spread(lng) << 1) | spread(lat);
+	}
+	
+	/**
+	 * Returns the smallest geohash of precision `to_precision` that starts with
+	 * a given geohash. All the geohashes starting with it are in
+	 * [geoHashRangeMin(hash), geoHashRangeMax(hash)].
+	 */
+	public static long geoHashRangeMin(long hash, int precision, int to_precision){
+		return hash << (5 * (checkPrecision(to_precision) - checkPrecision(precision)));
+	}
+	
+	/** Returns the largest geohash of precision `to_precision` that starts with a given geohash. */
+	public static long geoHashRangeMax(long hash, int precision, int to_precision){
+		return ((hash + 1) << (5 * (checkPrecision(to_precision) - checkPrecision(precision)))) - 1;
+	}
+	
+	/** Returns the prefix of a given precision of a geohash. */
+	public static long geoHashPrefix(long hash, int precision, int prefix_precision){
+		return hash >>> (5 * (checkPrecision(precision) - checkPrecision(prefix_precision)));
+	}
+	
+	/** Returns the usual String representation of a geohash. */
+	public static String toBase32(long hash, int precision){
+		char[] chars = new char[precision];
+		for(int i = precision - 1 ; i >= 0 ; --i, hash >>>= 5)
+			chars[i] = BASE32[(int) (hash & 31)];
+		return new String(chars);
+	}
+	
+	/** Appends the usual String representation of a geohash to `out`. */
+	public static StringBuilder appendBase32(long hash, int precision, StringBuilder out){
+		for(int i = precision - 1 ; i >= 0 ; --i)
+			out.append(BASE32[(int) ((hash >>> (5 * i)) & 31)]);
+		return out;
+	}
+	
+	/** Parses the String representation of a geohash (its precision is its length). */
+	public static long fromBase32(CharSequence geohash){
+		checkPrecision(geohash.length());
+		
+		long hash = 0;
+		for(int i = 0 ; i < geohash.length() ; ++i){
+			char c = geohash.charAt(i);
+			int value = c < 128 ? BASE32_INDEX[c] : -1;
+			if(value < 0)
+				throw new IllegalArgumentException("Invalid geohash: "+geohash);
+			hash = (hash << 5) | value;
 		}
-
-		return  geocode;
+		return hash;
+	}
+	
+	private static int checkPrecision(int precision){
+		if(precision < 0 || precision > MAX_PRECISION)
+			throw new IllegalArgumentException("The precision of a geohash must be between 0 and "+MAX_PRECISION+".");
+		return precision;
+	}
+	
+	/**
+	 * Returns the index of the cell of a coordinate, when [min, min+range] is
+	 * split into 2^bits cells. This is the result of `bits` successive halvings,
+	 * where the upper half is taken if the coordinate is strictly greater than
+	 * the middle.
+	 */
+	private static long cell(double value, double min, double range, int bits){
+		if(bits == 0)
+			return 0;
+		
+		long   cells = 1L << bits;
+		double width = range / cells;
+		
+		long index = (long) Math.ceil((value - min) / width) - 1;
+		index = Math.max(0, Math.min(cells - 1, index));
+		
+		// The division can be rounded: the bounds of the cell are exact, so
+		// they are used to check the index.
+		if(index > 0 && value <= min + index * width)
+			index--;
+		else if(index < cells - 1 && value > min + (index + 1) * width)
+			index++;
+		
+		return index;
+	}
+	
+	/** Spreads the 32 lowest bits of a long over its even bits. */
+	private static long spread(long x){
+		x &= 0xFFFFFFFFL;
+		x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+		x = (x | (x << 8))  & 0x00FF00FF00FF00FFL;
+		x = (x | (x << 4))  & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x << 2))  & 0x3333333333333333L;
+		x = (x | (x << 1))  & 0x5555555555555555L;
+		return x;
+	}
+	
+	/** The inverse of `spread`: gathers the even bits of a long. */
+	private static long compact(long x){
+		x &= 0x5555555555555555L;
+		x = (x | (x >>> 1))  & 0x3333333333333333L;
+		x = (x | (x >>> 2))  & 0x0F0F0F0F0F0F0F0FL;
+		x = (x | (x >>> 4))  & 0x00FF00FF00FF00FFL;
+		x = (x | (x >>> 8))  & 0x0000FFFF0000FFFFL;
+		x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+		return x;
 	}
 	
 }
\ No newline at end of file
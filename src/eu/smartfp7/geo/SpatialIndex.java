@@ -0,0 +1,473 @@
+/**
+ * SMART FP7 - Search engine for MultimediA enviRonment generated contenT
+ * Webpage: http://smartfp7.eu
+ *
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ *
+ * The Original Code is Copyright (c) 2012-2014 the University of Glasgow
+ * All Rights Reserved
+ *
+ * Contributor(s):
+ *  @author Romain Deveaud <romain.deveaud at glasgow.ac.uk>
+ */
+
+package eu.smartfp7.geo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory index of points (e.g. venues), which answers bounding-box,
+ * radius and k-nearest queries.
+ *
+ * The points are kept in parallel arrays sorted by geohash (at the maximum
+ * precision, see `GeoUtil`), so that the points of any geohash cell are
+ * contiguous. A query covers its area with at most 3x3 cells of a suitable
+ * precision, finds the range of each cell by binary search and only checks
+ * the coordinates of the points in these ranges.
+ *
+ * Updates do not re-sort the arrays: a removed point is only marked as
+ * removed, and added points go to a small unsorted buffer that every query
+ * scans. Both are merged into the sorted arrays once they get larger than a
+ * fraction of the index.
+ *
+ * Bounding boxes crossing the antimeridian are not supported (the points of
+ * a city are never on both sides of it).
+ *
+ * The index is saved as a binary file ("FSSI", then the id and coordinates
+ * of every point), written in a temporary file which then replaces the
+ * previous one atomically.
+ */
+public class SpatialIndex {
+
+  private static final int MAGIC   = 0x46535349; // "FSSI"
+  private static final int VERSION = 1;
+
+  private static final double METERS_IN_1_MILE = 1609.344;
+
+  // The radius of the Earth used by `GeoUtil.distFrom`, in meters.
+  private static final double EARTH_RADIUS = 3958.75 * METERS_IN_1_MILE;
+
+  // The smallest radius (in meters) tried by a k-nearest query.
+  private static final double MIN_KNN_RADIUS = 50;
+
+  // The sorted points, the removed ones are marked.
+  private long[]    hashes    = new long[0];
+  private double[]  latitudes = new double[0];
+  private double[]  longitudes = new double[0];
+  private String[]  ids       = new String[0];
+  private boolean[] removed   = new boolean[0];
+  private int       removed_count = 0;
+
+  // The points added since the last merge.
+  private double[]  added_latitudes  = new double[16];
+  private double[]  added_longitudes = new double[16];
+  private String[]  added_ids        = new String[16];
+  private int       added_count      = 0;
+
+  // The position of every point: i for the i-th sorted point, -(i+1) for the i-th added one.
+  private final Map<String,Integer> positions = new HashMap<String, Integer>();
+
+  private boolean modified = false;
+
+  /** Adds a point, or moves it if the index already contains its id. */
+  public synchronized void add(String id, double latitude, double longitude) {
+	if(Double.isNaN(latitude) || Double.isNaN(longitude))
+	  throw new IllegalArgumentException("The point "+id+" has no coordinates.");
+
+	remove(id);
+	addUnmerged(id, latitude, longitude);
+
+	modified = true;
+	mergeIfNeeded();
+  }
+
+  /** Removes a point. Returns false if the index does not contain it. */
+  public synchronized boolean remove(String id) {
+	Integer position = positions.remove(id);
+	if(position == null)
+	  return false;
+
+	if(position >= 0) {
+	  removed[position] = true;
+	  removed_count++;
+	}
+	else {
+	  // The last added point takes the place of the removed one.
+	  int i = -position-1;
+	  added_count--;
+	  if(i < added_count) {
+		added_latitudes[i]  = added_latitudes[added_count];
+		added_longitudes[i] = added_longitudes[added_count];
+		added_ids[i]        = added_ids[added_count];
+		positions.put(added_ids[i], -(i+1));
+	  }
+	  added_ids[added_count] = null;
+	}
+
+	modified = true;
+	mergeIfNeeded();
+	return true;
+  }
+
+  public synchronized boolean contains(String id) {
+	return positions.containsKey(id);
+  }
+
+  /** Returns the number of points. */
+  public synchronized int size() {
+	return positions.size();
+  }
+
+  /** Returns true if the index has changed since it has been loaded or saved. */
+  public synchronized boolean isModified() {
+	return modified;
+  }
+
+  /** Returns the ids of the points in a bounding box (bounds included), in no particular order. */
+  public synchronized List<String> withinBox(double min_latitude, double min_longitude, double max_latitude, double max_longitude) {
+	List<String> result = new ArrayList<String>();
+
+	int[] found = search(min_latitude, min_longitude, max_latitude, max_longitude);
+	for(int i = 1 ; i <= found[0] ; ++i)
+	  result.add(getId(found[i]));
+
+	return result;
+  }
+
+  /** Returns the ids of the points at most `radius` meters away from a point, the nearest first. */
+  public synchronized List<String> withinRadius(double latitude, double longitude, double radius) {
+	int[]    found     = searchRadius(latitude, longitude, radius);
+	double[] distances = new double[found[0]];
+	for(int i = 0 ; i < found[0] ; ++i)
+	  distances[i] = getDistance(found[i+1], latitude, longitude);
+
+	return sortByDistance(found, distances, found[0]);
+  }
+
+  /** Returns the ids of the `k` nearest points of a point, the nearest first. */
+  public synchronized List<String> nearest(double latitude, double longitude, int k) {
+	k = Math.min(k, size());
+	if(k <= 0)
+	  return new ArrayList<String>();
+
+	// The radius is doubled until it contains at least k points: the k
+	// nearest points are then the k nearest ones within the radius.
+	int[] found;
+	for(double radius = MIN_KNN_RADIUS ; ; radius *= 2) {
+	  found = searchRadius(latitude, longitude, radius);
+	  if(found[0] >= k || radius > Math.PI * EARTH_RADIUS)
+		break;
+	}
+
+	double[] distances = new double[found[0]];
+	for(int i = 0 ; i < found[0] ; ++i)
+	  distances[i] = getDistance(found[i+1], latitude, longitude);
+
+	return sortByDistance(found, distances, k);
+  }
+
+  /** Returns the (great-circle) distance in meters between two points. */
+  public static double distance(double latitude1, double longitude1, double latitude2, double longitude2) {
+	return GeoUtil.distFrom(latitude1, longitude1, latitude2, longitude2) * METERS_IN_1_MILE;
+  }
+
+  /**
+   * Returns the points in the bounding box of a circle whose distance to its
+   * center is at most its radius, as `search` does.
+   */
+  private int[] searchRadius(double latitude, double longitude, double radius) {
+	double angle           = Math.min(Math.PI, radius / EARTH_RADIUS);
+	double delta_latitude  = Math.toDegrees(angle);
+	double delta_longitude = 360;
+
+	// The circle spans all the longitudes if it contains a pole.
+	if(Math.abs(latitude) + delta_latitude < 90)
+	  delta_longitude = Math.toDegrees(Math.asin(Math.sin(angle) / Math.cos(Math.toRadians(latitude))));
+
+	int[] found = search(Math.max(-90, latitude - delta_latitude), Math.max(-180, longitude - delta_longitude),
+		Math.min(90, latitude + delta_latitude), Math.min(180, longitude + delta_longitude));
+
+	int n = 0;
+	for(int i = 1 ; i <= found[0] ; ++i)
+	  if(getDistance(found[i], latitude, longitude) <= radius)
+		found[++n] = found[i];
+	found[0] = n;
+
+	return found;
+  }
+
+  /**
+   * Returns the positions (see `positions`) of the points in a bounding box.
+   * The first element of the array is the number of points found.
+   */
+  private int[] search(double min_latitude, double min_longitude, double max_latitude, double max_longitude) {
+	int[] found = new int[16];
+	int   n     = 0;
+
+	if(min_latitude > max_latitude || min_longitude > max_longitude)
+	  return found;
+
+	if(hashes.length > 0) {
+	  int    precision = getPrecision(max_latitude - min_latitude, max_longitude - min_longitude);
+	  double[] bbox    = new double[4];
+
+	  long row = GeoUtil.encodeGeoHash(min_longitude, min_latitude, precision);
+	  while(row != -1) {
+		for(long cell = row ; ; ) {
+		  int i = lowerBound(GeoUtil.geoHashRangeMin(cell, precision, GeoUtil.MAX_PRECISION));
+		  long last = GeoUtil.geoHashRangeMax(cell, precision, GeoUtil.MAX_PRECISION);
+
+		  for(; i < hashes.length && hashes[i] <= last ; ++i) {
+			if(removed[i] || latitudes[i] < min_latitude || latitudes[i] > max_latitude
+				|| longitudes[i] < min_longitude || longitudes[i] > max_longitude)
+			  continue;
+
+			if(++n == found.length)
+			  found = Arrays.copyOf(found, found.length * 2);
+			found[n] = i;
+		  }
+
+		  GeoUtil.decodeGeoHash(cell, precision, bbox);
+		  if(bbox[3] >= max_longitude || bbox[3] >= 180)
+			break;
+		  cell = GeoUtil.neighborGeoHash(cell, precision, 0, 1);
+		}
+
+		GeoUtil.decodeGeoHash(row, precision, bbox);
+		if(bbox[2] >= max_latitude)
+		  break;
+		row = GeoUtil.neighborGeoHash(row, precision, 1, 0);
+	  }
+	}
+
+	for(int i = 0 ; i < added_count ; ++i) {
+	  if(added_latitudes[i] < min_latitude || added_latitudes[i] > max_latitude
+		  || added_longitudes[i] < min_longitude || added_longitudes[i] > max_longitude)
+		continue;
+
+	  if(++n == found.length)
+		found = Arrays.copyOf(found, found.length * 2);
+	  found[n] = -(i+1);
+	}
+
+	found[0] = n;
+	return found;
+  }
+
+  /**
+   * Returns the largest precision whose cells are at least half as high and
+   * wide as a bounding box, which is then covered by at most 3x3 cells.
+   */
+  private static int getPrecision(double height, double width) {
+	for(int precision = GeoUtil.MAX_PRECISION ; precision > 0 ; --precision) {
+	  int bits = precision * 5;
+	  if(180 / (double) (1L << (bits / 2)) >= height / 2 && 360 / (double) (1L << ((bits + 1) / 2)) >= width / 2)
+		return precision;
+	}
+	return 0;
+  }
+
+  /** Returns the index of the first sorted point whose geohash is not lower than `hash`. */
+  private int lowerBound(long hash) {
+	int low = 0, high = hashes.length;
+	while(low < high) {
+	  int middle = (low + high) >>> 1;
+	  if(hashes[middle] < hash)
+		low = middle + 1;
+	  else
+		high = middle;
+	}
+	return low;
+  }
+
+  private String getId(int position) {
+	return position >= 0 ? ids[position] : added_ids[-position-1];
+  }
+
+  private double getDistance(int position, double latitude, double longitude) {
+	return position >= 0 ? distance(latitudes[position], longitudes[position], latitude, longitude)
+	  : distance(added_latitudes[-position-1], added_longitudes[-position-1], latitude, longitude);
+  }
+
+  /** Returns the ids of the `k` nearest points found. */
+  private List<String> sortByDistance(int[] found, final double[] distances, int k) {
+	Integer[] order = new Integer[distances.length];
+	for(int i = 0 ; i < order.length ; ++i)
+	  order[i] = i;
+
+	Arrays.sort(order, new Comparator<Integer>() {
+	  @Override
+	  public int compare(Integer a, Integer b) {
+		return Double.compare(distances[a], distances[b]);
+	  }
+	});
+
+	List<String> result = new ArrayList<String>(k);
+	for(int i = 0 ; i < k && i < order.length ; ++i)
+	  result.add(getId(found[order[i]+1]));
+	return result;
+  }
+
+  private void mergeIfNeeded() {
+	if(added_count + removed_count > 64 + hashes.length / 16)
+	  merge();
+  }
+
+  /** Sorts all the points (except the removed ones) by geohash. */
+  private void merge() {
+	int n = hashes.length - removed_count + added_count;
+
+	long[]   all_hashes     = new long[n];
+	double[] all_latitudes  = new double[n];
+	double[] all_longitudes = new double[n];
+	String[] all_ids        = new String[n];
+
+	int j = 0;
+	for(int i = 0 ; i < hashes.length ; ++i) {
+	  if(removed[i])
+		continue;
+	  all_hashes[j]     = hashes[i];
+	  all_latitudes[j]  = latitudes[i];
+	  all_longitudes[j] = longitudes[i];
+	  all_ids[j]        = ids[i];
+	  j++;
+	}
+	for(int i = 0 ; i < added_count ; ++i, ++j) {
+	  all_hashes[j]     = GeoUtil.encodeGeoHash(added_longitudes[i], added_latitudes[i], GeoUtil.MAX_PRECISION);
+	  all_latitudes[j]  = added_latitudes[i];
+	  all_longitudes[j] = added_longitudes[i];
+	  all_ids[j]        = added_ids[i];
+	}
+
+	Integer[] order = new Integer[n];
+	for(int i = 0 ; i < n ; ++i)
+	  order[i] = i;
+
+	final long[] keys = all_hashes;
+	Arrays.sort(order, new Comparator<Integer>() {
+	  @Override
+	  public int compare(Integer a, Integer b) {
+		return Long.compare(keys[a], keys[b]);
+	  }
+	});
+
+	hashes     = new long[n];
+	latitudes  = new double[n];
+	longitudes = new double[n];
+	ids        = new String[n];
+	removed    = new boolean[n];
+	for(int i = 0 ; i < n ; ++i) {
+	  int k = order[i];
+	  hashes[i]     = all_hashes[k];
+	  latitudes[i]  = all_latitudes[k];
+	  longitudes[i] = all_longitudes[k];
+	  ids[i]        = all_ids[k];
+	  positions.put(ids[i], i);
+	}
+
+	removed_count = 0;
+	Arrays.fill(added_ids, 0, added_count, null);
+	added_count = 0;
+  }
+
+  /**
+   * Reads an index saved by `save`. If the file does not exist (or cannot be
+   * read), returns null.
+   */
+  public static SpatialIndex load(String file) {
+	if(!new File(file).exists())
+	  return null;
+
+	try {
+	  DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+	  try {
+		if(in.readInt() != MAGIC || in.readInt() != VERSION)
+		  return null;
+
+		SpatialIndex index = new SpatialIndex();
+		for(int i = in.readInt() ; i > 0 ; --i) {
+		  String id = in.readUTF();
+		  index.addUnmerged(id, in.readDouble(), in.readDouble());
+		}
+		index.merge();
+		index.modified = false;
+		return index;
+	  } finally {
+		in.close();
+	  }
+	} catch (IOException e) {
+	  e.printStackTrace();
+	  return null;
+	}
+  }
+
+  /** Creates an index from parallel arrays. The points whose id or coordinates are missing are skipped. */
+  public static SpatialIndex build(String[] ids, double[] latitudes, double[] longitudes) {
+	SpatialIndex index = new SpatialIndex();
+	for(int i = 0 ; i < ids.length ; ++i) {
+	  if(ids[i] == null || Double.isNaN(latitudes[i]) || Double.isNaN(longitudes[i]))
+		continue;
+	  index.remove(ids[i]);
+	  index.addUnmerged(ids[i], latitudes[i], longitudes[i]);
+	}
+	index.merge();
+	index.modified = true;
+	return index;
+  }
+
+  // Adds a point, known to be new, to the buffer without merging.
+  private void addUnmerged(String id, double latitude, double longitude) {
+	if(added_count == added_ids.length) {
+	  added_latitudes  = Arrays.copyOf(added_latitudes, added_count * 2);
+	  added_longitudes = Arrays.copyOf(added_longitudes, added_count * 2);
+	  added_ids        = Arrays.copyOf(added_ids, added_count * 2);
+	}
+
+	added_latitudes[added_count]  = latitude;
+	added_longitudes[added_count] = longitude;
+	added_ids[added_count]        = id;
+	positions.put(id, -(added_count+1));
+	added_count++;
+  }
+
+  /** Writes the index in a temporary file, which then replaces the previous one atomically. */
+  public synchronized void save(String file) throws IOException {
+	merge();
+
+	File tmp = new File(file + ".tmp");
+
+	DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+	try {
+	  out.writeInt(MAGIC);
+	  out.writeInt(VERSION);
+	  out.writeInt(ids.length);
+	  for(int i = 0 ; i < ids.length ; ++i) {
+		out.writeUTF(ids[i]);
+		out.writeDouble(latitudes[i]);
+		out.writeDouble(longitudes[i]);
+	  }
+	} finally {
+	  out.close();
+	}
+
+	Files.move(tmp.toPath(), new File(file).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	modified = false;
+  }
+}